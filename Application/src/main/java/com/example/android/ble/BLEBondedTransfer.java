@@ -0,0 +1,596 @@
+package com.example.android.ble;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Sends a single file over several transports at once (ie: RFCOMM and the BLE stream), so the
+ * transfer gets close to the sum of their throughputs.
+ *
+ * Every transport has its own thread, which takes the next chunk of the file as soon as the
+ * transport is done with the previous one. So faster transports simply take more chunks, and
+ * if one of them fails its chunk goes to the others. Chunks travel in frames:
+ * * FRAME [offset (8)][length (4)][data]
+ * and the receiver writes them at their offset, in whatever order they arrive.
+ *
+ * The transfer itself is set up through the control transport (the RFCOMM Socket):
+ * * Sender:   HELLO [magic][version][transfer id (8)][length (8)]
+ * * Receiver: READY [status (1)]
+ * * Sender:   BIND  [BIND_MARKER (4)][transfer id (8)] on every other transport, as a packet of
+ *   its own, so the receiver knows its data belongs to this transfer
+ * * Sender:   frames on every transport, and once all of them are done:
+ * * Sender:   END   [END_OF_FRAMES (8)][SHA-256 of the file (32)] on the control transport
+ * * Receiver: DONE  [status (1)], once the whole file is there and matches the hash.
+ * Numbers are big endian.
+ *
+ * This class has no Android dependencies.
+ */
+public class BLEBondedTransfer {
+
+    public static final int MAGIC = 0x424C4542; // "BLEB"
+    public static final int VERSION = 1;
+    public static final int BIND_MARKER = 0x42494E44; // "BIND"
+    public static final int BIND_SIZE = 12;
+    public static final int FRAME_HEADER_SIZE = 12;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FAILED = 1;
+
+    private static final long END_OF_FRAMES = -1;
+    /* Bytes a transport sends between flushes, which are kept in case it fails */
+    public static final int FLUSH_INTERVAL = 256 * 1024;
+
+    /**
+     * A way to get frames to the receiver
+     */
+    public interface Transport {
+        /**
+         * Bytes of file per frame. Slow transports should use small chunks, so the transfer
+         * doesn't end up waiting for their last one.
+         */
+        int getChunkSize();
+
+        /**
+         * Sends a frame, blocking until the transport has taken it
+         * @param frame Only valid during the call
+         * @param length
+         * @throws IOException If the transport is gone. The frame goes to another transport.
+         */
+        void send(byte[] frame, int length) throws IOException;
+
+        /**
+         * Waits until everything sent so far is delivered. Called once there are no more
+         * chunks, and every FLUSH_INTERVAL bytes so what was sent can be forgotten.
+         * @throws IOException If it couldn't be delivered. What was sent since the last
+         * flush() goes to another transport.
+         */
+        void flush() throws IOException;
+    }
+
+    /**
+     * Progress and cancellation of a transfer
+     */
+    public interface Listener {
+        void onProgress(long bytesSent, long totalBytes);
+        boolean isCancelled();
+    }
+
+    /**
+     * Writes a BIND packet for a transport other than the control one
+     */
+    public static byte[] bindPacket(long transferId) {
+        byte[] packet = new byte[BIND_SIZE];
+        ByteBuffer.wrap(packet).putInt(BIND_MARKER).putLong(transferId);
+        return packet;
+    }
+
+    /**
+     * @return The transfer id of a BIND packet, or null if it isn't one
+     */
+    public static Long readBindPacket(byte[] packet) {
+        if (packet == null || packet.length != BIND_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        return (buffer.getInt() == BIND_MARKER ? buffer.getLong() : null);
+    }
+
+    /**
+     * Sending side of a transfer. Good for a single file.
+     */
+    public static class Sender {
+        private final InputStream mFile;
+        private final long mLength;
+        private final MessageDigest mDigest = BLEFileSink.newDigest();
+        private final Object mReadLock = new Object();
+        /* Next offset to read. Guarded by mReadLock, as the file and the digest */
+        private long mNextOffset = 0;
+
+        /* Frames whose transport failed, waiting for another one. Guarded by this */
+        private final ArrayDeque<byte[]> mOrphans = new ArrayDeque<>();
+        private long mBytesSent = 0;
+        private IOException mError;
+        private long[] mBytesPerTransport;
+        /* Transports sending or holding frames not flushed yet, which may still become
+           orphans. Guarded by this */
+        private boolean[] mBusy;
+
+        /**
+         * @param file Read sequentially, from the beginning
+         * @param length Bytes of the file
+         */
+        public Sender(InputStream file, long length) {
+            mFile = file;
+            mLength = length;
+        }
+
+        /**
+         * Starts the transfer on the control transport, see the protocol above
+         * @return The transfer id, to BIND the other transports
+         * @throws IOException If the receiver refused it
+         */
+        public static long hello(InputStream controlIn, OutputStream controlOut, long length)
+                throws IOException {
+            long transferId = new Random().nextLong() & Long.MAX_VALUE;
+            DataOutputStream out = new DataOutputStream(controlOut);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(transferId);
+            out.writeLong(length);
+            out.flush();
+            if (controlIn.read() != STATUS_OK) {
+                throw new IOException("Receiver refused the transfer");
+            }
+            return transferId;
+        }
+
+        /**
+         * Ends the transfer on the control transport, once run() is done
+         * @throws IOException If the receiver didn't get the whole file
+         */
+        public void end(InputStream controlIn, OutputStream controlOut) throws IOException {
+            DataOutputStream out = new DataOutputStream(controlOut);
+            out.writeLong(END_OF_FRAMES);
+            synchronized (mReadLock) {
+                out.write(mDigest.digest());
+            }
+            out.flush();
+            if (controlIn.read() != STATUS_OK) {
+                throw new IOException("Receiver didn't get the whole file");
+            }
+        }
+
+        /**
+         * Sends the whole file through the transports, each one from its own thread
+         * @return false if it was cancelled
+         * @throws IOException If every transport failed, or the file couldn't be read
+         */
+        public boolean run(List<Transport> transports, final Listener listener) throws IOException {
+            mBytesPerTransport = new long[transports.size()];
+            mBusy = new boolean[transports.size()];
+            List<Thread> threads = new ArrayList<>(transports.size());
+            for (int i = 0; i < transports.size(); i++) {
+                final int index = i;
+                final Transport transport = transports.get(i);
+                Thread thread = new Thread("BondedTransport" + i) {
+                    @Override
+                    public void run() {
+                        work(index, transport, listener);
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            synchronized (this) {
+                if (listener.isCancelled()) {
+                    return false;
+                }
+                if (mBytesSent < mLength || !mOrphans.isEmpty()) {
+                    throw (mError != null ? mError : new IOException("Transfer incomplete"));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Bytes sent through each transport in the last run(), in the same order
+         */
+        public synchronized long[] getBytesPerTransport() {
+            return mBytesPerTransport.clone();
+        }
+
+        /**
+         * Sends chunks until there are none left. A transport that runs out of chunks stays
+         * around while another one may still fail, to take its orphans.
+         */
+        private void work(int index, Transport transport, Listener listener) {
+            byte[] frame = new byte[FRAME_HEADER_SIZE + transport.getChunkSize()];
+            /* Frames sent since the last flush(), as orphans in case the transport fails */
+            ArrayDeque<byte[]> unflushed = new ArrayDeque<>();
+            long unflushedBytes = 0;
+            int length = -1;
+            try {
+                while (!listener.isCancelled()) {
+                    length = nextFrame(index, frame);
+                    if (length < 0) {
+                        transport.flush();
+                        unflushed.clear();
+                        unflushedBytes = 0;
+                        if (!waitForOrphans(index, listener)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    transport.send(frame, length);
+                    unflushed.add(orphanOf(frame, length));
+                    int chunk = length - FRAME_HEADER_SIZE;
+                    length = -1;
+                    unflushedBytes += chunk;
+                    long bytesSent;
+                    synchronized (this) {
+                        mBytesSent += chunk;
+                        mBytesPerTransport[index] += chunk;
+                        bytesSent = mBytesSent;
+                    }
+                    listener.onProgress(bytesSent, mLength);
+                    if (unflushedBytes >= FLUSH_INTERVAL) {
+                        transport.flush();
+                        unflushed.clear();
+                        unflushedBytes = 0;
+                    }
+                }
+            } catch (IOException ex) {
+                synchronized (this) {
+                    // Someone else will send it all
+                    if (length >= 0) {
+                        mOrphans.add(orphanOf(frame, length));
+                    }
+                    for (byte[] orphan : unflushed) {
+                        mOrphans.add(orphan);
+                        mBytesSent -= orphan.length - FRAME_HEADER_SIZE;
+                        mBytesPerTransport[index] -= orphan.length - FRAME_HEADER_SIZE;
+                    }
+                    mError = ex;
+                }
+            } finally {
+                synchronized (this) {
+                    mBusy[index] = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits, with nothing left to send, until another transport fails and leaves orphans
+         * @return false once no other transport can fail with frames to send
+         */
+        private synchronized boolean waitForOrphans(int index, Listener listener) {
+            mBusy[index] = false;
+            notifyAll();
+            while (mOrphans.isEmpty() && isAnyBusy() && !listener.isCancelled()) {
+                try {
+                    // Cancelling doesn't notify, so check it now and then
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !mOrphans.isEmpty() && !listener.isCancelled();
+        }
+
+        private boolean isAnyBusy() {
+            for (boolean busy : mBusy) {
+                if (busy) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fills a frame with the next chunk, or an orphan one. The transport is busy from now
+         * until it's flushed.
+         * @return Length of the frame, or -1 if there's nothing left
+         */
+        private int nextFrame(int index, byte[] frame) throws IOException {
+            synchronized (this) {
+                mBusy[index] = true;
+                byte[] orphan = mOrphans.poll();
+                if (orphan != null) {
+                    ByteBuffer header = ByteBuffer.wrap(orphan);
+                    long offset = header.getLong();
+                    int length = header.getInt();
+                    int taken = Math.min(length, frame.length - FRAME_HEADER_SIZE);
+                    System.arraycopy(orphan, FRAME_HEADER_SIZE, frame, FRAME_HEADER_SIZE, taken);
+                    ByteBuffer.wrap(frame).putLong(offset).putInt(taken);
+                    if (taken < length) {
+                        // Too big for this transport, the rest stays for the next frame
+                        mOrphans.addFirst(orphanOf(offset + taken, orphan,
+                                FRAME_HEADER_SIZE + taken, length - taken));
+                    }
+                    return FRAME_HEADER_SIZE + taken;
+                }
+            }
+            synchronized (mReadLock) {
+                long offset = mNextOffset;
+                int length = (int) Math.min(frame.length - FRAME_HEADER_SIZE, mLength - offset);
+                if (length <= 0) {
+                    return -1;
+                }
+                int read = 0;
+                while (read < length) {
+                    int count = mFile.read(frame, FRAME_HEADER_SIZE + read, length - read);
+                    if (count == -1) {
+                        throw new IOException("File shorter than expected");
+                    }
+                    read += count;
+                }
+                mDigest.update(frame, FRAME_HEADER_SIZE, length);
+                mNextOffset += length;
+                ByteBuffer.wrap(frame).putLong(offset).putInt(length);
+                return FRAME_HEADER_SIZE + length;
+            }
+        }
+
+        /**
+         * Copy of a frame, to keep as an orphan
+         */
+        private static byte[] orphanOf(byte[] frame, int length) {
+            long offset = ByteBuffer.wrap(frame).getLong();
+            return orphanOf(offset, frame, FRAME_HEADER_SIZE, length - FRAME_HEADER_SIZE);
+        }
+
+        private static byte[] orphanOf(long offset, byte[] data, int dataOffset, int length) {
+            byte[] orphan = new byte[FRAME_HEADER_SIZE + length];
+            ByteBuffer.wrap(orphan).putLong(offset).putInt(length);
+            System.arraycopy(data, dataOffset, orphan, FRAME_HEADER_SIZE, length);
+            return orphan;
+        }
+    }
+
+    /**
+     * Receiving side of a transfer. Frames can come from several threads at once.
+     */
+    public static class Receiver {
+        private final File mTarget;
+        private final File mPartFile;
+        private final long mTransferId;
+        private final long mLength;
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        /* Ranges of the file received so far, start to end. Guarded by this */
+        private final TreeMap<Long, Long> mReceived = new TreeMap<>();
+        private long mBytesReceived = 0;
+
+        /**
+         * Reads HELLO from the control transport. Answer it with ready() once the other
+         * transports can take BIND packets.
+         * @param controlIn Already past the magic
+         * @param target Where the file goes once complete
+         */
+        public static Receiver accept(InputStream controlIn, File target) throws IOException {
+            DataInputStream in = new DataInputStream(controlIn);
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            long transferId = in.readLong();
+            long length = in.readLong();
+            return new Receiver(target, transferId, length);
+        }
+
+        /**
+         * Answers HELLO with READY
+         */
+        public void ready(OutputStream controlOut) throws IOException {
+            controlOut.write(STATUS_OK);
+            controlOut.flush();
+        }
+
+        public Receiver(File target, long transferId, long length) throws IOException {
+            mTarget = target;
+            mPartFile = new File(target.getPath() + ".part");
+            mTransferId = transferId;
+            mLength = length;
+            mFile = new RandomAccessFile(mPartFile, "rw");
+            mChannel = mFile.getChannel();
+            mChannel.truncate(0);
+        }
+
+        public long getTransferId() {
+            return mTransferId;
+        }
+
+        /**
+         * A parser for the frames of a transport delivering blocks of bytes (ie: the BLE
+         * stream). Frames may be split across blocks in any way.
+         */
+        public Parser newParser() {
+            return new Parser();
+        }
+
+        /**
+         * Reads frames from the control transport until END, then waits for the other
+         * transports and answers DONE
+         * @param timeout Max time to wait for the other transports, in milliseconds
+         * @return The target file
+         * @throws IOException If the file is incomplete or corrupted. It's deleted in that case.
+         */
+        public File receive(InputStream controlIn, OutputStream controlOut, long timeout)
+                throws IOException {
+            boolean complete = false;
+            try {
+                DataInputStream in = new DataInputStream(controlIn);
+                byte[] buffer = new byte[64 * 1024];
+                long offset;
+                while ((offset = in.readLong()) != END_OF_FRAMES) {
+                    int length = in.readInt();
+                    if (length < 0 || length > buffer.length) {
+                        throw new IOException("Bad frame of " + length + " bytes");
+                    }
+                    in.readFully(buffer, 0, length);
+                    onFrame(offset, buffer, 0, length);
+                }
+                byte[] hash = new byte[BLEFileSink.HASH_SIZE];
+                in.readFully(hash);
+
+                waitForCompletion(timeout);
+                if (!MessageDigest.isEqual(hash, hashFile(buffer))) {
+                    throw new IOException("File corrupted, hash doesn't match");
+                }
+                complete = true;
+            } finally {
+                controlOut.write(complete ? STATUS_OK : STATUS_FAILED);
+                controlOut.flush();
+                mFile.close();
+                if (!complete) {
+                    mPartFile.delete();
+                }
+            }
+            if (mTarget.exists() && !mTarget.delete()) {
+                throw new IOException("Couldn't replace " + mTarget);
+            }
+            if (!mPartFile.renameTo(mTarget)) {
+                throw new IOException("Couldn't rename " + mPartFile + " to " + mTarget);
+            }
+            return mTarget;
+        }
+
+        public synchronized long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        /**
+         * Writes a chunk at its offset
+         */
+        void onFrame(long offset, byte[] data, int dataOffset, int length) throws IOException {
+            if (offset < 0 || offset + length > mLength) {
+                throw new IOException("Frame out of the file: " + offset);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+            long position = offset;
+            // Positional writes don't touch the channel position, so transports don't mix up
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+            synchronized (this) {
+                addRange(offset, offset + length);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Merges a range with the ones received, so duplicates are only counted once
+         */
+        private void addRange(long start, long end) {
+            Map.Entry<Long, Long> before = mReceived.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                mBytesReceived -= before.getValue() - before.getKey();
+                mReceived.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> after = mReceived.ceilingEntry(start);
+            while (after != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                mBytesReceived -= after.getValue() - after.getKey();
+                mReceived.remove(after.getKey());
+                after = mReceived.ceilingEntry(start);
+            }
+            mReceived.put(start, end);
+            mBytesReceived += end - start;
+        }
+
+        private synchronized void waitForCompletion(long timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (mBytesReceived < mLength) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("File incomplete, got " + mBytesReceived + " of " + mLength + " bytes");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        private byte[] hashFile(byte[] buffer) throws IOException {
+            MessageDigest digest = BLEFileSink.newDigest();
+            mFile.seek(0);
+            long remaining = mLength;
+            while (remaining > 0) {
+                int count = mFile.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    break;
+                }
+                digest.update(buffer, 0, count);
+                remaining -= count;
+            }
+            return digest.digest();
+        }
+
+        /**
+         * Turns blocks of bytes into frames. Only the header is buffered, chunk data is
+         * written as it arrives.
+         */
+        public class Parser {
+            private final byte[] mHeader = new byte[FRAME_HEADER_SIZE];
+            private int mHeaderLength = 0;
+            private long mOffset;
+            private int mRemaining = 0;
+
+            public void onData(byte[] data, int offset, int length) throws IOException {
+                int end = offset + length;
+                while (offset < end) {
+                    if (mRemaining == 0) {
+                        int count = Math.min(FRAME_HEADER_SIZE - mHeaderLength, end - offset);
+                        System.arraycopy(data, offset, mHeader, mHeaderLength, count);
+                        mHeaderLength += count;
+                        offset += count;
+                        if (mHeaderLength == FRAME_HEADER_SIZE) {
+                            ByteBuffer header = ByteBuffer.wrap(mHeader);
+                            mOffset = header.getLong();
+                            mRemaining = header.getInt();
+                            mHeaderLength = 0;
+                            if (mRemaining < 0) {
+                                throw new IOException("Bad frame of " + mRemaining + " bytes");
+                            }
+                        }
+                    } else {
+                        int count = Math.min(mRemaining, end - offset);
+                        onFrame(mOffset, data, offset, count);
+                        mOffset += count;
+                        mRemaining -= count;
+                        offset += count;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.android.ble;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of equally sized byte arrays, so the bulk write path doesn't allocate a new array for
+ * every packet.
+ *
+ * Android needs characteristic values of the exact length to write, so only arrays of the
+ * pool size are recycled. Any other length is just allocated (ie: the last block of a stream).
+ * The size follows the negotiated MTU, see setBufferSize().
+ *
+ * This class has no Android dependencies.
+ */
+public class BLEBufferPool {
+
+    private final ArrayDeque<byte[]> mFree = new ArrayDeque<>();
+    private final int mMaxBuffers;
+    private int mBufferSize;
+    private long mAllocations = 0;
+
+    /**
+     * @param bufferSize
+     * @param maxBuffers Max number of free buffers kept around
+     */
+    public BLEBufferPool(int bufferSize, int maxBuffers) {
+        mBufferSize = bufferSize;
+        mMaxBuffers = maxBuffers;
+    }
+
+    /**
+     * Changes the size of the pooled buffers. Buffers of the old size are dropped.
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        if (bufferSize != mBufferSize) {
+            mBufferSize = bufferSize;
+            mFree.clear();
+        }
+    }
+
+    public synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Gets a buffer. Its content is undefined.
+     * @param length
+     * @return A buffer of exactly length bytes
+     */
+    public synchronized byte[] acquire(int length) {
+        if (length == mBufferSize) {
+            byte[] buffer = mFree.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        mAllocations++;
+        return new byte[length];
+    }
+
+    /**
+     * Gives a buffer back. It must not be used after this call.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == mBufferSize && mFree.size() < mMaxBuffers) {
+            mFree.push(buffer);
+        }
+    }
+
+    /**
+     * Number of buffers allocated so far, which stops growing once the pool is warm
+     */
+    public synchronized long getAllocations() {
+        return mAllocations;
+    }
+}
@@ -12,4 +12,15 @@ public interface BLECentralChatEvents extends BLEChatEvents {
     void onDescription(String description);
     void onRfcommConnect();
     void onMtuChanged(int status, int newMtu);
+    /**
+     * A chunk of the file passed to sendFile() is gone
+     * @param bytesSent
+     * @param totalBytes -1 if the size of the file is unknown
+     */
+    void onFileProgress(long bytesSent, long totalBytes);
+    /**
+     * The file passed to sendFile() was sent, or failed or was cancelled
+     * @param status One of SENT_*
+     */
+    void onFileSent(int status);
 }
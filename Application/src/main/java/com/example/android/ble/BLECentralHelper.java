@@ -3,12 +3,9 @@ package com.example.android.ble;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
@@ -18,21 +15,30 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.RunnableFuture;
 
 
@@ -61,21 +67,117 @@ public class BLECentralHelper {
     private static final UUID MY_UUID_INSECURE =
             UUID.fromString("83769a57-e930-4496-8ece-fec16420c77c");
 
-    private static final int MAX_RETRIES = 5;
+    /* Number of bulk writes we keep queued against the transfer characteristic */
+    private static final int DEFAULT_STREAM_WINDOW = 8;
+    /* Max time we wait for a free slot in the stream window */
+    private static final long STREAM_WRITE_TIMEOUT = 5000;
+    /* If the Peripheral doesn't acknowledge anything in this time, we resend */
+    private static final long STREAM_RETRANSMIT_TIMEOUT = 300;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothGatt mConnectedGatt;
-    /* Test RFCOMMSocket connection */
-    private BluetoothSocket mSocket;
+    /* RFCOMM connection for file transfers, run by BLERfcommEngine */
+    private volatile BLERfcommEngine.Connection mRfcommConnection;
     private String mRfcommSocketAddress;
     private BLEDiscoverCallback mBleDiscoveryCallback;
     private BLECentralChatEvents mBleChatEvents;
 
-    private Handler mHandler = new Handler();
+    /* Events for the listener go to the main thread */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /* Everything else runs on the I/O thread: GATT events, the operation queues and their timers */
+    private final HandlerThread mIoThread = startIoThread();
+    private final Handler mIoHandler = new Handler(mIoThread.getLooper());
+
+    /* One session per connected Peripheral, by address. Bulk data, files and the RFCOMM
+       Socket only go to the primary one, the first connected. */
+    private final LinkedHashMap<String, BLECentralSession> mSessions = new LinkedHashMap<>();
+    private volatile BLECentralSession mPrimary;
+    /* The sessions take turns on the radio */
+    private final BLERadioScheduler mRadio = new BLERadioScheduler();
+
+    /* Stream packets are copied into pooled buffers, which go back to the pool once written */
+    private final BLEBufferPool mStreamBuffers = new BLEBufferPool(BLEChatProfile.DEFAULT_PAYLOAD_SIZE,
+            DEFAULT_STREAM_WINDOW * 2);
+
+    /* The connection priority follows the traffic, and its effect is measured by the metrics */
+    private final BLEConnectionPriorityManager mPriorityManager = new BLEConnectionPriorityManager();
+    private final BLETransferMetrics mTransferMetrics = new BLETransferMetrics();
+    private final AtomicBoolean mPriorityCheckPending = new AtomicBoolean(false);
+    private final Runnable mPriorityRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPriorityCheckPending.set(false);
+            updateConnectionPriority();
+        }
+    };
+
+    /* Bulk writes are spread over this many transfer characteristics, see setStreamStripes() */
+    private int mWantedStripes = 1;
+    private int mAvailableStripes = 1;
+    private final BLETransferStriper mStriper = new BLETransferStriper(1);
+
+    /* Bulk data goes through a credit based pipeline, which feeds the GATT queue */
+    private final BLEWritePipeline mStreamPipeline = new BLEWritePipeline(new BLEWritePipeline.Writer() {
+        @Override
+        public boolean write(byte[] data) {
+            // Round-robin over the negotiated stripes, the Peripheral reorders by sequence number
+            BLECentralSession primary = mPrimary;
+            if (primary == null) {
+                return false;
+            }
+            UUID stripe = BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS[mStriper.next()];
+            onTraffic(BLETrafficScheduler.CLASS_BULK, data.length);
+            BLEGattOperationQueue queue = primary.getQueue();
+            queue.enqueue(queue.obtainWrite(stripe,
+                    data, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, mStreamBuffers)
+                    .setTrafficClass(BLETrafficScheduler.CLASS_BULK)
+                    .setListener(mStreamWriteListener));
+            return true;
+        }
+    }, DEFAULT_STREAM_WINDOW);
+
+    private final BLEGattOperationQueue.OperationListener mStreamWriteListener =
+            new BLEGattOperationQueue.OperationListener() {
+        @Override
+        public void onOperationComplete(boolean success) {
+            // Give the credit back, and queue the next block right away. A failed write is
+            // just a lost packet, the reliable stream will send it again.
+            if (!success) {
+                Log.d(TAG, "Stream write failed");
+            }
+            mStreamPipeline.onWriteComplete(true);
+        }
+    };
+
+    /* Sequence numbers and retransmissions on top of the pipeline */
+    private final BLEReliableStream.Sender mStreamSender = new BLEReliableStream.Sender(
+            new BLEReliableStream.Sender.Link() {
+                @Override
+                public boolean send(byte[] packet, int length) {
+                    // The Sender keeps the packet for retransmissions, so the write gets a copy
+                    byte[] buffer = mStreamBuffers.acquire(length);
+                    System.arraycopy(packet, 0, buffer, 0, length);
+                    try {
+                        if (mStreamPipeline.offer(buffer, STREAM_WRITE_TIMEOUT)) {
+                            return true;
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    mStreamBuffers.release(buffer);
+                    return false;
+                }
+            }, BLEReliableStream.DEFAULT_WINDOW, STREAM_RETRANSMIT_TIMEOUT, STREAM_WRITE_TIMEOUT);
 
     private Context mContext;
 
+    private static HandlerThread startIoThread() {
+        HandlerThread thread = new HandlerThread("BLECentralIO");
+        thread.start();
+        return thread;
+    }
+
     private static BLECentralHelper instance = new BLECentralHelper();
     private BLECentralHelper(){}
     public static BLECentralHelper getInstance(){
@@ -91,6 +193,7 @@ public class BLECentralHelper {
 
     public void init(Context context, BLEDiscoverCallback bleCallback){
         mContext = context;
+        BLERfcommEngine.getInstance().init(context);
         mBleDiscoveryCallback = bleCallback;
         if( context == null){
             mBleDiscoveryCallback.onInitFailure("Invalid Context!");
@@ -161,7 +264,8 @@ public class BLECentralHelper {
     };
 
     /*
-     * Connect to a Bluetooth device
+     * Connect to a Bluetooth device. It becomes the primary session, and the sessions
+     * connected before are dropped.
      *
      * @param context
      * @param device
@@ -169,7 +273,104 @@ public class BLECentralHelper {
      */
     public void connect(Context context, BluetoothDevice device, BLECentralChatEvents events){
         mBleChatEvents = events;
-        mConnectedGatt = device.connectGatt(context, false, mGattCallback);
+        mStreamPipeline.reset();
+        mStreamSender.reset();
+        mStreamBuffers.setBufferSize(BLEChatProfile.DEFAULT_PAYLOAD_SIZE);
+        mPriorityManager.reset(SystemClock.uptimeMillis());
+        mTransferMetrics.reset();
+        List<BLECentralSession> old;
+        BLECentralSession session = new BLECentralSession(device, events, mSessionHost,
+                mIoThread.getLooper(), mRadio);
+        synchronized (mSessions) {
+            old = new ArrayList<>(mSessions.values());
+            mSessions.clear();
+            mSessions.put(device.getAddress(), session);
+            mPrimary = session;
+        }
+        for (BLECentralSession s : old) {
+            s.close();
+        }
+        applyBulkRate(session);
+        session.connect(context);
+    }
+
+    /**
+     * Connects to one more Peripheral, keeping the ones already connected. Each one has its
+     * own MTU, operation queue and events, and they all share the radio.
+     * With no session yet, it's the same as connect().
+     * @return The session, to send messages to that Peripheral
+     */
+    public BLECentralSession connectSession(Context context, BluetoothDevice device,
+                                            BLECentralChatEvents events){
+        BLECentralSession session;
+        BLECentralSession old;
+        synchronized (mSessions) {
+            if (mPrimary == null) {
+                session = null;
+                old = null;
+            } else {
+                session = new BLECentralSession(device, events, mSessionHost,
+                        mIoThread.getLooper(), mRadio);
+                old = mSessions.put(device.getAddress(), session);
+                if (old == mPrimary) {
+                    // Reconnecting the primary one, stream and files stay with it
+                    mPrimary = session;
+                    applyBulkRate(session);
+                }
+            }
+        }
+        if (session == null) {
+            connect(context, device, events);
+            return mPrimary;
+        }
+        if (old != null) {
+            old.close();
+        }
+        session.connect(context);
+        return session;
+    }
+
+    /**
+     * Drops the connection to a Peripheral. If it was the primary one, the next connected
+     * becomes primary.
+     * @param address
+     */
+    public void disconnect(String address){
+        BLECentralSession session;
+        synchronized (mSessions) {
+            session = mSessions.remove(address);
+            if (session != null && session == mPrimary) {
+                mPrimary = (mSessions.isEmpty() ? null : mSessions.values().iterator().next());
+                if (mPrimary != null) {
+                    applyBulkRate(mPrimary);
+                }
+            }
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return The session of a Peripheral, null if it isn't connected
+     */
+    public BLECentralSession getSession(String address){
+        synchronized (mSessions) {
+            return mSessions.get(address);
+        }
+    }
+
+    public List<BLECentralSession> getSessions(){
+        synchronized (mSessions) {
+            return new ArrayList<>(mSessions.values());
+        }
+    }
+
+    /**
+     * How the sessions are sharing the radio
+     */
+    public String describeRadio(){
+        return mRadio.toString();
     }
 
     /**
@@ -197,18 +398,8 @@ public class BLECentralHelper {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice classicBtDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 if (mRfcommSocketAddress.compareTo(classicBtDevice.getAddress()) == 0) {
-                    try {
-                        mSocket = classicBtDevice.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
-                        mSocket.connect();
-                        mBleChatEvents.onRfcommConnect();
-                    } catch (IOException e) {
-                        try {
-                            mSocket.close();
-                        } catch (IOException e2) {
-                            mBleChatEvents.onConnectionError(e2.toString());
-                        }
-                        mBleChatEvents.onConnectionError(e.toString());
-                    }
+                    BLERfcommEngine.getInstance().connect(classicBtDevice, MY_UUID_INSECURE, false,
+                            mRfcommCallback);
                 }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
@@ -217,258 +408,910 @@ public class BLECentralHelper {
         }
     };
 
-    public BluetoothGattCallback mGattCallback = new BluetoothGattCallback(){
+    /**
+     * Events of the RFCOMM connection. Files are sent through its streams by FileSendThread.
+     */
+    private final BLERfcommEngine.Callback mRfcommCallback = new BLERfcommEngine.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
-            Log.d(TAG, "onConnectionStateChange "
-                    +BLEChatProfile.getStatusDescription(status)+" "
-                    +BLEChatProfile.getStateDescription(newState));
-
-            if(status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    gatt.discoverServices();
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mBleChatEvents.onDisconnect();
-                        }
-                    });
-
+        public void onConnected(BLERfcommEngine.Connection connection) {
+            // The Peripheral only answers what we send, take the stream before anything comes
+            connection.getInputStream();
+            mRfcommConnection = connection;
+            if (mRfcommRequestTime > 0) {
+                mTransportSelector.onRfcommSetup(getPeerAddress(),
+                        SystemClock.uptimeMillis() - mRfcommRequestTime);
+                mRfcommRequestTime = 0;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBleChatEvents.onRfcommConnect();
                 }
-            }else{
-                final int finalStatus = status;
+            });
+        }
+
+        @Override
+        public void onData(BLERfcommEngine.Connection connection, byte[] buffer, int length) {
+            BLERfcommEngine.getInstance().release(buffer);
+        }
+
+        @Override
+        public void onClosed(BLERfcommEngine.Connection connection, final IOException cause) {
+            if (connection != mRfcommConnection && cause != null) {
+                // It never connected
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        mBleChatEvents.onConnectionError("Connection state error! : Error = " + finalStatus);
+                        mBleChatEvents.onConnectionError(cause.toString());
                     }
                 });
+            }
+        }
+    };
 
+    /**
+     * What the sessions tell us. Only the primary one has the stream, files and RFCOMM.
+     */
+    private final BLECentralSession.Host mSessionHost = new BLECentralSession.Host() {
+        @Override
+        public void onServicesReady(BLECentralSession session, BluetoothGatt gatt) {
+            if (session == mPrimary) {
+                mAvailableStripes = countTransferStripes(gatt);
+                applyStreamStripes();
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
-            Log.d(TAG, "onServicesDiscovered:");
-
-            for (BluetoothGattService service : gatt.getServices()) {
-                Log.d(TAG, "Service: "+service.getUuid());
-                if (BLEChatProfile.SERVICE_UUID.equals(service.getUuid())) {
-                    gatt.readCharacteristic(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_VERSION_UUID));
-                    gatt.readCharacteristic(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID));
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID), true);
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID), true);
-                    gatt.setCharacteristicNotification(service.getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID), true);
-                }
+        public void onPayloadSizeChanged(BLECentralSession session, int payloadSize) {
+            if (session == mPrimary) {
+                mStreamBuffers.setBufferSize(payloadSize);
+            }
+        }
+
+        @Override
+        public void onStreamPacket(BLECentralSession session, byte[] packet) {
+            if (session == mPrimary) {
+                BLECentralHelper.this.onStreamPacket(packet);
+            }
+        }
+
+        @Override
+        public void onRfcommAddress(BLECentralSession session, final String address) {
+            if (session != mPrimary) {
+                return;
             }
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mBleChatEvents.onConnect();
+                    mRfcommSocketAddress = address;
+                    connect2RfcommSocket();
                 }
             });
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         final BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-            if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
-                final String msg = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBleChatEvents.onMessage(msg);
-                    }
-                });
-
-                //Register for further updates as notifications
-                gatt.setCharacteristicNotification(characteristic, true);
+        public void onTraffic(BLECentralSession session, int trafficClass, int bytes) {
+            if (session == mPrimary) {
+                BLECentralHelper.this.onTraffic(trafficClass, bytes);
             }
-            if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid())) {
-                final String version = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBleChatEvents.onVersion(version);
+        }
+
+        @Override
+        public void onDisconnected(BLECentralSession session) {
+            if (session != mPrimary) {
+                // The primary one stays listed, so the app can see it's disconnected
+                synchronized (mSessions) {
+                    if (mSessions.get(session.getAddress()) == session) {
+                        mSessions.remove(session.getAddress());
                     }
-                });
+                }
+            }
+        }
+    };
+
+    private void onStreamPacket(byte[] value) {
+        int type = BLEReliableStream.getType(value);
+        if (type == BLEReliableStream.TYPE_ACK) {
+            mStreamSender.onAck(value);
+        } else if (type == BLEReliableStream.TYPE_DATA) {
+            // Bulk data streamed by the Peripheral, paced by its onNotificationSent()
+            postStreamData(value, BLEReliableStream.HEADER_SIZE, value.length - BLEReliableStream.HEADER_SIZE);
+        }
+    }
 
-                //Register for further updates as notifications
-                gatt.setCharacteristicNotification(characteristic, true);
+    /**
+     * Queues stream data for the listener. It gets everything queued since the last time
+     * in a single onDataStream(), so the main thread sees one call per frame at most instead
+     * of one per packet.
+     */
+    private void postStreamData(byte[] data, int offset, int length) {
+        synchronized (mStreamDataLock) {
+            if (mStreamDataLength + length > mStreamData.length) {
+                mStreamData = Arrays.copyOf(mStreamData,
+                        Math.max(mStreamData.length * 2, mStreamDataLength + length));
             }
-            if (BLEChatProfile.CHARACTERISTIC_DESC_UUID.equals(characteristic.getUuid())) {
-                final String description = characteristic.getStringValue(0);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBleChatEvents.onDescription(description);
-                    }
-                });
+            System.arraycopy(data, offset, mStreamData, mStreamDataLength, length);
+            mStreamDataLength += length;
+        }
+        if (mStreamDataPending.compareAndSet(false, true)) {
+            mHandler.post(mStreamDataRunnable);
+        }
+    }
 
-                //Register for further updates as notifications
-                gatt.setCharacteristicNotification(characteristic, true);
+    /* Stream data waiting for the main thread, see postStreamData() */
+    private final Object mStreamDataLock = new Object();
+    private byte[] mStreamData = new byte[BLEChatProfile.MAX_MTU * 8];
+    private int mStreamDataLength = 0;
+    private final AtomicBoolean mStreamDataPending = new AtomicBoolean(false);
+    private final Runnable mStreamDataRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStreamDataPending.set(false);
+            byte[] data;
+            synchronized (mStreamDataLock) {
+                data = Arrays.copyOf(mStreamData, mStreamDataLength);
+                mStreamDataLength = 0;
             }
+            if (data.length > 0) {
+                mBleChatEvents.onDataStream(data);
+            }
+        }
+    };
+
+    /**
+     * Same as postStreamData(), for file progress. Only the latest one matters.
+     */
+    private void postFileProgress(long bytesSent, long totalBytes) {
+        mProgressBytesSent = bytesSent;
+        mProgressTotalBytes = totalBytes;
+        if (mProgressPending.compareAndSet(false, true)) {
+            mHandler.post(mProgressRunnable);
         }
+    }
 
+    private volatile long mProgressBytesSent;
+    private volatile long mProgressTotalBytes;
+    private final AtomicBoolean mProgressPending = new AtomicBoolean(false);
+    private final Runnable mProgressRunnable = new Runnable() {
         @Override
-        public void onCharacteristicWrite (BluetoothGatt gatt,
-                                    BluetoothGattCharacteristic characteristic,
-                                    int status){
-            if (BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())){
-                final int chatStatus = (status == BluetoothGatt.GATT_SUCCESS ? BLEChatEvents.SENT_SUCCEED : BLEChatEvents.SENT_FAILED);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBleChatEvents.onStreamSent(chatStatus);
-                    }
-                });
+        public void run() {
+            mProgressPending.set(false);
+            mBleChatEvents.onFileProgress(mProgressBytesSent, mProgressTotalBytes);
+        }
+    };
+
+    /**
+     * Sends a message to the primary Peripheral, see BLECentralSession.send()
+     * @param data
+     */
+    public void send(byte[] data) {
+        BLECentralSession primary = mPrimary;
+        if (primary == null) {
+            Log.w(TAG, "Not connected");
+            return;
+        }
+        primary.send(data);
+    }
+
+    public void send(String msg){
+        send(BLEControlMessage.text(msg));
+    }
+
+    /**
+     * Sends a control message, as an envelope or as plain text if the Peripheral is too old
+     * @param msg
+     */
+    public void send(BLEControlMessage msg){
+        BLECentralSession primary = mPrimary;
+        if (primary == null) {
+            Log.w(TAG, "Not connected");
+            return;
+        }
+        primary.send(msg);
+    }
+
+    /**
+     * Sends a message to every connected Peripheral
+     * @return How many it was sent to
+     */
+    public int sendAll(BLEControlMessage msg){
+        int sent = 0;
+        for (BLECentralSession session : getSessions()) {
+            if (session.send(msg)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Capabilities the primary Peripheral accepted
+     */
+    private int getCapabilities() {
+        BLECentralSession primary = mPrimary;
+        return (primary == null ? 0 : primary.getCapabilities());
+    }
+
+    /**
+     * The checks below take the capabilities a transfer started with, so the primary
+     * Peripheral changing halfway doesn't change the format of the file
+     */
+    private static boolean isCompressionEnabled(int capabilities) {
+        return (capabilities & BLEChatProfile.CAPABILITY_DEFLATE) != 0;
+    }
+
+    private static boolean isFileTrailerEnabled(int capabilities) {
+        return (capabilities & BLEChatProfile.CAPABILITY_FILE_TRAILER) != 0;
+    }
+
+    private static boolean isResumableEnabled(int capabilities) {
+        return (capabilities & BLEChatProfile.CAPABILITY_RESUMABLE_FILES) != 0;
+    }
+
+    private boolean isBondedEnabled(int capabilities) {
+        return mBondedFiles && (capabilities & BLEChatProfile.CAPABILITY_BONDED_FILES) != 0;
+    }
+
+    /**
+     * Whether files sent over RFCOMM are also split with the BLE stream, see BLEBondedTransfer.
+     * Only used if the Peripheral supports it.
+     * @param bonded
+     */
+    public void setBondedFiles(boolean bonded) {
+        mBondedFiles = bonded;
+    }
+
+    /**
+     * Sends a file to the Peripheral, through the RFCOMM Socket if it's connected or through
+     * the BLE reliable stream otherwise, if the Peripheral saves files coming that way.
+     * With setBondedFiles(), it goes through both.
+     * The file is read and sent in chunks by a background thread, so memory usage doesn't
+     * depend on the file size. Progress is reported through onFileProgress(), and the end
+     * through onFileSent().
+     * @param uri
+     */
+    public synchronized void sendFile(final Uri uri){
+        if (mFileSendThread != null && mFileSendThread.isAlive()) {
+            mBleChatEvents.onConnectionError("Already sending a file");
+            return;
+        }
+        if (mRfcommConnection != null && mRfcommConnection.isOpen()) {
+            mPendingFileUri = uri;
+            mFileSendThread = new FileSendThread(uri, true);
+            mFileSendThread.start();
+            return;
+        }
+        long size = getFileSize(uri);
+        if ((getCapabilities() & BLEChatProfile.CAPABILITY_BLE_FILES) != 0 && size > 0) {
+            sendFileBle(uri, size);
+        } else {
+            // Older Peripherals don't save what comes through the BLE stream, and none takes
+            // a file of unknown size that way
+            mBleChatEvents.onConnectionError("RFCOMM Socket isn't connected");
+        }
+    }
+
+    /**
+     * Tells the Peripheral a file is coming through the BLE stream, and starts sending it
+     */
+    private void sendFileBle(Uri uri, long size){
+        // Goes before the stream data, chat messages have priority over bulk writes
+        send(BLEControlMessage.transferRequest(BLEControlMessage.TRANSPORT_BLE, size));
+        mPendingFileUri = uri;
+        mFileSendThread = new FileSendThread(uri, false);
+        mFileSendThread.start();
+    }
+
+    /**
+     * Sends a file through the transport expected to finish first, see BLETransportSelector.
+     * If that's RFCOMM and the Socket isn't connected, it's requested to the Peripheral and the
+     * file is kept pending until onRfcommConnect(), see resumeFile().
+     * @param uri
+     * @return The transport chosen, one of BLEControlMessage.TRANSPORT_*
+     */
+    public synchronized int sendFileAuto(Uri uri){
+        long size = getFileSize(uri);
+        boolean rfcommOpen = (mRfcommConnection != null && mRfcommConnection.isOpen());
+        int transport = mTransportSelector.choose(getPeerAddress(), size, rfcommOpen);
+        if ((getCapabilities() & BLEChatProfile.CAPABILITY_BLE_FILES) == 0) {
+            // Older Peripherals don't save what comes through the BLE stream
+            transport = BLEControlMessage.TRANSPORT_RFCOMM;
+        }
+        Log.d(TAG, "Sending " + size + " bytes over transport " + transport + ", "
+                + mTransportSelector.describe(getPeerAddress()));
+        if (transport == BLEControlMessage.TRANSPORT_BLE) {
+            if (mFileSendThread != null && mFileSendThread.isAlive()) {
+                mBleChatEvents.onConnectionError("Already sending a file");
+                return transport;
             }
+            sendFileBle(uri, size);
+        } else if (rfcommOpen) {
+            sendFile(uri);
+        } else {
+            mPendingFileUri = uri;
+            mRfcommRequestTime = SystemClock.uptimeMillis();
+            send(BLEControlMessage.transferRequest(BLEControlMessage.TRANSPORT_RFCOMM, Math.max(size, 0)));
+        }
+        return transport;
+    }
+
+    /**
+     * Throughput and set up estimates of every transport to the Peripheral
+     */
+    public String describeTransports(){
+        return mTransportSelector.describe(getPeerAddress());
+    }
+
+    private String getPeerAddress(){
+        BLECentralSession primary = mPrimary;
+        return (primary == null ? "" : primary.getAddress());
+    }
+
+    /**
+     * Stops the file being sent, if any. onFileSent() will be called with SENT_FAILED.
+     */
+    public synchronized void cancelFile(){
+        mPendingFileUri = null;
+        if (mFileSendThread != null) {
+            mFileSendThread.cancel();
+        }
+    }
+
+    /**
+     * Whether a file couldn't be sent because the link dropped, so it can be resumed with
+     * resumeFile() once the RFCOMM Socket is back
+     */
+    public synchronized boolean hasPendingFile(){
+        return mPendingFileUri != null
+                && (mFileSendThread == null || !mFileSendThread.isAlive());
+    }
+
+    /**
+     * Sends the pending file again. If the Peripheral supports resumable transfers, only
+     * the chunks it's missing go through.
+     */
+    public synchronized void resumeFile(){
+        if (mPendingFileUri != null) {
+            sendFile(mPendingFileUri);
+        }
+    }
+
+    /* Files are read and sent in chunks this big */
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    /* Chunks of a bonded transfer that go through BLE. Small, so the file doesn't end up
+       waiting for the last one on the slow link */
+    private static final int BONDED_BLE_CHUNK_SIZE = 4 * 1024;
+    private volatile boolean mBondedFiles = false;
+    /* Picks BLE or RFCOMM for every file, from what past transfers measured */
+    private final BLETransportSelector mTransportSelector = new BLETransportSelector();
+    /* When we asked the Peripheral for the RFCOMM Socket, to measure its set up time */
+    private volatile long mRfcommRequestTime = 0;
+    private FileSendThread mFileSendThread;
+    /* File being sent, kept until it's delivered or cancelled */
+    private Uri mPendingFileUri;
+
+    /**
+     * Reads a file from a content Uri and streams it, one chunk at a time
+     */
+    private class FileSendThread extends Thread {
+        private final Uri mUri;
+        private final boolean mRfcomm;
+        private final byte[] mBuffer = new byte[FILE_CHUNK_SIZE];
+        /* What the Peripheral agreed to when the transfer started */
+        private final int mCapabilities = getCapabilities();
+        private volatile boolean mCancelled = false;
+        private long mBytesSent = 0;
+        private long mTotalBytes = -1;
+        private long mStartTime;
+
+        /**
+         * @param uri
+         * @param rfcomm Whether it goes through the RFCOMM Socket, or the BLE stream
+         */
+        FileSendThread(Uri uri, boolean rfcomm){
+            super("FileSendThread");
+            mUri = uri;
+            mRfcomm = rfcomm;
+        }
 
+        public void cancel(){
+            mCancelled = true;
+            interrupt();
         }
 
         @Override
-        public void onMtuChanged (BluetoothGatt gatt,
-                           int mtu,
-                           int status){
-            final int chatStatus = (status == BluetoothGatt.GATT_SUCCESS ? BLECentralChatEvents.MTU_CHANGE_SUCCEED : BLECentralChatEvents.MTU_CHANGE_FAILED);
-            mMtu = mtu;
+        public void run() {
+            boolean success = false;
+            InputStream is = null;
+            try {
+                mTotalBytes = getFileSize(mUri);
+                is = mContext.getContentResolver().openInputStream(mUri);
+                if (is == null) {
+                    throw new FileNotFoundException(mUri.toString());
+                }
+                mStartTime = SystemClock.uptimeMillis();
+                if (mRfcomm) {
+                    String mimeType = mContext.getContentResolver().getType(mUri);
+                    if (isBondedEnabled(mCapabilities) && mTotalBytes > 0) {
+                        success = send2Bonded(is);
+                    } else if (isResumableEnabled(mCapabilities)) {
+                        success = send2RfcommResumable(is, mimeType);
+                        is = null;
+                    } else {
+                        success = send2Rfcomm(is, mimeType);
+                    }
+                } else {
+                    success = send2Ble(is);
+                }
+            } catch (IOException ex) {
+                postError(mCancelled ? "File transfer cancelled" : ex.toString());
+            } catch (InterruptedException ex) {
+                postError("File transfer cancelled");
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ex) {
+                        Log.d(TAG, "Couldn't close " + mUri);
+                    }
+                }
+            }
+            synchronized (BLECentralHelper.this) {
+                if (success || mCancelled) {
+                    mPendingFileUri = null;
+                }
+            }
+            final int status = (success ? BLEChatEvents.SENT_SUCCEED : BLEChatEvents.SENT_FAILED);
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mBleChatEvents.onMtuChanged(chatStatus, mMtu);
+                    mBleChatEvents.onFileSent(status);
                 }
             });
         }
 
+        /**
+         * Fills the buffer as much as possible
+         * @return Bytes read, 0 at the end of the file
+         */
+        private int readChunk(InputStream is) throws IOException {
+            int length = 0;
+            int bytesRead;
+            while (length < mBuffer.length
+                    && (bytesRead = is.read(mBuffer, length, mBuffer.length - length)) != -1) {
+                length += bytesRead;
+            }
+            return length;
+        }
+
+        /**
+         * Streams the file through the RFCOMM Socket. It's deflated on the fly, unless
+         * compression wasn't negotiated or the file looks already compressed.
+         * The Socket is closed at the end, so the Peripheral knows the file is complete, and
+         * the file ends with its length and hash if the Peripheral can check them.
+         */
+        private boolean send2Rfcomm(InputStream is, String mimeType) throws IOException {
+            // The first chunk is the sample that tells whether compression pays off
+            int length = readChunk(is);
+            int codec = BLEPayloadCodec.CODEC_NONE;
+            if (isCompressionEnabled(mCapabilities) && !BLEPayloadCodec.isCompressedType(mimeType)
+                    && BLEPayloadCodec.isWorthCompressing(mBuffer,
+                            Math.min(length, BLEPayloadCodec.SAMPLE_SIZE))) {
+                codec = BLEPayloadCodec.CODEC_DEFLATE;
+            }
+            Log.d(TAG, "Sending " + mimeType + " file with codec " + codec);
+            // Peripherals that don't know about compression don't expect the codec byte either
+            OutputStream stream = (isCompressionEnabled(mCapabilities)
+                    ? BLEPayloadCodec.newFileOutputStream(mRfcommConnection.getOutputStream(), codec)
+                    : mRfcommConnection.getOutputStream());
+            MessageDigest digest = (isFileTrailerEnabled(mCapabilities) ? BLEFileSink.newDigest() : null);
+            while (length > 0 && !mCancelled) {
+                stream.write(mBuffer, 0, length);
+                if (digest != null) {
+                    digest.update(mBuffer, 0, length);
+                }
+                onChunkSent(length);
+                length = readChunk(is);
+            }
+            if (mCancelled) {
+                // Dropping the Socket is the only way to tell the Peripheral
+                mRfcommConnection.close();
+                postError("File transfer cancelled");
+                return false;
+            }
+            if (digest != null) {
+                BLEFileSink.writeTrailer(stream, mBytesSent, digest);
+            }
+            stream.close();
+            recordTransfer(BLEControlMessage.TRANSPORT_RFCOMM, mBytesSent);
+            return true;
+        }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            final BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-            Log.i(TAG, "Notification of message characteristic changed on server.");
-            if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
+        /**
+         * Sends the file through the RFCOMM Socket in chunks, skipping the ones the Peripheral
+         * kept from an earlier try. See BLEResumableTransfer.
+         * @param is Used to hash the file, and closed. The file is opened again to send it.
+         */
+        private boolean send2RfcommResumable(InputStream is, String mimeType) throws IOException {
+            BLEResumableTransfer.Sender sender = new BLEResumableTransfer.Sender(
+                    mRfcommConnection.getInputStream(), mRfcommConnection.getOutputStream());
+            mTotalBytes = sender.prepare(is);
+            // Hashing isn't part of the transfer
+            mStartTime = SystemClock.uptimeMillis();
+            InputStream file = mContext.getContentResolver().openInputStream(mUri);
+            if (file == null) {
+                throw new FileNotFoundException(mUri.toString());
+            }
+            try {
+                boolean compress = isCompressionEnabled(mCapabilities)
+                        && !BLEPayloadCodec.isCompressedType(mimeType);
+                boolean sent = sender.send(file, compress, new BLEResumableTransfer.Listener() {
                     @Override
-                    public void run() {
-                        mBleChatEvents.onMessage(characteristic.getStringValue(0));
+                    public void onChunk(int index, int length) {
+                        onChunkSent(length);
                     }
-                });
-            } else if (BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
+
                     @Override
-                    public void run() {
-                        mRfcommSocketAddress = characteristic.getStringValue(0);
-                        connect2RfcommSocket();
-                        //mBleChatEvents.onTransfer(characteristic.getStringValue(0));
+                    public boolean isCancelled() {
+                        return mCancelled;
                     }
                 });
-            } else if (BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mBleChatEvents.onInfo("BLE_TRANS Charac changed!!");
+                if (!sent) {
+                    mRfcommConnection.close();
+                    postError("File transfer cancelled");
+                    return false;
+                }
+                Log.d(TAG, "File sent, " + sender.getChunksSkipped() + " chunks were already there");
+                mRfcommConnection.close();
+                recordTransfer(BLEControlMessage.TRANSPORT_RFCOMM, mBytesSent);
+                return true;
+            } finally {
+                file.close();
+            }
+        }
+
+        /**
+         * Sends the file through the RFCOMM Socket and the BLE reliable stream at the same
+         * time, with no compression. See BLEBondedTransfer.
+         */
+        private boolean send2Bonded(InputStream is) throws IOException {
+            InputStream in = mRfcommConnection.getInputStream();
+            final OutputStream out = mRfcommConnection.getOutputStream();
+            final long transferId = BLEBondedTransfer.Sender.hello(in, out, mTotalBytes);
+            BLEBondedTransfer.Sender sender = new BLEBondedTransfer.Sender(is, mTotalBytes);
+            List<BLEBondedTransfer.Transport> transports = new ArrayList<>(2);
+            transports.add(new BLEBondedTransfer.Transport() {
+                @Override
+                public int getChunkSize() {
+                    return FILE_CHUNK_SIZE;
+                }
+
+                @Override
+                public void send(byte[] frame, int length) throws IOException {
+                    out.write(frame, 0, length);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            });
+            transports.add(new BLEBondedTransfer.Transport() {
+                private boolean mBound = false;
+
+                @Override
+                public int getChunkSize() {
+                    return BONDED_BLE_CHUNK_SIZE;
+                }
+
+                @Override
+                public void send(byte[] frame, int length) throws IOException {
+                    if (!mBound) {
+                        // The BIND packet goes alone, so the Peripheral finds it
+                        byte[] bind = BLEBondedTransfer.bindPacket(transferId);
+                        sendPacket(bind, 0, bind.length);
+                        mBound = true;
                     }
-                });
+                    int packetSize = getStreamPayloadSize();
+                    for (int offset = 0; offset < length; offset += packetSize) {
+                        sendPacket(frame, offset, Math.min(packetSize, length - offset));
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (!flushData()) {
+                        throw new IOException("Peripheral didn't acknowledge the BLE chunks");
+                    }
+                }
+
+                private void sendPacket(byte[] data, int offset, int length) throws IOException {
+                    try {
+                        if (!mStreamSender.send(data, offset, length, STREAM_WRITE_TIMEOUT)) {
+                            throw new IOException("BLE stream stalled");
+                        }
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException("File transfer cancelled");
+                    }
+                }
+            });
+
+            boolean sent = sender.run(transports, new BLEBondedTransfer.Listener() {
+                private long mLastBytesSent = 0;
+
+                @Override
+                public synchronized void onProgress(long bytesSent, long totalBytes) {
+                    // Transports report from their own threads, so they may come out of order
+                    if (bytesSent > mLastBytesSent) {
+                        onChunkSent((int) (bytesSent - mLastBytesSent));
+                        mLastBytesSent = bytesSent;
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return mCancelled;
+                }
+            });
+            if (!sent) {
+                mRfcommConnection.close();
+                postError("File transfer cancelled");
+                return false;
             }
+            sender.end(in, out);
+            long[] split = sender.getBytesPerTransport();
+            Log.d(TAG, "File sent, " + split[0] + " bytes over RFCOMM and " + split[1] + " over BLE");
+            mRfcommConnection.close();
+            // Both were busy all along, so each one's share tells its throughput
+            recordTransfer(BLEControlMessage.TRANSPORT_RFCOMM, split[0]);
+            recordTransfer(BLEControlMessage.TRANSPORT_BLE, split[1]);
+            return true;
         }
-    }; //End BluetoothGattCallback
 
-    public void send(byte[] data) {
-        final BluetoothGattCharacteristic characteristic = mConnectedGatt
-                .getService(BLEChatProfile.SERVICE_UUID)
-                .getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID);
+        /**
+         * Streams the file through the BLE reliable stream, with no compression
+         */
+        private boolean send2Ble(InputStream is) throws IOException, InterruptedException {
+            int length;
+            while ((length = readChunk(is)) > 0 && !mCancelled) {
+                int packetSize = getStreamPayloadSize();
+                for (int offset = 0; offset < length && !mCancelled; offset += packetSize) {
+                    if (!mStreamSender.send(mBuffer, offset, Math.min(packetSize, length - offset),
+                            STREAM_WRITE_TIMEOUT)) {
+                        postError("Couldn't send more data!!");
+                        return false;
+                    }
+                }
+                onChunkSent(length);
+            }
+            if (mCancelled) {
+                postError("File transfer cancelled");
+                return false;
+            }
+            if (!flushData()) {
+                postError("Peripheral didn't acknowledge the file");
+                return false;
+            }
+            recordTransfer(BLEControlMessage.TRANSPORT_BLE, mBytesSent);
+            return true;
+        }
+
+        /**
+         * Feeds what a transfer took to the transport selector
+         */
+        private void recordTransfer(int transport, long bytes) {
+            mTransportSelector.onTransfer(getPeerAddress(), transport, bytes,
+                    SystemClock.uptimeMillis() - mStartTime);
+        }
 
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        characteristic.setValue(data);
-        if(!mConnectedGatt.writeCharacteristic(characteristic)){
-            mBleChatEvents.onConnectionError("Couldn't send data!!");
+        private void onChunkSent(int length) {
+            mBytesSent += length;
+            postFileProgress(mBytesSent, mTotalBytes);
+        }
+
+        private void postError(final String error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBleChatEvents.onConnectionError(error);
+                }
+            });
         }
     }
 
-    public void send(String msg){
-        send(msg.getBytes());
+    /**
+     * Size of the file behind a content Uri
+     * @return -1 if the provider doesn't know
+     */
+    private long getFileSize(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri,
+                new String[] { OpenableColumns.SIZE }, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+            if (cursor.moveToFirst() && column >= 0 && !cursor.isNull(column)) {
+                return cursor.getLong(column);
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
     }
 
+
+    private byte[] mDataBlock;
+
     /**
-     *
+     * Sends a MTU size block of data through the reliable stream.
+     * It only blocks when the stream window is full, so don't call it from the main thread.
      */
-    public void sendFile(final Uri uri){
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try{
-                    InputStream is = mContext.getContentResolver().openInputStream(uri);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    byte[] b = new byte[1024];
-                    int bytesRead = 0;
-                    while ((bytesRead = is.read(b)) != -1) {
-                        bos.write(b, 0, bytesRead);
-                    }
-                    send2Rfcomm(bos.toByteArray());
-                }catch(FileNotFoundException ex){
+    public void sendData() {
 
-                }catch(IOException ex){
+        //byte[] data = getAlphabetDataBlock(mMtu);
+        // The same block is sent over and over, so it's only allocated when the MTU changes
+        byte[] data = mDataBlock;
+        if (data == null || data.length != getStreamPayloadSize()) {
+            data = mDataBlock = new byte[getStreamPayloadSize()];
+        }
 
-                }
+        try {
+            if (!mStreamSender.send(data, 0, data.length, STREAM_WRITE_TIMEOUT)) {
+                mBleChatEvents.onConnectionError("Couldn't send more data!!");
             }
-        });
+        } catch (InterruptedException ex) {
+            mBleChatEvents.onConnectionError("Interrupted while sending data!!");
+        }
     }
 
     /**
-     *
-     * @param data
+     * Waits until all the data sent by sendData() has been acknowledged by the Peripheral
+     * @return false if it couldn't be delivered
      */
-    private synchronized void send2Rfcomm(byte[] data){
+    public boolean flushData() {
         try {
-            OutputStream stream = mSocket.getOutputStream();
-            stream.write(data);
-        }catch (IOException e){
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mBleChatEvents.onConnectionError("Error sending message to RFCOMM Socket");
-                }
-            });
+            return mStreamSender.flush(STREAM_WRITE_TIMEOUT) && mStreamPipeline.flush(STREAM_WRITE_TIMEOUT);
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Bytes of data carried by every stream packet
+     */
+    public int getStreamPayloadSize() {
+        return getMtu() - BLEReliableStream.HEADER_SIZE;
+    }
 
+    /**
+     * Caps the bandwidth used by bulk data (sendData() and files sent over BLE), so it leaves
+     * some room on the link to other apps
+     * @param bytesPerSecond 0 for no cap
+     */
+    public void setBulkRate(long bytesPerSecond) {
+        mBulkRate = bytesPerSecond;
+        BLECentralSession primary = mPrimary;
+        if (primary != null) {
+            applyBulkRate(primary);
         }
     }
 
+    /* Kept for the next primary session */
+    private volatile long mBulkRate = 0;
+
+    private void applyBulkRate(BLECentralSession session) {
+        // Up to 100 ms worth of data can go at once
+        session.getQueue().setBulkRate(mBulkRate, (int) Math.max(session.getMtu(), mBulkRate / 10));
+    }
 
     /**
-     * Sends a MTU size block of data
+     * Sets what the connection goes back to when there's no traffic. Bulk data and bursts of
+     * messages always get BluetoothGatt.CONNECTION_PRIORITY_HIGH.
+     * @param idlePriority BluetoothGatt.CONNECTION_PRIORITY_BALANCED or CONNECTION_PRIORITY_LOW_POWER
+     * @param idleTimeout Milliseconds without traffic before going back to it
      */
-    public synchronized void sendData() {
+    public void setConnectionPriorityPolicy(int idlePriority, long idleTimeout) {
+        mPriorityManager.setIdlePolicy(idlePriority, idleTimeout);
+        mIoHandler.post(mPriorityRunnable);
+    }
 
-        //byte[] data = getAlphabetDataBlock(mMtu);
-        byte[] data = new byte[mMtu];
+    /**
+     * Bulk throughput under every connection priority, since the connection started
+     */
+    public BLETransferMetrics getTransferMetrics() {
+        return mTransferMetrics;
+    }
 
-        final BluetoothGattCharacteristic characteristic = mConnectedGatt
-                .getService(BLEChatProfile.SERVICE_UUID)
-                .getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID);
+    /**
+     * Tells the priority manager about some traffic, and checks the priority if it's not
+     * going to be checked already
+     */
+    private void onTraffic(int trafficClass, int bytes) {
+        long now = SystemClock.uptimeMillis();
+        mPriorityManager.onTraffic(trafficClass, now);
+        if (trafficClass == BLETrafficScheduler.CLASS_BULK) {
+            mTransferMetrics.onBytes(bytes, now);
+        }
+        if (mPriorityManager.getWantedPriority(now) != mPriorityManager.getPriority()) {
+            mIoHandler.removeCallbacks(mPriorityRunnable);
+            mPriorityCheckPending.set(true);
+            mIoHandler.post(mPriorityRunnable);
+        }
+    }
 
-        characteristic.setValue(data);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        int iRetries = 0;
-        while (!mConnectedGatt.writeCharacteristic(characteristic)) {
-            try {
-                if (iRetries > MAX_RETRIES) {
-                    mBleChatEvents.onConnectionError("Couldn't send more data!!");
-                    return;
-                }
-                iRetries++;
-                Log.d(TAG, "Error sending data. Retrying... " + iRetries);
-                // We are in StreamThread thread.... so we can sleep
-                Thread.sleep(BLEChatProfile.SEND_INTERVAL);
-            } catch (InterruptedException ex) {
-                mBleChatEvents.onConnectionError("Interrupted while sleeping!!");
-                return;
+    /**
+     * Applies the priority the manager wants, and schedules the next check
+     */
+    private void updateConnectionPriority() {
+        long now = SystemClock.uptimeMillis();
+        int priority = mPriorityManager.getWantedPriority(now);
+        BLECentralSession primary = mPrimary;
+        BluetoothGatt gatt = (primary == null ? null : primary.getGatt());
+        if (gatt == null) {
+            return;
+        }
+        if (priority != mPriorityManager.getPriority()) {
+            if (gatt.requestConnectionPriority(priority)) {
+                Log.d(TAG, "Connection priority " + priority);
+                mTransferMetrics.onPriorityChanged(priority, now);
+                mPriorityManager.onPriorityChanged(priority, now);
+            } else {
+                // Keeps the old one for a while, so we don't retry right away
+                mPriorityManager.onPriorityRequestFailed(now);
             }
         }
+        long delay = mPriorityManager.getDelay(now);
+        if (delay >= 0 && mPriorityCheckPending.compareAndSet(false, true)) {
+            mIoHandler.postDelayed(mPriorityRunnable, delay);
+        }
+    }
+
+    /**
+     * Sets how many transfer characteristics bulk data is striped over. The Peripheral may
+     * have less of them, so the number actually used is getStreamStripes().
+     * @param stripes 1 to BLEChatProfile.MAX_TRANSFER_STRIPES
+     */
+    public void setStreamStripes(int stripes) {
+        mWantedStripes = stripes;
+        applyStreamStripes();
+    }
+
+    public int getStreamStripes() {
+        return mStriper.getStripes();
+    }
+
+    private void applyStreamStripes() {
+        int stripes = BLETransferStriper.negotiate(mWantedStripes, mAvailableStripes);
+        mStriper.setStripes(stripes);
+        mStreamSender.setReorderTolerance(
+                BLETransferStriper.getReorderTolerance(stripes, mStreamPipeline.getWindow()));
+        Log.d(TAG, "Striping bulk data over " + stripes + " characteristics");
+    }
+
+    /**
+     * Transfer characteristics exposed by the Peripheral. Older ones only have the first.
+     */
+    private static int countTransferStripes(BluetoothGatt gatt) {
+        BluetoothGattService service = (gatt == null ? null : gatt.getService(BLEChatProfile.SERVICE_UUID));
+        if (service == null) {
+            return 1;
+        }
+        int stripes = 0;
+        while (stripes < BLEChatProfile.MAX_TRANSFER_STRIPES && service.getCharacteristic(
+                BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS[stripes]) != null) {
+            stripes++;
+        }
+        return Math.max(1, stripes);
+    }
+
+    /**
+     * Sets how many bulk writes can be queued against the transfer characteristic
+     * @param window
+     */
+    public void setStreamWindow(int window) {
+        mStreamPipeline.setWindow(window);
+        applyStreamStripes();
     }
 
 
@@ -496,27 +1339,14 @@ public class BLECentralHelper {
 
 
     /**
-     * Default BLE MTU is 20
-     */
-    private int mMtu = 20;
-
-    /**
-     * Changes MTU.
-     * This will trigger onMtuChanged() callback
+     * Changes the MTU of the primary Peripheral, see BLECentralSession.changeMtu()
      * @param size
      */
-    public void changeMtu(int size){
-        if (!mConnectedGatt.requestMtu(size)) {
-            Log.d(TAG,"Couldn't set MTU!!");
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mBleChatEvents.onConnectionError("Couldn't set MTU!!");
-                }
-            });
-            return;
+    public void changeMtu(final int size){
+        BLECentralSession primary = mPrimary;
+        if (primary != null) {
+            primary.changeMtu(size);
         }
-        Log.d(TAG, "MTU set to " + size);
     }
 
 
@@ -524,14 +1354,18 @@ public class BLECentralHelper {
      * Sets the final MTU
      */
     public void setMtu(int size){
-        mMtu = size;
+        BLECentralSession primary = mPrimary;
+        if (primary != null) {
+            primary.setMtu(size);
+        }
     };
 
     /**
      * Gets the final MTU
      */
     public int getMtu(){
-        return mMtu;
+        BLECentralSession primary = mPrimary;
+        return (primary == null ? BLEChatProfile.DEFAULT_PAYLOAD_SIZE : primary.getMtu());
     }
 
 
@@ -0,0 +1,632 @@
+package com.example.android.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The GATT connection of a Central to one Peripheral.
+ *
+ * Every session has its own MTU, operation queue, message reassembly and events, so a
+ * Central can chat with several Peripherals at once, see BLECentralHelper.connectSession().
+ * The queues of all the sessions take turns on the radio through a BLERadioScheduler.
+ *
+ * Everything runs on the I/O thread given by the helper. Events for the listener go to the
+ * main thread. Bulk data, files and the RFCOMM Socket are handled by the helper, which gets
+ * what it needs through Host.
+ */
+public class BLECentralSession {
+
+    private static final String TAG = "BLECentralSession";
+
+    /* MTUs we ask for at connect time, in order, until the Peripheral accepts one */
+    private static final int[] MTU_CANDIDATES = { BLEChatProfile.MAX_MTU, 247, 185 };
+
+    /**
+     * What the session tells the helper
+     */
+    interface Host {
+        /**
+         * The Peripheral's services are there, and setup is about to start
+         */
+        void onServicesReady(BLECentralSession session, BluetoothGatt gatt);
+
+        /**
+         * New payload size, from the MTU negotiation or setMtu()
+         */
+        void onPayloadSizeChanged(BLECentralSession session, int payloadSize);
+
+        /**
+         * A packet of the reliable stream arrived, called on the I/O thread
+         */
+        void onStreamPacket(BLECentralSession session, byte[] packet);
+
+        /**
+         * The Peripheral announced its RFCOMM Socket, called on the I/O thread
+         */
+        void onRfcommAddress(BLECentralSession session, String address);
+
+        /**
+         * Some traffic went out, see BLETrafficScheduler
+         */
+        void onTraffic(BLECentralSession session, int trafficClass, int bytes);
+
+        /**
+         * The connection dropped, or couldn't be set up
+         */
+        void onDisconnected(BLECentralSession session);
+    }
+
+    /*
+     * GATT callbacks come on binder threads. They only take what they need and hand it to the
+     * I/O thread, which does all the protocol work. So notifications are never held up by the
+     * UI, and Messages come from a pool, so this doesn't allocate.
+     */
+    private static final int MSG_CONNECTION_STATE = 1;
+    private static final int MSG_SERVICES_DISCOVERED = 2;
+    private static final int MSG_CHARACTERISTIC_READ = 3;
+    private static final int MSG_CHARACTERISTIC_WRITE = 4;
+    private static final int MSG_DESCRIPTOR_WRITE = 5;
+    private static final int MSG_MTU_CHANGED = 6;
+    private static final int MSG_MESSAGE_FRAGMENT = 7;
+    private static final int MSG_RFCOMM_ADDRESS = 8;
+    private static final int MSG_STREAM_PACKET = 9;
+
+    private final BluetoothDevice mDevice;
+    private final BLECentralChatEvents mEvents;
+    private final Host mHost;
+
+    /* Events for the listener go to the main thread */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Handler mIoHandler;
+    /* Only one GATT operation can be outstanding, so all of them go through this queue */
+    private final BLEGattOperationQueue mGattQueue;
+    private volatile BluetoothGatt mGatt;
+    /* Set by close(), so whatever the connection was doing isn't reported anymore */
+    private volatile boolean mClosed = false;
+
+    /* Chat messages are split in MTU sized fragments */
+    private final BLEMessageFragmenter mFragmenter = new BLEMessageFragmenter();
+    private final BLEMessageFragmenter.Reassembler mReassembler = new BLEMessageFragmenter.Reassembler();
+    private final BLEPayloadCodec mCodec = new BLEPayloadCodec();
+    /* Capabilities of BLEChatProfile.CAPABILITIES the Peripheral supports too */
+    private volatile int mCapabilities = 0;
+    /* Set once ours are written, the next Version read is the Peripheral's answer */
+    private volatile boolean mReadingCapabilities = false;
+
+    /**
+     * Payload size of a single write. Default BLE MTU is 23, so 20 bytes of payload
+     */
+    private volatile int mMtu = BLEChatProfile.DEFAULT_PAYLOAD_SIZE;
+
+    private final BLEGattOperationQueue.OperationListener mMessageWriteListener =
+            new BLEGattOperationQueue.OperationListener() {
+        @Override
+        public void onOperationComplete(boolean success) {
+            if (!success && !mClosed) {
+                // The Peripheral will discard the whole message, as there will be a gap
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEvents.onConnectionError("Couldn't send data!!");
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * @param ioLooper Where GATT events and the operation queue run
+     * @param radio Shared with the other sessions
+     */
+    BLECentralSession(BluetoothDevice device, BLECentralChatEvents events, Host host,
+                      Looper ioLooper, BLERadioScheduler radio) {
+        mDevice = device;
+        mEvents = events;
+        mHost = host;
+        mIoHandler = new Handler(ioLooper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_CONNECTION_STATE:
+                        onConnectionStateChange((BluetoothGatt) msg.obj, msg.arg1, msg.arg2);
+                        break;
+                    case MSG_SERVICES_DISCOVERED:
+                        onServicesDiscovered((BluetoothGatt) msg.obj);
+                        break;
+                    case MSG_CHARACTERISTIC_READ:
+                        onCharacteristicRead((BluetoothGattCharacteristic) msg.obj, msg.arg1);
+                        break;
+                    case MSG_CHARACTERISTIC_WRITE:
+                        // Whoever queued the write gets notified through its listener
+                        mGattQueue.complete(BLEGattOperationQueue.OP_WRITE, (UUID) msg.obj,
+                                msg.arg1 == BluetoothGatt.GATT_SUCCESS);
+                        break;
+                    case MSG_DESCRIPTOR_WRITE:
+                        mGattQueue.complete(BLEGattOperationQueue.OP_WRITE_DESCRIPTOR, (UUID) msg.obj,
+                                msg.arg1 == BluetoothGatt.GATT_SUCCESS);
+                        break;
+                    case MSG_MTU_CHANGED:
+                        onMtuChanged(msg.arg2, msg.arg1);
+                        break;
+                    case MSG_MESSAGE_FRAGMENT:
+                        onMessageFragment((byte[]) msg.obj);
+                        break;
+                    case MSG_RFCOMM_ADDRESS:
+                        mHost.onRfcommAddress(BLECentralSession.this, (String) msg.obj);
+                        break;
+                    case MSG_STREAM_PACKET:
+                        mHost.onStreamPacket(BLECentralSession.this, (byte[]) msg.obj);
+                        break;
+                    default:
+                        return false;
+                }
+                return true;
+            }
+        });
+        mGattQueue = new BLEGattOperationQueue(mIoHandler);
+        mGattQueue.setRadioScheduler(radio);
+    }
+
+    /**
+     * Connects to the Peripheral. onConnect() is called once the chat service is set up.
+     */
+    void connect(Context context) {
+        mGatt = mDevice.connectGatt(context, false, mGattCallback);
+        mGattQueue.setGatt(mGatt);
+    }
+
+    /**
+     * Drops the connection. Nothing is reported to the listener.
+     */
+    void close() {
+        mClosed = true;
+        BLEMeshRelay.getInstance().onLinkDown(getAddress());
+        BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        mGattQueue.setGatt(null);
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+        }
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    public boolean isConnected() {
+        return mGattQueue.getGatt() != null;
+    }
+
+    BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    BLEGattOperationQueue getQueue() {
+        return mGattQueue;
+    }
+
+    BLECentralChatEvents getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * Capabilities of BLEChatProfile.CAPABILITIES the Peripheral accepted
+     */
+    int getCapabilities() {
+        return mCapabilities;
+    }
+
+    boolean isCompressionEnabled() {
+        return (mCapabilities & BLEChatProfile.CAPABILITY_DEFLATE) != 0;
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback(){
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mIoHandler.obtainMessage(MSG_CONNECTION_STATE, status, newState, gatt).sendToTarget();
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mIoHandler.obtainMessage(MSG_SERVICES_DISCOVERED, status, 0, gatt).sendToTarget();
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            // Reads go one at a time, so the value stays there until we complete this one
+            mIoHandler.obtainMessage(MSG_CHARACTERISTIC_READ, status, 0, characteristic).sendToTarget();
+        }
+
+        @Override
+        public void onCharacteristicWrite (BluetoothGatt gatt,
+                                    BluetoothGattCharacteristic characteristic,
+                                    int status){
+            mIoHandler.obtainMessage(MSG_CHARACTERISTIC_WRITE, status, 0, characteristic.getUuid()).sendToTarget();
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mIoHandler.obtainMessage(MSG_DESCRIPTOR_WRITE, status, 0,
+                    descriptor.getCharacteristic().getUuid()).sendToTarget();
+        }
+
+        @Override
+        public void onMtuChanged (BluetoothGatt gatt,
+                           int mtu,
+                           int status){
+            mIoHandler.obtainMessage(MSG_MTU_CHANGED, status, mtu).sendToTarget();
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // The value is replaced by the next notification, so it's taken right away
+            UUID uuid = characteristic.getUuid();
+            if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(uuid)) {
+                mIoHandler.obtainMessage(MSG_MESSAGE_FRAGMENT, characteristic.getValue()).sendToTarget();
+            } else if (BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID.equals(uuid)) {
+                mIoHandler.obtainMessage(MSG_RFCOMM_ADDRESS, characteristic.getStringValue(0)).sendToTarget();
+            } else if (BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(uuid)) {
+                mIoHandler.obtainMessage(MSG_STREAM_PACKET, characteristic.getValue()).sendToTarget();
+            }
+        }
+    }; //End BluetoothGattCallback
+
+    private void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        Log.d(TAG, getAddress() + " onConnectionStateChange "
+                +BLEChatProfile.getStatusDescription(status)+" "
+                +BLEChatProfile.getStateDescription(newState));
+
+        if (mClosed) {
+            // Late event of a connection we closed
+            return;
+        }
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mGattQueue.setGatt(null);
+                BLEMeshRelay.getInstance().onLinkDown(getAddress());
+                mHost.onDisconnected(this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEvents.onDisconnect();
+                    }
+                });
+
+            }
+        }else{
+            mGattQueue.setGatt(null);
+            BLEMeshRelay.getInstance().onLinkDown(getAddress());
+            mHost.onDisconnected(this);
+            final int finalStatus = status;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mEvents.onConnectionError("Connection state error! : Error = " + finalStatus);
+                }
+            });
+
+        }
+    }
+
+    private void onServicesDiscovered(BluetoothGatt gatt) {
+        Log.d(TAG, "onServicesDiscovered:");
+
+        for (BluetoothGattService service : gatt.getServices()) {
+            Log.d(TAG, "Service: "+service.getUuid());
+        }
+        // The biggest MTU first, so every message is sent with the biggest frames possible
+        negotiateMtu(0);
+    }
+
+    private void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        // Taken before completing, the next operation may read it again
+        final String value = (status == BluetoothGatt.GATT_SUCCESS ? characteristic.getStringValue(0) : null);
+        // Taken before completing too, the read's listener clears the flag
+        boolean capabilities = mReadingCapabilities
+                && BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid());
+        if (capabilities && value != null) {
+            onPeerCapabilities(characteristic.getValue());
+        }
+        mGattQueue.complete(BLEGattOperationQueue.OP_READ, characteristic.getUuid(),
+                status == BluetoothGatt.GATT_SUCCESS);
+        if (value == null) {
+            return;
+        }
+        if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mEvents.onMessage(value);
+                }
+            });
+        }
+        if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid()) && !capabilities) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mEvents.onVersion(value);
+                }
+            });
+        }
+        if (BLEChatProfile.CHARACTERISTIC_DESC_UUID.equals(characteristic.getUuid())) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mEvents.onDescription(value);
+                }
+            });
+        }
+    }
+
+    /**
+     * The Peripheral answered the capabilities we both support. Older ones only answer the
+     * version, and we keep what every Peripheral taking the write supports.
+     */
+    private void onPeerCapabilities(byte[] value) {
+        int capabilities = BLEChatProfile.parseCapabilities(value);
+        // Not if it didn't take the write
+        if (capabilities >= 0 && mCapabilities != 0) {
+            mCapabilities = BLEChatProfile.CAPABILITIES & capabilities;
+        }
+    }
+
+    private void onMtuChanged(int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            // The ATT header takes 3 bytes of every packet
+            mMtu = mtu - BLEChatProfile.ATT_HEADER_SIZE;
+            mHost.onPayloadSizeChanged(this, mMtu);
+        }
+        // Whoever asked for the MTU change gets notified through its listener
+        mGattQueue.complete(BLEGattOperationQueue.OP_MTU, null, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    private void onMessageFragment(byte[] fragment) {
+        Log.i(TAG, "Notification of message characteristic changed on server.");
+        byte[] message = mReassembler.onFragment(fragment);
+        if (message == null) {
+            return;
+        }
+        final BLEControlMessage msg;
+        try {
+            if (isCompressionEnabled()) {
+                message = mCodec.decode(message);
+            }
+            msg = BLEControlMessage.fromPayload(message);
+        } catch (IOException ex) {
+            Log.w(TAG, "Discarding message: " + ex.toString());
+            return;
+        }
+        if (msg.getType() == BLEControlMessage.TYPE_RELAY
+                && BLEMeshRelay.getInstance().onReceive(getAddress(), msg)) {
+            // The relay shows it, and passes it on
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (msg.getType() == BLEControlMessage.TYPE_TEXT) {
+                    mEvents.onMessage(msg.getText());
+                } else {
+                    mEvents.onControlMessage(msg);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tries every MTU in MTU_CANDIDATES, from the biggest to the smallest, until the
+     * Peripheral accepts one. Then it goes on with the rest of the connection setup.
+     * If none is accepted we stay with the default MTU.
+     */
+    private void negotiateMtu(final int candidate) {
+        if (mGattQueue.getGatt() == null) {
+            // Disconnected meanwhile
+            return;
+        }
+        if (candidate >= MTU_CANDIDATES.length) {
+            Log.d(TAG, "MTU negotiation failed, using default payload size " + mMtu);
+            postMtuChanged(BLECentralChatEvents.MTU_CHANGE_FAILED);
+            setupService();
+            return;
+        }
+        mGattQueue.enqueue(BLEGattOperationQueue.requestMtu(MTU_CANDIDATES[candidate])
+                .setListener(new BLEGattOperationQueue.OperationListener() {
+                    @Override
+                    public void onOperationComplete(boolean success) {
+                        if (!success) {
+                            negotiateMtu(candidate + 1);
+                            return;
+                        }
+                        Log.d(TAG, "MTU negotiated, payload size " + mMtu);
+                        postMtuChanged(BLECentralChatEvents.MTU_CHANGE_SUCCEED);
+                        setupService();
+                    }
+                }));
+    }
+
+    /**
+     * Reads the chat service characteristics and enables notifications
+     */
+    private void setupService() {
+        BluetoothGatt gatt = mGattQueue.getGatt();
+        if (gatt == null) {
+            return;
+        }
+        mHost.onServicesReady(this, gatt);
+        // Setup runs one operation at a time. We are connected once the last one is done.
+        mGattQueue.enqueue(BLEGattOperationQueue.read(BLEChatProfile.CHARACTERISTIC_VERSION_UUID));
+        // Older Peripherals have a read-only Version characteristic, so this write just fails
+        // and we keep sending plain uncompressed text
+        mGattQueue.enqueue(BLEGattOperationQueue.write(BLEChatProfile.CHARACTERISTIC_VERSION_UUID,
+                new byte[]{ (byte) BLEChatProfile.CAPABILITIES }, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+                .setListener(new BLEGattOperationQueue.OperationListener() {
+                    @Override
+                    public void onOperationComplete(boolean success) {
+                        // Every Peripheral taking the write inflates, until it tells us more
+                        mCapabilities = (success ? BLEChatProfile.CAPABILITY_DEFLATE : 0);
+                        mReadingCapabilities = true;
+                    }
+                }));
+        // Read back what the Peripheral supports too
+        mGattQueue.enqueue(BLEGattOperationQueue.read(BLEChatProfile.CHARACTERISTIC_VERSION_UUID)
+                .setListener(new BLEGattOperationQueue.OperationListener() {
+                    @Override
+                    public void onOperationComplete(boolean success) {
+                        mReadingCapabilities = false;
+                        Log.d(TAG, "Capabilities: " + mCapabilities);
+                    }
+                }));
+        mGattQueue.enqueue(BLEGattOperationQueue.read(BLEChatProfile.CHARACTERISTIC_DESC_UUID));
+        mGattQueue.enqueue(BLEGattOperationQueue.enableNotification(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID));
+        mGattQueue.enqueue(BLEGattOperationQueue.enableNotification(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID));
+        mGattQueue.enqueue(BLEGattOperationQueue.enableNotification(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID)
+                .setListener(new BLEGattOperationQueue.OperationListener() {
+                    @Override
+                    public void onOperationComplete(boolean success) {
+                        BLEMeshRelay.getInstance().onLinkUp(getAddress());
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mEvents.onConnect();
+                            }
+                        });
+                    }
+                }));
+    }
+
+    /**
+     * Tells the listener the payload size every sender will use from now on
+     */
+    private void postMtuChanged(final int status) {
+        final int payloadSize = mMtu;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEvents.onMtuChanged(status, payloadSize);
+            }
+        });
+    }
+
+    /**
+     * Sends a message to the Peripheral. Messages bigger than the MTU are split in fragments
+     * which are written one after another, as each write is acknowledged.
+     * Messages go ahead of any bulk data waiting to be written, so chatting during a transfer
+     * only waits for the write in progress.
+     * @param data
+     * @return false if it couldn't be queued, as the session isn't connected
+     */
+    public boolean send(byte[] data) {
+        if (!isConnected()) {
+            Log.w(TAG, "Not connected to " + getAddress());
+            return false;
+        }
+        if (isCompressionEnabled()) {
+            data = mCodec.encode(data);
+        }
+        // The Peripheral reassembles one message at a time, so its fragments are queued at once:
+        // messages sent from other threads (ie: relayed ones) can't get in between
+        List<byte[]> fragments = mFragmenter.fragment(data, mMtu);
+        List<BLEGattOperationQueue.Operation> writes = new ArrayList<>(fragments.size());
+        for (byte[] fragment : fragments) {
+            writes.add(BLEGattOperationQueue.write(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID,
+                    fragment, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+                    .setTrafficClass(BLETrafficScheduler.CLASS_INTERACTIVE)
+                    .setListener(mMessageWriteListener));
+        }
+        mGattQueue.enqueue(writes);
+        mHost.onTraffic(this, BLETrafficScheduler.CLASS_INTERACTIVE, data.length);
+        return true;
+    }
+
+    public boolean send(String msg){
+        return send(BLEControlMessage.text(msg));
+    }
+
+    /**
+     * Sends a control message, as an envelope or as plain text if the Peripheral is too old
+     * @param msg
+     * @return false if it couldn't be queued, or the Peripheral doesn't support it
+     */
+    public boolean send(BLEControlMessage msg){
+        byte[] payload = msg.toPayload(mCapabilities);
+        if (payload == null) {
+            Log.w(TAG, "Peripheral doesn't support " + msg);
+            return false;
+        }
+        return send(payload);
+    }
+
+    /**
+     * Changes MTU. It's already negotiated at connect time, so it's only needed to force a
+     * smaller one.
+     * This will trigger onMtuChanged() callback
+     * @param size
+     */
+    public void changeMtu(final int size){
+        mGattQueue.enqueue(BLEGattOperationQueue.requestMtu(size)
+                .setListener(new BLEGattOperationQueue.OperationListener() {
+                    @Override
+                    public void onOperationComplete(boolean success) {
+                        if (success) {
+                            Log.d(TAG, "MTU set to " + size);
+                            postMtuChanged(BLECentralChatEvents.MTU_CHANGE_SUCCEED);
+                            return;
+                        }
+                        Log.d(TAG,"Couldn't set MTU!!");
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mEvents.onConnectionError("Couldn't set MTU!!");
+                            }
+                        });
+                    }
+                }));
+    }
+
+    /**
+     * Sets the final MTU
+     */
+    public void setMtu(int size){
+        mMtu = size;
+        mHost.onPayloadSizeChanged(this, size);
+    }
+
+    /**
+     * Gets the final MTU
+     */
+    public int getMtu(){
+        return mMtu;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress() + (isConnected() ? "" : " (disconnected)") + ", MTU " + mMtu;
+    }
+}
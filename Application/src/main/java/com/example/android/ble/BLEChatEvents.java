@@ -8,7 +8,7 @@ public interface BLEChatEvents {
     int SENT_FAILED = 1;
 
     void onMessage(String msg);
-    void onData(byte[] data);
+    void onControlMessage(BLEControlMessage msg);
     void onDataStream(byte[] data);
     void onStreamSent(int status);
     void onInfo(String msg);
@@ -3,6 +3,7 @@ package com.example.android.ble;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothProfile;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -18,9 +19,52 @@ public class BLEChatProfile {
     public static UUID DESCRIPTOR_RFCOMM_TRANSFER_UUID = UUID.fromString("42a210d6-b6c5-4f82-a9cc-67d0e1d76a1e");
     public static UUID CHARACTERISTIC_BLE_TRANSFER_UUID = UUID.fromString("482f1096-137b-46cc-8ca8-3457c15cc433");
     public static UUID DESCRIPTOR_BLE_TRANSFER_UUID = UUID.fromString("421ecb34-bb49-4b70-a5ea-042c1f38ec32");
+    /**
+     * Bulk data can be striped over several write-only transfer characteristics, see
+     * BLETransferStriper. Stripe 0 is CHARACTERISTIC_BLE_TRANSFER_UUID, which also carries the
+     * ACKs and the notifications.
+     */
+    public static final UUID[] CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS = {
+            CHARACTERISTIC_BLE_TRANSFER_UUID,
+            UUID.fromString("ab1d4d65-d68e-41a9-b250-d59b56f16aa6"),
+            UUID.fromString("5ea501ed-4025-49a9-b21b-dacd437c0fa6"),
+            UUID.fromString("1c4fb049-39ca-4f60-88f9-c3ab11db64ad"),
+    };
+    public static final int MAX_TRANSFER_STRIPES = CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS.length;
 
     public static final int SEND_INTERVAL = 100;
 
+    /**
+     * Default ATT MTU is 23 bytes, and 3 of them are taken by the ATT header, so
+     * a single write/notification can carry MTU - 3 bytes of payload.
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int ATT_HEADER_SIZE = 3;
+    public static final int DEFAULT_PAYLOAD_SIZE = DEFAULT_MTU - ATT_HEADER_SIZE;
+    /* Biggest MTU Android will negotiate */
+    public static final int MAX_MTU = 517;
+
+    /**
+     * Capabilities the Central writes into the Version characteristic, as a bit mask.
+     * Older Peripherals have a read-only Version characteristic, so a Peripheral accepting
+     * the write supports all of them.
+     */
+    public static final int CAPABILITY_DEFLATE = 0x01;
+    public static final int CAPABILITY_CONTROL_MESSAGES = 0x02;
+    /* RFCOMM files end with a length and hash trailer, see BLEFileSink */
+    public static final int CAPABILITY_FILE_TRAILER = 0x04;
+    /* RFCOMM files go through BLEResumableTransfer, instead of being streamed */
+    public static final int CAPABILITY_RESUMABLE_FILES = 0x08;
+    /* RFCOMM files may also go through BLEBondedTransfer, split between RFCOMM and BLE */
+    public static final int CAPABILITY_BONDED_FILES = 0x10;
+    /* Files announced by a BLE transfer request are saved from the BLE stream */
+    public static final int CAPABILITY_BLE_FILES = 0x20;
+    /* Relayed chat messages, see BLEMeshRouter */
+    public static final int CAPABILITY_RELAY = 0x40;
+    public static final int CAPABILITIES = CAPABILITY_DEFLATE | CAPABILITY_CONTROL_MESSAGES
+            | CAPABILITY_FILE_TRAILER | CAPABILITY_RESUMABLE_FILES | CAPABILITY_BONDED_FILES
+            | CAPABILITY_BLE_FILES | CAPABILITY_RELAY;
+
 
     private static String mVersion = "1";
     private static String mDescription = "BLEChat - Juan Gomez :_AtilA_";
@@ -52,10 +96,49 @@ public class BLEChatProfile {
         }
     }
 
+    /**
+     * @return Stripe of a transfer characteristic, or -1 if it isn't one
+     */
+    public static int getTransferStripe(UUID uuid) {
+        for (int i = 0; i < MAX_TRANSFER_STRIPES; i++) {
+            if (CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS[i].equals(uuid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public static String getVersion(){
         return mVersion;
     }
 
+    /**
+     * Version as a Peripheral answers it once the Central wrote its capabilities: the version
+     * string, a 0 and the capabilities both support. Centrals that never write only get the
+     * version string, as before.
+     */
+    public static byte[] getVersionValue(int capabilities) {
+        byte[] version = mVersion.getBytes();
+        byte[] value = Arrays.copyOf(version, version.length + 2);
+        value[version.length + 1] = (byte) capabilities;
+        return value;
+    }
+
+    /**
+     * @return The capabilities in a Version value, or -1 if it has none
+     */
+    public static int parseCapabilities(byte[] value) {
+        if (value == null) {
+            return -1;
+        }
+        for (int i = 0; i < value.length - 1; i++) {
+            if (value[i] == 0) {
+                return value[i + 1] & CAPABILITIES;
+            }
+        }
+        return -1;
+    }
+
     public static String getDescription(){
         return  mDescription;
     }
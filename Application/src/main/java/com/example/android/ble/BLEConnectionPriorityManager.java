@@ -0,0 +1,146 @@
+package com.example.android.ble;
+
+/**
+ * Decides the connection priority (ie: the connection interval) of the link, from its traffic.
+ *
+ * Bulk data, or a burst of chat messages, asks for PRIORITY_HIGH right away. Once the link
+ * has been idle for the idle timeout, it goes back to the idle priority (PRIORITY_BALANCED or
+ * PRIORITY_LOW_POWER), but only after PRIORITY_HIGH has been kept for at least MIN_DWELL_TIME,
+ * so a link with traffic coming and going doesn't keep renegotiating its interval.
+ *
+ * Priorities have the values of BluetoothGatt.CONNECTION_PRIORITY_*.
+ * This class has no Android dependencies.
+ */
+public class BLEConnectionPriorityManager {
+
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 2000;
+    /* Min time a priority is kept before going down, or before retrying a failed request */
+    public static final long MIN_DWELL_TIME = 1000;
+    /* This many chat messages within BURST_WINDOW are a burst */
+    private static final int BURST_MESSAGES = 4;
+    private static final long BURST_WINDOW = 1000;
+
+    private int mIdlePriority = PRIORITY_BALANCED;
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private int mPriority;
+    private long mLastChange;
+    /* No change at all before this time, after a failed request */
+    private long mHoldUntil;
+    private long mLastActivity;
+    private boolean mBusy;
+    /* When the last BURST_MESSAGES messages were sent (this one included), as a ring */
+    private final long[] mMessageTimes = new long[BURST_MESSAGES];
+    private int mMessageIndex = 0;
+
+    public BLEConnectionPriorityManager() {
+        reset(0);
+    }
+
+    /**
+     * @param idlePriority PRIORITY_BALANCED or PRIORITY_LOW_POWER
+     * @param idleTimeout Milliseconds without traffic before going back to it
+     */
+    public synchronized void setIdlePolicy(int idlePriority, long idleTimeout) {
+        mIdlePriority = idlePriority;
+        mIdleTimeout = Math.max(idleTimeout, 0);
+    }
+
+    /**
+     * Starts over, for a new connection
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void reset(long now) {
+        mPriority = PRIORITY_BALANCED;
+        // The first change doesn't have to wait
+        mLastChange = now - MIN_DWELL_TIME;
+        mHoldUntil = now;
+        mLastActivity = -1;
+        mBusy = false;
+        for (int i = 0; i < mMessageTimes.length; i++) {
+            mMessageTimes[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    /**
+     * Something went through the link
+     * @param trafficClass One of BLETrafficScheduler.CLASS_*
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onTraffic(int trafficClass, long now) {
+        if (trafficClass == BLETrafficScheduler.CLASS_BULK) {
+            mBusy = true;
+        } else if (trafficClass == BLETrafficScheduler.CLASS_INTERACTIVE) {
+            // The oldest of the last BURST_MESSAGES tells whether they came in a burst
+            mMessageTimes[mMessageIndex] = now;
+            mMessageIndex = (mMessageIndex + 1) % mMessageTimes.length;
+            long oldest = mMessageTimes[mMessageIndex];
+            if (now - oldest <= BURST_WINDOW) {
+                mBusy = true;
+            }
+        }
+        if (mBusy) {
+            mLastActivity = now;
+        }
+    }
+
+    /**
+     * Priority the link should have now
+     * @param now Current time, in milliseconds
+     */
+    public synchronized int getWantedPriority(long now) {
+        if (mBusy && now - mLastActivity >= mIdleTimeout) {
+            mBusy = false;
+        }
+        if (now - mHoldUntil < 0) {
+            return mPriority;
+        }
+        // Going up never waits, going down waits for the dwell time
+        if (mBusy) {
+            return PRIORITY_HIGH;
+        }
+        return (now - mLastChange < MIN_DWELL_TIME ? mPriority : mIdlePriority);
+    }
+
+    /**
+     * The link got a new priority
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onPriorityChanged(int priority, long now) {
+        mPriority = priority;
+        mLastChange = now;
+    }
+
+    /**
+     * The link refused the priority we asked for. It's kept for MIN_DWELL_TIME before asking again.
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onPriorityRequestFailed(long now) {
+        mHoldUntil = now + MIN_DWELL_TIME;
+    }
+
+    public synchronized int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Time until getWantedPriority() may change
+     * @param now Current time, in milliseconds
+     * @return -1 if it won't change without more traffic
+     */
+    public synchronized long getDelay(long now) {
+        long hold = mHoldUntil - now;
+        long dwell = Math.max(mLastChange + MIN_DWELL_TIME - now, hold);
+        if (mBusy) {
+            if (mPriority != PRIORITY_HIGH) {
+                return Math.max(hold, 0);
+            }
+            return Math.max(Math.max(dwell, mLastActivity + mIdleTimeout - now), 0);
+        }
+        return (mPriority != mIdlePriority ? Math.max(dwell, 0) : -1);
+    }
+}
@@ -0,0 +1,447 @@
+package com.example.android.ble;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Typed messages exchanged through the Message characteristic, from chat text to the
+ * "/name" and "/send" commands.
+ *
+ * Every message is a small binary envelope:
+ * * [0]  MARKER. Chat text never starts with a NUL character, so this tells envelopes apart
+ *        from the plain text sent by older versions.
+ * * [1]  Version (high nibble) and type (low nibble), see TYPE_*.
+ * * [2..] Fields of the type, in order. Numbers are unsigned varints (7 bits per byte, least
+ *        significant group first), and texts are a varint length followed by UTF-8 bytes.
+ *
+ * Newer versions may only append fields, so decoders ignore any trailing bytes.
+ * This class has no Android dependencies.
+ */
+public class BLEControlMessage {
+
+    public static final int MARKER = 0x00;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 2;
+
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_NAME = 2;
+    public static final int TYPE_TRANSFER_REQUEST = 3;
+    public static final int TYPE_ACK = 4;
+    public static final int TYPE_PROBE = 5;
+    public static final int TYPE_PROBE_REPLY = 6;
+    public static final int TYPE_RELAY = 7;
+
+    public static final int TRANSPORT_RFCOMM = 0;
+    public static final int TRANSPORT_BLE = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private int mType;
+    /* TYPE_TEXT, TYPE_NAME and TYPE_RELAY */
+    private String mText;
+    private byte[] mTextBytes;
+    /* TYPE_TRANSFER_REQUEST. Size is 0 when unknown */
+    private int mTransport;
+    private long mSize;
+    /* TYPE_ACK, TYPE_PROBE, TYPE_PROBE_REPLY and TYPE_RELAY */
+    private long mId;
+    /* TYPE_PROBE and TYPE_PROBE_REPLY. Milliseconds, as taken by the prober */
+    private long mTimestamp;
+    /* TYPE_RELAY. Hops left, and who wrote the message */
+    private int mTtl;
+    private String mOrigin;
+    private byte[] mOriginBytes;
+    /* Read position while decoding */
+    private int mPos;
+
+    /**
+     * Use the static factories, or decode() on a message to reuse
+     */
+    public BLEControlMessage() {
+    }
+
+    private BLEControlMessage(int type) {
+        mType = type;
+    }
+
+    public static BLEControlMessage text(String text) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_TEXT);
+        msg.setText(text);
+        return msg;
+    }
+
+    public static BLEControlMessage name(String name) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_NAME);
+        msg.setText(name);
+        return msg;
+    }
+
+    public static BLEControlMessage transferRequest(int transport, long size) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_TRANSFER_REQUEST);
+        msg.mTransport = transport;
+        msg.mSize = size;
+        return msg;
+    }
+
+    public static BLEControlMessage ack(long id) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_ACK);
+        msg.mId = id;
+        return msg;
+    }
+
+    public static BLEControlMessage probe(long id, long timestamp) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_PROBE);
+        msg.mId = id;
+        msg.mTimestamp = timestamp;
+        return msg;
+    }
+
+    /**
+     * The answer to a probe. It carries the probe timestamp back, so the prober can measure
+     * the round trip time.
+     */
+    public static BLEControlMessage probeReply(BLEControlMessage probe) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_PROBE_REPLY);
+        msg.mId = probe.mId;
+        msg.mTimestamp = probe.mTimestamp;
+        return msg;
+    }
+
+    /**
+     * A chat message going through the mesh, see BLEMeshRouter
+     * @param id Unique for the message, kept by every copy
+     * @param origin Who wrote it
+     * @param ttl Hops it can still go
+     */
+    public static BLEControlMessage relay(long id, String origin, int ttl, String text) {
+        BLEControlMessage msg = new BLEControlMessage(TYPE_RELAY);
+        msg.mId = id;
+        msg.mTtl = ttl;
+        msg.mOrigin = origin;
+        msg.setText(text);
+        return msg;
+    }
+
+    /**
+     * The same relayed message, one hop further
+     */
+    public BLEControlMessage nextHop() {
+        BLEControlMessage msg = relay(mId, mOrigin, mTtl - 1, mText);
+        msg.mTextBytes = mTextBytes;
+        msg.mOriginBytes = mOriginBytes;
+        return msg;
+    }
+
+    private void setText(String text) {
+        mText = text;
+        mTextBytes = null;
+    }
+
+    /**
+     * UTF-8 bytes of the text, only encoded once
+     */
+    private byte[] getTextBytes() {
+        if (mTextBytes == null) {
+            mTextBytes = (mText == null ? EMPTY : mText.getBytes(UTF8));
+        }
+        return mTextBytes;
+    }
+
+    private byte[] getOriginBytes() {
+        if (mOriginBytes == null) {
+            mOriginBytes = (mOrigin == null ? EMPTY : mOrigin.getBytes(UTF8));
+        }
+        return mOriginBytes;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public int getTransport() {
+        return mTransport;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getTtl() {
+        return mTtl;
+    }
+
+    public String getOrigin() {
+        return mOrigin;
+    }
+
+    /**
+     * Whether some data is an envelope, rather than plain text from an older version
+     */
+    public static boolean isControlMessage(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && data[0] == MARKER;
+    }
+
+    /**
+     * Bytes needed by encode()
+     */
+    public int getEncodedSize() {
+        switch (mType) {
+            case TYPE_TEXT:
+            case TYPE_NAME:
+                return HEADER_SIZE + varintSize(getTextBytes().length) + getTextBytes().length;
+            case TYPE_TRANSFER_REQUEST:
+                return HEADER_SIZE + varintSize(mTransport) + varintSize(mSize);
+            case TYPE_ACK:
+                return HEADER_SIZE + varintSize(mId);
+            case TYPE_PROBE:
+            case TYPE_PROBE_REPLY:
+                return HEADER_SIZE + varintSize(mId) + varintSize(mTimestamp);
+            case TYPE_RELAY:
+                return HEADER_SIZE + varintSize(mId) + varintSize(mTtl)
+                        + varintSize(getOriginBytes().length) + getOriginBytes().length
+                        + varintSize(getTextBytes().length) + getTextBytes().length;
+            default:
+                throw new IllegalStateException("Unknown type " + mType);
+        }
+    }
+
+    /**
+     * Writes the message into a buffer with at least getEncodedSize() free bytes
+     * @param out
+     * @param offset
+     * @return Bytes written
+     */
+    public int encode(byte[] out, int offset) {
+        int pos = offset;
+        out[pos++] = (byte) MARKER;
+        out[pos++] = (byte) ((VERSION << 4) | mType);
+        switch (mType) {
+            case TYPE_TEXT:
+            case TYPE_NAME:
+                byte[] text = getTextBytes();
+                pos = writeVarint(out, pos, text.length);
+                System.arraycopy(text, 0, out, pos, text.length);
+                pos += text.length;
+                break;
+            case TYPE_TRANSFER_REQUEST:
+                pos = writeVarint(out, pos, mTransport);
+                pos = writeVarint(out, pos, mSize);
+                break;
+            case TYPE_ACK:
+                pos = writeVarint(out, pos, mId);
+                break;
+            case TYPE_PROBE:
+            case TYPE_PROBE_REPLY:
+                pos = writeVarint(out, pos, mId);
+                pos = writeVarint(out, pos, mTimestamp);
+                break;
+            case TYPE_RELAY:
+                pos = writeVarint(out, pos, mId);
+                pos = writeVarint(out, pos, mTtl);
+                pos = writeBytes(out, pos, getOriginBytes());
+                pos = writeBytes(out, pos, getTextBytes());
+                break;
+            default:
+                throw new IllegalStateException("Unknown type " + mType);
+        }
+        return pos - offset;
+    }
+
+    public byte[] toByteArray() {
+        byte[] out = new byte[getEncodedSize()];
+        encode(out, 0);
+        return out;
+    }
+
+    /**
+     * Decodes a whole envelope into a new message
+     * @throws IOException If it isn't a valid envelope
+     */
+    public static BLEControlMessage decode(byte[] data) throws IOException {
+        BLEControlMessage msg = new BLEControlMessage();
+        msg.decode(data, 0, data.length);
+        return msg;
+    }
+
+    /**
+     * Decodes an envelope into this message, overwriting whatever it had.
+     * Only texts allocate memory.
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException If it isn't a valid envelope
+     */
+    public void decode(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (length < HEADER_SIZE || data[offset] != MARKER) {
+            throw new IOException("Not a control message");
+        }
+        int version = (data[offset + 1] & 0xF0) >> 4;
+        if (version == 0) {
+            throw new IOException("Unsupported version " + version);
+        }
+        mType = data[offset + 1] & 0x0F;
+        mText = null;
+        mTextBytes = null;
+        mOrigin = null;
+        mOriginBytes = null;
+        mTransport = mTtl = 0;
+        mSize = mId = mTimestamp = 0;
+
+        mPos = offset + HEADER_SIZE;
+        switch (mType) {
+            case TYPE_TEXT:
+            case TYPE_NAME:
+                mText = readString(data, end);
+                break;
+            case TYPE_TRANSFER_REQUEST:
+                mTransport = (int) readVarint(data, end);
+                mSize = readVarint(data, end);
+                break;
+            case TYPE_ACK:
+                mId = readVarint(data, end);
+                break;
+            case TYPE_PROBE:
+            case TYPE_PROBE_REPLY:
+                mId = readVarint(data, end);
+                mTimestamp = readVarint(data, end);
+                break;
+            case TYPE_RELAY:
+                mId = readVarint(data, end);
+                mTtl = (int) readVarint(data, end);
+                mOrigin = readString(data, end);
+                mText = readString(data, end);
+                break;
+            default:
+                throw new IOException("Unknown type " + mType);
+        }
+    }
+
+    private String readString(byte[] data, int end) throws IOException {
+        int length = (int) readVarint(data, end);
+        if (length < 0 || length > end - mPos) {
+            throw new IOException("Truncated text");
+        }
+        String text = new String(data, mPos, length, UTF8);
+        mPos += length;
+        return text;
+    }
+
+    private long readVarint(byte[] data, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPos >= end) {
+                throw new IOException("Truncated varint");
+            }
+            int b = data[mPos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeBytes(byte[] out, int pos, byte[] bytes) {
+        pos = writeVarint(out, pos, bytes.length);
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the message for a peer
+     * @param capabilities What the peer supports, see BLEChatProfile.CAPABILITIES
+     * @return An envelope, or plain UTF-8 text for older peers. null if older peers have no
+     * such message.
+     */
+    public byte[] toPayload(int capabilities) {
+        if (mType == TYPE_RELAY && (capabilities & BLEChatProfile.CAPABILITY_RELAY) == 0) {
+            // Peers which can't relay just get the text
+            return text(mOrigin + ": " + mText).toPayload(capabilities);
+        }
+        if ((capabilities & BLEChatProfile.CAPABILITY_CONTROL_MESSAGES) != 0) {
+            return toByteArray();
+        }
+        String legacy = toLegacyText();
+        return (legacy == null ? null : legacy.getBytes(UTF8));
+    }
+
+    /**
+     * Decodes a payload received from a peer, whether it's an envelope or plain text from an
+     * older version
+     * @throws IOException If it's a corrupted envelope
+     */
+    public static BLEControlMessage fromPayload(byte[] payload) throws IOException {
+        if (isControlMessage(payload)) {
+            return decode(payload);
+        }
+        return fromLegacyText(new String(payload, UTF8));
+    }
+
+    /**
+     * The plain text older versions understand, for peers which don't support envelopes
+     * @return null if older versions have no such message
+     */
+    public String toLegacyText() {
+        switch (mType) {
+            case TYPE_TEXT:
+                return mText;
+            case TYPE_NAME:
+                return "/name " + mText;
+            case TYPE_TRANSFER_REQUEST:
+                return (mTransport == TRANSPORT_RFCOMM ? "/send" : null);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Turns plain text from an older version into a message
+     */
+    public static BLEControlMessage fromLegacyText(String text) {
+        if (text.startsWith("/name ")) {
+            return name(text.substring("/name ".length()));
+        } else if (text.equals("/send") || text.startsWith("/send ")) {
+            return transferRequest(TRANSPORT_RFCOMM, 0);
+        }
+        return text(text);
+    }
+
+    @Override
+    public String toString() {
+        return "BLEControlMessage{type=" + mType + ", text=" + mText + ", transport=" + mTransport
+                + ", size=" + mSize + ", id=" + mId + ", timestamp=" + mTimestamp
+                + ", ttl=" + mTtl + ", origin=" + mOrigin + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.ble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes a received file to disk, as it arrives.
+ *
+ * Data goes to a temporary ".part" file next to the target through a FileChannel, and the
+ * target only shows up once the file is complete, see finish(). The caller is expected to reuse
+ * the same buffer for every write(), so receiving a file costs a copy per byte but no
+ * allocations.
+ *
+ * Senders which negotiated BLEChatProfile.CAPABILITY_FILE_TRAILER end the file with a trailer:
+ * * [0..7]  Length of the file, big endian.
+ * * [8..39] SHA-256 of the file.
+ * The stream has no length up front, so the last TRAILER_SIZE bytes are always held back until
+ * the end, when they are checked against what was written.
+ *
+ * This class has no Android dependencies.
+ */
+public class BLEFileSink {
+
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_SIZE = 32;
+    public static final int TRAILER_SIZE = 8 + HASH_SIZE;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final File mTarget;
+    private final File mPartFile;
+    private final boolean mExpectTrailer;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MessageDigest mDigest;
+
+    /* Last bytes seen, which may be the trailer */
+    private final byte[] mTail = new byte[TRAILER_SIZE];
+    private final ByteBuffer mTailBuffer = ByteBuffer.wrap(mTail);
+    private int mTailLength = 0;
+
+    /* Wrapper of the last buffer passed to write(), so it's only wrapped once */
+    private byte[] mWrappedArray;
+    private ByteBuffer mWrappedBuffer;
+
+    private long mBytesWritten = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param target Where the file will be once complete. It's replaced if it already exists.
+     * @param expectTrailer Whether the sender ends the file with a trailer
+     * @throws IOException If the temporary file can't be created
+     */
+    public BLEFileSink(File target, boolean expectTrailer) throws IOException {
+        mTarget = target;
+        mPartFile = new File(target.getPath() + PART_SUFFIX);
+        mExpectTrailer = expectTrailer;
+        mDigest = newDigest();
+        mFile = new RandomAccessFile(mPartFile, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.truncate(0);
+    }
+
+    /**
+     * Appends received bytes
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (!mExpectTrailer) {
+            commit(wrap(buffer), offset, length);
+            return;
+        }
+        // Everything but the last TRAILER_SIZE bytes seen so far is part of the file
+        int toCommit = mTailLength + length - TRAILER_SIZE;
+        if (toCommit > 0) {
+            int fromTail = Math.min(toCommit, mTailLength);
+            if (fromTail > 0) {
+                commit(mTailBuffer, 0, fromTail);
+                System.arraycopy(mTail, fromTail, mTail, 0, mTailLength - fromTail);
+                mTailLength -= fromTail;
+            }
+            int fromBuffer = toCommit - fromTail;
+            if (fromBuffer > 0) {
+                commit(wrap(buffer), offset, fromBuffer);
+                offset += fromBuffer;
+                length -= fromBuffer;
+            }
+        }
+        System.arraycopy(buffer, offset, mTail, mTailLength, length);
+        mTailLength += length;
+    }
+
+    /**
+     * Checks the trailer (if any), and moves the file to its target
+     * @return The target file
+     * @throws IOException If the file is incomplete or corrupted. It's deleted in that case.
+     */
+    public File finish() throws IOException {
+        try {
+            if (mExpectTrailer) {
+                checkTrailer();
+            }
+            mChannel.force(true);
+            close();
+            if (mTarget.exists() && !mTarget.delete()) {
+                throw new IOException("Couldn't replace " + mTarget);
+            }
+            if (!mPartFile.renameTo(mTarget)) {
+                throw new IOException("Couldn't rename " + mPartFile + " to " + mTarget);
+            }
+            return mTarget;
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Drops the file received so far
+     */
+    public void abort() {
+        try {
+            close();
+        } catch (IOException ex) {
+            // Nothing to do, it's going away anyway
+        }
+        mPartFile.delete();
+    }
+
+    /**
+     * Bytes of the file written so far, not counting the trailer
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mFile.close();
+        }
+    }
+
+    private ByteBuffer wrap(byte[] buffer) {
+        if (buffer != mWrappedArray) {
+            mWrappedArray = buffer;
+            mWrappedBuffer = ByteBuffer.wrap(buffer);
+        }
+        return mWrappedBuffer;
+    }
+
+    private void commit(ByteBuffer buffer, int offset, int length) throws IOException {
+        mDigest.update(buffer.array(), offset, length);
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+        mBytesWritten += length;
+    }
+
+    private void checkTrailer() throws IOException {
+        if (mTailLength < TRAILER_SIZE) {
+            throw new IOException("File truncated, no trailer");
+        }
+        long length = 0;
+        for (int i = 0; i < 8; i++) {
+            length = (length << 8) | (mTail[i] & 0xFF);
+        }
+        if (length != mBytesWritten) {
+            // A truncated stream ends up here too, with some file bytes taken as the trailer
+            throw new IOException("File length doesn't match, got " + mBytesWritten + " bytes");
+        }
+        byte[] hash = new byte[HASH_SIZE];
+        System.arraycopy(mTail, 8, hash, 0, HASH_SIZE);
+        if (!MessageDigest.isEqual(hash, mDigest.digest())) {
+            throw new IOException("File corrupted, hash doesn't match");
+        }
+    }
+
+    /**
+     * Digest for the trailer of a file being sent. Feed it the whole file.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Ends a file being sent with its trailer
+     * @param out
+     * @param length Bytes of the file
+     * @param digest The digest fed with the whole file
+     * @throws IOException
+     */
+    public static void writeTrailer(OutputStream out, long length, MessageDigest digest) throws IOException {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        for (int i = 7; i >= 0; i--) {
+            trailer[i] = (byte) length;
+            length >>>= 8;
+        }
+        System.arraycopy(digest.digest(), 0, trailer, 8, HASH_SIZE);
+        out.write(trailer);
+    }
+}
@@ -0,0 +1,560 @@
+package com.example.android.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Android only allows one outstanding GATT operation per connection, any other call made
+ * before its callback arrives is dropped (the method just returns false).
+ * This queue runs reads, writes, descriptor writes, MTU requests and notification enables
+ * strictly one at a time. Each operation completes from its matching BluetoothGattCallback
+ * method (see complete()) or when its own timeout expires.
+ *
+ * Characteristics are looked up once per connection, and bulk writes can use recycled
+ * operations (see obtainWrite()), so a steady stream of writes doesn't allocate anything.
+ *
+ * Pending operations are picked by traffic class (see BLETrafficScheduler), so a chat message
+ * only waits for the operation in progress, not for a window of bulk writes.
+ *
+ * With several connections, their queues take turns on the radio, see setRadioScheduler().
+ */
+public class BLEGattOperationQueue {
+
+    private static final String TAG = "BLEGattOperationQueue";
+
+    public static final int OP_READ = 0;
+    public static final int OP_WRITE = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2;
+    public static final int OP_MTU = 3;
+    public static final int OP_ENABLE_NOTIFICATION = 4;
+
+    /* Standard Client Characteristic Configuration descriptor */
+    public static final UUID CLIENT_CONFIG_DESCRIPTOR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final long DEFAULT_TIMEOUT = 5000;
+    private static final long WRITE_NO_RESPONSE_TIMEOUT = 1000;
+
+    /* What an Operation.execute() call can end up with */
+    private static final int EXECUTE_PENDING = 0;
+    private static final int EXECUTE_DONE = 1;
+    private static final int EXECUTE_FAILED = 2;
+
+    /**
+     * Gets notified when an operation finishes, successfully or not
+     */
+    public interface OperationListener {
+        void onOperationComplete(boolean success);
+    }
+
+    /**
+     * A single GATT operation
+     */
+    public abstract static class Operation implements BLETrafficScheduler.Item {
+        final int mType;
+        UUID mCharacteristicUuid;
+        long mTimeout;
+        OperationListener mListener;
+        int mTrafficClass = BLETrafficScheduler.CLASS_CONTROL;
+
+        Operation(int type, UUID characteristicUuid, long timeout) {
+            mType = type;
+            mCharacteristicUuid = characteristicUuid;
+            mTimeout = timeout;
+        }
+
+        /**
+         * Sets who will be notified once this operation finishes
+         */
+        public Operation setListener(OperationListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * Sets the traffic class, CLASS_CONTROL by default
+         * @param trafficClass One of BLETrafficScheduler.CLASS_*
+         */
+        public Operation setTrafficClass(int trafficClass) {
+            mTrafficClass = trafficClass;
+            return this;
+        }
+
+        @Override
+        public int getTrafficClass() {
+            return mTrafficClass;
+        }
+
+        @Override
+        public int getSize() {
+            return 0;
+        }
+
+        /**
+         * Whether a callback of the given type and characteristic finishes this operation.
+         * Notification enables finish when their descriptor is written.
+         */
+        boolean matches(int type, UUID characteristicUuid) {
+            boolean sameType = (type == mType
+                    || (type == OP_WRITE_DESCRIPTOR && mType == OP_ENABLE_NOTIFICATION));
+            return sameType && (characteristicUuid == null || mCharacteristicUuid == null
+                    || characteristicUuid.equals(mCharacteristicUuid));
+        }
+
+        /**
+         * Starts the operation
+         * @param queue Where characteristics are looked up
+         * @return EXECUTE_PENDING if we have to wait for a callback
+         */
+        abstract int execute(BLEGattOperationQueue queue, BluetoothGatt gatt);
+
+        /**
+         * Called once the operation is finished and its listener notified
+         */
+        void recycle(BLEGattOperationQueue queue) {
+        }
+    }
+
+    /**
+     * A write which goes back to the queue once finished, see obtainWrite()
+     */
+    private static class RecycledWriteOperation extends Operation {
+        byte[] mValue;
+        int mWriteType;
+        BLEBufferPool mPool;
+
+        RecycledWriteOperation() {
+            super(OP_WRITE, null, DEFAULT_TIMEOUT);
+        }
+
+        @Override
+        int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+            return executeWrite(queue, gatt, mCharacteristicUuid, mValue, mWriteType);
+        }
+
+        @Override
+        public int getSize() {
+            return mValue.length;
+        }
+
+        @Override
+        void recycle(BLEGattOperationQueue queue) {
+            if (mPool != null) {
+                mPool.release(mValue);
+            }
+            mValue = null;
+            mPool = null;
+            mListener = null;
+            mTrafficClass = BLETrafficScheduler.CLASS_CONTROL;
+            queue.mFreeWrites.push(this);
+        }
+    }
+
+    private final Handler mHandler;
+    private final BLETrafficScheduler<Operation> mQueue = new BLETrafficScheduler<>();
+    private BLERadioScheduler mRadio;
+    private BluetoothGatt mGatt;
+    private Operation mCurrent;
+    /* Characteristics of the chat service found so far on this connection */
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+    /* Guarded by this */
+    private final ArrayDeque<RecycledWriteOperation> mFreeWrites = new ArrayDeque<>();
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Operation timedOut;
+            synchronized (BLEGattOperationQueue.this) {
+                timedOut = mCurrent;
+            }
+            if (timedOut != null) {
+                Log.w(TAG, "Operation " + timedOut.mType + " timed out");
+                finish(timedOut, false);
+            }
+        }
+    };
+
+    /* Runs next() once bulk writes are allowed again, see setBulkRate() */
+    private final Runnable mNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+
+    /* Back to next() once the radio scheduler gives us a turn */
+    private final BLERadioScheduler.Client mRadioClient = new BLERadioScheduler.Client() {
+        @Override
+        public void onTurn() {
+            mHandler.post(mTurnRunnable);
+        }
+    };
+
+    private final Runnable mTurnRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean busy;
+            synchronized (BLEGattOperationQueue.this) {
+                busy = (mCurrent != null || mQueue.isEmpty());
+            }
+            if (busy) {
+                // Nothing to do with the turn, or someone else started meanwhile
+                mRadio.cancel(mRadioClient);
+            } else {
+                next();
+            }
+        }
+    };
+
+    /**
+     * @param handler Where timeouts are run
+     */
+    public BLEGattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Sets the connection operations will be run on. Anything pending is dropped.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        clear();
+        synchronized (this) {
+            mGatt = gatt;
+            mCharacteristics.clear();
+        }
+    }
+
+    public synchronized BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    /**
+     * Makes every operation wait for a turn of the radio, shared with the queues of the other
+     * connections. Must be set before anything is queued.
+     */
+    public void setRadioScheduler(BLERadioScheduler radio) {
+        mRadio = radio;
+    }
+
+    /**
+     * Queues an operation. It will run once the operation in progress is finished, after the
+     * ones of the same or higher traffic class queued before it.
+     */
+    public void enqueue(Operation op) {
+        synchronized (this) {
+            mQueue.offer(op);
+        }
+        next();
+    }
+
+    /**
+     * Queues several operations at once, so nothing queued from another thread of the same
+     * traffic class gets in between them
+     */
+    public void enqueue(List<Operation> ops) {
+        synchronized (this) {
+            for (Operation op : ops) {
+                mQueue.offer(op);
+            }
+        }
+        next();
+    }
+
+    /**
+     * Caps the bandwidth of CLASS_BULK operations
+     * @param bytesPerSecond 0 for no cap
+     * @param burst Bytes that can go at once after some idle time
+     */
+    public void setBulkRate(long bytesPerSecond, int burst) {
+        mQueue.setBulkRate(bytesPerSecond, burst);
+        next();
+    }
+
+    /**
+     * Must be called from every BluetoothGattCallback method that finishes an operation.
+     * @param type One of OP_*
+     * @param characteristicUuid Characteristic the callback refers to, or null
+     * @param success
+     */
+    public void complete(int type, UUID characteristicUuid, boolean success) {
+        Operation op;
+        synchronized (this) {
+            op = mCurrent;
+        }
+        if (op == null || !op.matches(type, characteristicUuid)) {
+            // A callback for something we didn't ask for, or that already timed out
+            Log.d(TAG, "Unexpected completion of operation " + type);
+            return;
+        }
+        finish(op, success);
+    }
+
+    /**
+     * Drops all pending operations. Their listeners are told they failed.
+     */
+    public void clear() {
+        List<Operation> dropped;
+        boolean running;
+        synchronized (this) {
+            dropped = mQueue.clear();
+            running = (mCurrent != null);
+            if (running) {
+                dropped.add(0, mCurrent);
+                mCurrent = null;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mHandler.removeCallbacks(mNextRunnable);
+        }
+        if (mRadio != null) {
+            if (running) {
+                mRadio.release(mRadioClient);
+            }
+            mRadio.cancel(mRadioClient);
+        }
+        for (Operation op : dropped) {
+            if (op.mListener != null) {
+                op.mListener.onOperationComplete(false);
+            }
+            recycle(op);
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mQueue.isEmpty();
+    }
+
+    private void finish(Operation op, boolean success) {
+        synchronized (this) {
+            if (mCurrent != op) {
+                return;
+            }
+            mCurrent = null;
+            mHandler.removeCallbacks(mTimeoutRunnable);
+        }
+        releaseRadio();
+        if (op.mListener != null) {
+            op.mListener.onOperationComplete(success);
+        }
+        recycle(op);
+        next();
+    }
+
+    private void releaseRadio() {
+        if (mRadio != null) {
+            mRadio.release(mRadioClient);
+        }
+    }
+
+    private synchronized void recycle(Operation op) {
+        op.recycle(this);
+    }
+
+    /**
+     * Starts the next operation, unless there's one in progress
+     */
+    private void next() {
+        while (true) {
+            Operation op;
+            int result;
+            int trafficClass;
+            synchronized (this) {
+                if (mCurrent != null || mQueue.isEmpty()) {
+                    return;
+                }
+                trafficClass = mQueue.peekClass();
+            }
+            if (mRadio != null && !mRadio.acquire(mRadioClient, trafficClass)) {
+                // mTurnRunnable brings us back
+                return;
+            }
+            synchronized (this) {
+                long now = SystemClock.uptimeMillis();
+                op = (mCurrent != null ? null : mQueue.poll(now));
+                if (op == null) {
+                    releaseRadio();
+                    if (mCurrent == null && !mQueue.isEmpty()) {
+                        // Only bulk writes left, and they are over their rate
+                        mHandler.removeCallbacks(mNextRunnable);
+                        mHandler.postDelayed(mNextRunnable, Math.max(1, mQueue.getDelay(now)));
+                    }
+                    return;
+                }
+                mCurrent = op;
+                result = (mGatt == null ? EXECUTE_FAILED : op.execute(this, mGatt));
+                if (result == EXECUTE_PENDING) {
+                    mHandler.postDelayed(mTimeoutRunnable, op.mTimeout);
+                    return;
+                }
+                mCurrent = null;
+            }
+            releaseRadio();
+            if (result == EXECUTE_FAILED) {
+                Log.w(TAG, "Couldn't start operation " + op.mType);
+            }
+            if (op.mListener != null) {
+                op.mListener.onOperationComplete(result == EXECUTE_DONE);
+            }
+            recycle(op);
+        }
+    }
+
+    /**
+     * Looks up a characteristic of the chat service, only the first time it's used on this
+     * connection. Must be called holding the lock.
+     */
+    private BluetoothGattCharacteristic getCharacteristic(BluetoothGatt gatt, UUID uuid) {
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(uuid);
+        if (characteristic == null) {
+            BluetoothGattService service = gatt.getService(BLEChatProfile.SERVICE_UUID);
+            characteristic = (service == null ? null : service.getCharacteristic(uuid));
+            if (characteristic != null) {
+                // Services may not be discovered yet, so only what we find is cached
+                mCharacteristics.put(uuid, characteristic);
+            }
+        }
+        return characteristic;
+    }
+
+    private static int executeWrite(BLEGattOperationQueue queue, BluetoothGatt gatt, UUID uuid,
+                                    byte[] value, int writeType) {
+        BluetoothGattCharacteristic characteristic = queue.getCharacteristic(gatt, uuid);
+        if (characteristic == null) {
+            return EXECUTE_FAILED;
+        }
+        if (characteristic.getWriteType() != writeType) {
+            characteristic.setWriteType(writeType);
+        }
+        characteristic.setValue(value);
+        return (gatt.writeCharacteristic(characteristic) ? EXECUTE_PENDING : EXECUTE_FAILED);
+    }
+
+    /**
+     * Like write(), but the operation comes from a pool and goes back to it once finished.
+     * It must be enqueued right away, and not touched after that.
+     * @param characteristicUuid
+     * @param value
+     * @param writeType WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE
+     * @param pool If not null, value is given back to it once the operation is finished
+     */
+    public Operation obtainWrite(UUID characteristicUuid, byte[] value, int writeType,
+                                 BLEBufferPool pool) {
+        RecycledWriteOperation op;
+        synchronized (this) {
+            op = mFreeWrites.poll();
+        }
+        if (op == null) {
+            op = new RecycledWriteOperation();
+        }
+        op.mCharacteristicUuid = characteristicUuid;
+        op.mValue = value;
+        op.mWriteType = writeType;
+        op.mPool = pool;
+        op.mTimeout = (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                ? WRITE_NO_RESPONSE_TIMEOUT : DEFAULT_TIMEOUT);
+        return op;
+    }
+
+    /**
+     * Reads a characteristic of the chat service. Completes on onCharacteristicRead()
+     */
+    public static Operation read(UUID characteristicUuid) {
+        return new Operation(OP_READ, characteristicUuid, DEFAULT_TIMEOUT) {
+            @Override
+            int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+                BluetoothGattCharacteristic characteristic = queue.getCharacteristic(gatt, mCharacteristicUuid);
+                if (characteristic == null || !gatt.readCharacteristic(characteristic)) {
+                    return EXECUTE_FAILED;
+                }
+                return EXECUTE_PENDING;
+            }
+        };
+    }
+
+    /**
+     * Writes a characteristic of the chat service. Completes on onCharacteristicWrite()
+     * @param characteristicUuid
+     * @param value
+     * @param writeType WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE
+     */
+    public static Operation write(UUID characteristicUuid, final byte[] value, final int writeType) {
+        long timeout = (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                ? WRITE_NO_RESPONSE_TIMEOUT : DEFAULT_TIMEOUT);
+        return new Operation(OP_WRITE, characteristicUuid, timeout) {
+            @Override
+            int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+                return executeWrite(queue, gatt, mCharacteristicUuid, value, writeType);
+            }
+
+            @Override
+            public int getSize() {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Writes a descriptor of a characteristic of the chat service. Completes on onDescriptorWrite()
+     */
+    public static Operation writeDescriptor(UUID characteristicUuid, final UUID descriptorUuid,
+                                            final byte[] value) {
+        return new Operation(OP_WRITE_DESCRIPTOR, characteristicUuid, DEFAULT_TIMEOUT) {
+            @Override
+            int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+                BluetoothGattCharacteristic characteristic = queue.getCharacteristic(gatt, mCharacteristicUuid);
+                BluetoothGattDescriptor descriptor = (characteristic == null ? null
+                        : characteristic.getDescriptor(descriptorUuid));
+                if (descriptor == null) {
+                    return EXECUTE_FAILED;
+                }
+                descriptor.setValue(value);
+                return (gatt.writeDescriptor(descriptor) ? EXECUTE_PENDING : EXECUTE_FAILED);
+            }
+        };
+    }
+
+    /**
+     * Asks for a new MTU. Completes on onMtuChanged()
+     */
+    public static Operation requestMtu(final int mtu) {
+        return new Operation(OP_MTU, null, DEFAULT_TIMEOUT) {
+            @Override
+            int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+                return (gatt.requestMtu(mtu) ? EXECUTE_PENDING : EXECUTE_FAILED);
+            }
+        };
+    }
+
+    /**
+     * Enables notifications of a characteristic of the chat service.
+     * If the characteristic has a Client Characteristic Configuration descriptor it is written
+     * as well, and the operation completes on onDescriptorWrite(). Otherwise it completes
+     * right away, as there's nothing to wait for.
+     */
+    public static Operation enableNotification(UUID characteristicUuid) {
+        return new Operation(OP_ENABLE_NOTIFICATION, characteristicUuid, DEFAULT_TIMEOUT) {
+            @Override
+            int execute(BLEGattOperationQueue queue, BluetoothGatt gatt) {
+                BluetoothGattCharacteristic characteristic = queue.getCharacteristic(gatt, mCharacteristicUuid);
+                if (characteristic == null || !gatt.setCharacteristicNotification(characteristic, true)) {
+                    return EXECUTE_FAILED;
+                }
+                BluetoothGattDescriptor config = characteristic.getDescriptor(CLIENT_CONFIG_DESCRIPTOR_UUID);
+                if (config == null) {
+                    return EXECUTE_DONE;
+                }
+                config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                return (gatt.writeDescriptor(config) ? EXECUTE_PENDING : EXECUTE_FAILED);
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.ble;
+
+import java.util.Arrays;
+
+/**
+ * Listeners which can be notified from any thread, while others register and unregister.
+ *
+ * The listeners are kept in an array which is copied on every change (copy-on-write), so a
+ * dispatch just walks the array it found when it started: no locks, no allocations, and
+ * no ConcurrentModificationException. Changes are rare, dispatches are not.
+ *
+ * Events are prebuilt calls, see Event.
+ * This class has no Android dependencies.
+ */
+public class BLEListenerList<L> {
+
+    /**
+     * A call on a listener, ie: "onMessage(data)". Keep them in constants, so dispatching
+     * doesn't create one every time.
+     */
+    public interface Event<L, T> {
+        void dispatch(L listener, T data);
+    }
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private volatile Object[] mListeners = EMPTY;
+
+    /**
+     * Adds a listener, unless it's already there
+     */
+    public synchronized void add(L listener) {
+        Object[] listeners = mListeners;
+        if (indexOf(listeners, listener) >= 0) {
+            return;
+        }
+        Object[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        mListeners = updated;
+    }
+
+    public synchronized void remove(L listener) {
+        Object[] listeners = mListeners;
+        int index = indexOf(listeners, listener);
+        if (index < 0) {
+            return;
+        }
+        Object[] updated = new Object[listeners.length - 1];
+        System.arraycopy(listeners, 0, updated, 0, index);
+        System.arraycopy(listeners, index + 1, updated, index, updated.length - index);
+        mListeners = updated;
+    }
+
+    /**
+     * Calls every listener registered when the dispatch starts
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void dispatch(Event<L, T> event, T data) {
+        Object[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            event.dispatch((L) listeners[i], data);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
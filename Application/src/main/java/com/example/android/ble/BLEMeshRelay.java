@@ -0,0 +1,185 @@
+package com.example.android.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs a BLEMeshRouter over every BLE link of this device: the Peripherals connected through
+ * BLECentralHelper sessions, and the Centrals connected to BLEPeripheralHelper.
+ *
+ * The helpers report their links and hand over the TYPE_RELAY messages they get. While the
+ * relay is stopped they don't, and relayed messages are shown as any other control message.
+ * The router's timers run on the main thread.
+ */
+public class BLEMeshRelay {
+
+    private static final String TAG = "BLEMeshRelay";
+
+    /**
+     * Gets the messages relayed to this device, on the main thread
+     */
+    public interface Listener {
+        void onRelayedMessage(String origin, String text);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile BLEMeshRouter mRouter;
+    private volatile Listener mListener;
+
+    private static BLEMeshRelay instance = new BLEMeshRelay();
+    private BLEMeshRelay(){}
+    public static BLEMeshRelay getInstance(){
+        if(instance == null){
+            synchronized (BLEMeshRelay.class){
+                if(instance == null){
+                    instance = new BLEMeshRelay();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Sends messages through whichever helper has the link
+     */
+    private final BLEMeshRouter.Transport mTransport = new BLEMeshRouter.Transport() {
+        @Override
+        public boolean send(String link, BLEControlMessage msg) {
+            BLECentralSession session = BLECentralHelper.getInstance().getSession(link);
+            if (session != null) {
+                // false keeps it stored until the link can take it
+                return session.send(msg);
+            }
+            return BLEPeripheralHelper.getInstance().send(link, msg);
+        }
+    };
+
+    private final BLEMeshRouter.Listener mRouterListener = new BLEMeshRouter.Listener() {
+        @Override
+        public void onMessage(String link, final BLEControlMessage msg) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onRelayedMessage(msg.getOrigin(), msg.getText());
+                    }
+                }
+            });
+        }
+    };
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            BLEMeshRouter router = mRouter;
+            if (router != null) {
+                router.flush(SystemClock.uptimeMillis());
+                schedule(router);
+            }
+        }
+    };
+
+    /**
+     * Starts relaying, over the links already connected and the ones to come
+     * @param name Shown with the messages written here
+     */
+    public synchronized void start(String name, Listener listener) {
+        mListener = listener;
+        BLEMeshRouter router = new BLEMeshRouter(name, mTransport, mRouterListener);
+        long now = SystemClock.uptimeMillis();
+        for (BLECentralSession session : BLECentralHelper.getInstance().getSessions()) {
+            if (session.isConnected()) {
+                router.onLinkUp(session.getAddress(), now);
+            }
+        }
+        for (String address : BLEPeripheralHelper.getInstance().getConnectedAddresses()) {
+            router.onLinkUp(address, now);
+        }
+        mRouter = router;
+        Log.d(TAG, "Relaying as " + name);
+    }
+
+    /**
+     * Stops relaying. Stored messages are dropped.
+     */
+    public synchronized void stop() {
+        mRouter = null;
+        mListener = null;
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    public boolean isEnabled() {
+        return mRouter != null;
+    }
+
+    /**
+     * Sends a message written here to the whole mesh
+     * @return false if the relay isn't started
+     */
+    public boolean send(String text) {
+        BLEMeshRouter router = mRouter;
+        if (router == null) {
+            return false;
+        }
+        router.send(text, SystemClock.uptimeMillis());
+        schedule(router);
+        return true;
+    }
+
+    /**
+     * A TYPE_RELAY message came from a link. Called by the helpers, from any thread.
+     * @return false if the relay isn't started, so the helper shows it as usual
+     */
+    boolean onReceive(String address, BLEControlMessage msg) {
+        BLEMeshRouter router = mRouter;
+        if (router == null) {
+            return false;
+        }
+        router.onReceive(address, msg, SystemClock.uptimeMillis());
+        schedule(router);
+        return true;
+    }
+
+    /**
+     * A link can take messages, called by the helpers
+     */
+    void onLinkUp(String address) {
+        BLEMeshRouter router = mRouter;
+        if (router != null) {
+            router.onLinkUp(address, SystemClock.uptimeMillis());
+            schedule(router);
+        }
+    }
+
+    /**
+     * A link dropped, called by the helpers
+     */
+    void onLinkDown(String address) {
+        BLEMeshRouter router = mRouter;
+        if (router != null) {
+            router.onLinkDown(address, SystemClock.uptimeMillis());
+            schedule(router);
+        }
+    }
+
+    @Override
+    public String toString() {
+        BLEMeshRouter router = mRouter;
+        return (router == null ? "off" : router.toString());
+    }
+
+    /**
+     * Flushes the router when it has something to do
+     */
+    private void schedule(BLEMeshRouter router) {
+        long delay = router.getDelay(SystemClock.uptimeMillis());
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (delay >= 0) {
+            // Not more often than every 5 ms, a few messages go at once anyway
+            mHandler.postDelayed(mFlushRunnable, Math.max(delay, 5));
+        }
+    }
+}
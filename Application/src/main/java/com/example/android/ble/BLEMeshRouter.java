@@ -0,0 +1,349 @@
+package com.example.android.ble;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Relays chat messages between all the links of a node, so they reach devices out of radio
+ * range of the one who wrote them.
+ *
+ * Messages are flooded: every node sends a new message to all its links but the one it came
+ * from, with one hop less of TTL. Every message has a random id, and the ids seen lately are
+ * kept, so a copy coming back through another path is dropped.
+ *
+ * Links are the peers a node talks to, ie: the Peripherals of a Central and the Centrals of a
+ * Peripheral, by address. Every link has a rate limit, so flooding doesn't take the radio.
+ * Messages over the rate, or for a link which is down, wait in a bounded store and go once the
+ * link can take them. A link that doesn't come back in time is forgotten.
+ *
+ * Calls are synchronized, and the Transport and Listener are called holding the lock, so they
+ * must not call back into the router.
+ * Times are in milliseconds, from whatever clock the caller uses.
+ * This class has no Android dependencies.
+ */
+public class BLEMeshRouter {
+
+    public static final int DEFAULT_TTL = 5;
+    /* Message ids remembered, to drop copies */
+    public static final int DEFAULT_SEEN_CAPACITY = 1024;
+    /* Messages kept per link */
+    public static final int DEFAULT_STORE_CAPACITY = 32;
+    /* How long messages are kept for a link, and a link that's down is remembered */
+    public static final long DEFAULT_STORE_TIMEOUT = 5 * 60 * 1000;
+    public static final long DEFAULT_LINK_RATE = 10;
+    public static final int DEFAULT_LINK_BURST = 20;
+
+    /**
+     * Sends messages through the links
+     */
+    public interface Transport {
+        /**
+         * @return false if the link can't take it now, so it's kept in the store
+         */
+        boolean send(String link, BLEControlMessage msg);
+    }
+
+    /**
+     * Gets messages for this node
+     */
+    public interface Listener {
+        /**
+         * A message arrived for the first time
+         * @param link Where it came from
+         */
+        void onMessage(String link, BLEControlMessage msg);
+    }
+
+    private static class Stored {
+        final BLEControlMessage mMsg;
+        final long mTime;
+
+        Stored(BLEControlMessage msg, long time) {
+            mMsg = msg;
+            mTime = time;
+        }
+    }
+
+    private class Link {
+        final String mId;
+        boolean mUp = false;
+        long mDownSince;
+        final ArrayDeque<Stored> mStore = new ArrayDeque<>();
+        final BLETrafficScheduler.TokenBucket mBucket = new BLETrafficScheduler.TokenBucket();
+
+        Link(String id) {
+            mId = id;
+            mBucket.setRate(mLinkRate, mLinkBurst);
+        }
+    }
+
+    private final String mOrigin;
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final Random mRandom;
+    private final LinkedHashMap<String, Link> mLinks = new LinkedHashMap<>();
+    private int mTtl = DEFAULT_TTL;
+    private int mStoreCapacity = DEFAULT_STORE_CAPACITY;
+    private long mStoreTimeout = DEFAULT_STORE_TIMEOUT;
+    private long mLinkRate = DEFAULT_LINK_RATE;
+    private int mLinkBurst = DEFAULT_LINK_BURST;
+    private int mSeenCapacity = DEFAULT_SEEN_CAPACITY;
+    private final LinkedHashMap<String, Boolean> mSeen = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > mSeenCapacity;
+        }
+    };
+
+    private long mOriginated = 0;
+    private long mReceived = 0;
+    private long mDuplicates = 0;
+    private long mSent = 0;
+    private long mStored = 0;
+    private long mDropped = 0;
+    private long mExpired = 0;
+
+    /**
+     * @param origin Name of this node, shown with its messages
+     */
+    public BLEMeshRouter(String origin, Transport transport, Listener listener) {
+        this(origin, transport, listener, new Random());
+    }
+
+    /**
+     * @param random Picks the message ids
+     */
+    public BLEMeshRouter(String origin, Transport transport, Listener listener, Random random) {
+        mOrigin = origin;
+        mTransport = transport;
+        mListener = listener;
+        mRandom = random;
+    }
+
+    /**
+     * Hops new messages can go
+     */
+    public synchronized void setTtl(int ttl) {
+        mTtl = Math.max(ttl, 1);
+    }
+
+    /**
+     * @param capacity Messages kept per link, the oldest ones are dropped
+     * @param timeout Milliseconds they are kept
+     */
+    public synchronized void setStore(int capacity, long timeout) {
+        mStoreCapacity = Math.max(capacity, 0);
+        mStoreTimeout = timeout;
+    }
+
+    /**
+     * @param messagesPerSecond Messages every link can take, 0 for no cap
+     * @param burst Messages that can go at once after some idle time
+     */
+    public synchronized void setLinkRate(long messagesPerSecond, int burst) {
+        mLinkRate = messagesPerSecond;
+        mLinkBurst = burst;
+        for (Link link : mLinks.values()) {
+            link.mBucket.setRate(messagesPerSecond, burst);
+        }
+    }
+
+    public synchronized void setSeenCapacity(int capacity) {
+        mSeenCapacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * A link can take messages. Whatever was stored for it goes now, as the rate allows.
+     */
+    public synchronized void onLinkUp(String id, long now) {
+        Link link = mLinks.get(id);
+        if (link == null) {
+            link = new Link(id);
+            mLinks.put(id, link);
+        }
+        link.mUp = true;
+        drain(link, now);
+    }
+
+    /**
+     * A link dropped. It's remembered for a while, with the messages it misses.
+     */
+    public synchronized void onLinkDown(String id, long now) {
+        Link link = mLinks.get(id);
+        if (link != null) {
+            link.mUp = false;
+            link.mDownSince = now;
+        }
+    }
+
+    /**
+     * Sends a message written here to the whole mesh
+     * @return The message sent
+     */
+    public synchronized BLEControlMessage send(String text, long now) {
+        BLEControlMessage msg = BLEControlMessage.relay(mRandom.nextLong() & Long.MAX_VALUE,
+                mOrigin, mTtl, text);
+        mSeen.put(getKey(msg), Boolean.TRUE);
+        mOriginated++;
+        forward(msg, null, now);
+        return msg;
+    }
+
+    /**
+     * A relayed message arrived through a link. If it's new, it goes to the listener and on
+     * to the other links.
+     * @return false if it was a copy
+     */
+    public synchronized boolean onReceive(String from, BLEControlMessage msg, long now) {
+        mReceived++;
+        String key = getKey(msg);
+        if (mSeen.containsKey(key)) {
+            mDuplicates++;
+            return false;
+        }
+        mSeen.put(key, Boolean.TRUE);
+        mListener.onMessage(from, msg);
+        if (msg.getTtl() > 1) {
+            forward(msg.nextHop(), from, now);
+        }
+        return true;
+    }
+
+    /**
+     * Sends what the rate limits allow now, and drops what waited too long. Call it after
+     * getDelay().
+     */
+    public synchronized void flush(long now) {
+        Iterator<Link> it = mLinks.values().iterator();
+        while (it.hasNext()) {
+            Link link = it.next();
+            expire(link, now);
+            if (link.mUp) {
+                drain(link, now);
+            } else if (now - link.mDownSince >= mStoreTimeout) {
+                mExpired += link.mStore.size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Time until flush() has something to do
+     * @return -1 if nothing is waiting
+     */
+    public synchronized long getDelay(long now) {
+        long delay = -1;
+        for (Link link : mLinks.values()) {
+            long linkDelay;
+            if (link.mUp && !link.mStore.isEmpty()) {
+                linkDelay = link.mBucket.getDelay(1, now);
+            } else if (!link.mStore.isEmpty()) {
+                linkDelay = link.mStore.peekFirst().mTime + mStoreTimeout - now;
+            } else if (!link.mUp) {
+                linkDelay = link.mDownSince + mStoreTimeout - now;
+            } else {
+                continue;
+            }
+            linkDelay = Math.max(linkDelay, 0);
+            delay = (delay < 0 ? linkDelay : Math.min(delay, linkDelay));
+        }
+        return delay;
+    }
+
+    /**
+     * Links known, up or down
+     */
+    public synchronized List<String> getLinks() {
+        return new ArrayList<>(mLinks.keySet());
+    }
+
+    /**
+     * Messages waiting for a link
+     */
+    public synchronized int getStored(String id) {
+        Link link = mLinks.get(id);
+        return (link == null ? 0 : link.mStore.size());
+    }
+
+    @Override
+    public synchronized String toString() {
+        int stored = 0;
+        for (Link link : mLinks.values()) {
+            stored += link.mStore.size();
+        }
+        return mLinks.size() + " links, " + mOriginated + " written, " + mReceived + " received ("
+                + mDuplicates + " copies), " + mSent + " sent, " + stored + " stored now ("
+                + mStored + " in all, " + mDropped + " dropped, " + mExpired + " expired)";
+    }
+
+    public synchronized long getDuplicates() {
+        return mDuplicates;
+    }
+
+    public synchronized long getSent() {
+        return mSent;
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    private void forward(BLEControlMessage msg, String from, long now) {
+        for (Link link : mLinks.values()) {
+            if (link.mId.equals(from)) {
+                continue;
+            }
+            if (!link.mUp || !link.mStore.isEmpty() || !trySend(link, msg, now)) {
+                store(link, msg, now);
+            }
+        }
+    }
+
+    private boolean trySend(Link link, BLEControlMessage msg, long now) {
+        if (!link.mBucket.tryAcquire(1, now)) {
+            return false;
+        }
+        if (!mTransport.send(link.mId, msg)) {
+            return false;
+        }
+        mSent++;
+        return true;
+    }
+
+    private void store(Link link, BLEControlMessage msg, long now) {
+        if (mStoreCapacity == 0) {
+            mDropped++;
+            return;
+        }
+        if (link.mStore.size() >= mStoreCapacity) {
+            // The oldest one is the least likely to be worth anything
+            link.mStore.pollFirst();
+            mDropped++;
+        }
+        link.mStore.addLast(new Stored(msg, now));
+        mStored++;
+    }
+
+    private void drain(Link link, long now) {
+        expire(link, now);
+        while (!link.mStore.isEmpty() && trySend(link, link.mStore.peekFirst().mMsg, now)) {
+            link.mStore.pollFirst();
+        }
+    }
+
+    private void expire(Link link, long now) {
+        while (!link.mStore.isEmpty() && now - link.mStore.peekFirst().mTime >= mStoreTimeout) {
+            link.mStore.pollFirst();
+            mExpired++;
+        }
+    }
+
+    private static String getKey(BLEControlMessage msg) {
+        return msg.getOrigin() + "/" + msg.getId();
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits chat messages into fragments that fit in a single characteristic write/notification,
+ * and puts them back together on the other side.
+ *
+ * Every fragment starts with a 3 bytes header:
+ * * [0]    Message id, so fragments from different messages are never mixed up.
+ * * [1..2] Fragment index (big endian, 15 bits). The highest bit flags the last fragment.
+ *
+ * This class has no Android dependencies, so it can be used with any kind of link.
+ */
+public class BLEMessageFragmenter {
+
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_FRAGMENTS = 0x7FFF;
+    private static final int LAST_FRAGMENT_FLAG = 0x80;
+
+    private int mNextMessageId = 0;
+
+    /**
+     * Splits a message into fragments of at most maxFragmentSize bytes (header included)
+     * @param message
+     * @param maxFragmentSize Usually the negotiated MTU minus the ATT header
+     * @return The list of fragments to send in order
+     */
+    public synchronized List<byte[]> fragment(byte[] message, int maxFragmentSize) {
+        int payloadSize = maxFragmentSize - HEADER_SIZE;
+        if (payloadSize <= 0) {
+            throw new IllegalArgumentException("Fragment size too small: " + maxFragmentSize);
+        }
+        int numFragments = Math.max(1, (message.length + payloadSize - 1) / payloadSize);
+        if (numFragments > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message too long: " + message.length + " bytes");
+        }
+
+        int messageId = mNextMessageId;
+        mNextMessageId = (mNextMessageId + 1) & 0xFF;
+
+        List<byte[]> fragments = new ArrayList<>(numFragments);
+        for (int index = 0; index < numFragments; index++) {
+            int offset = index * payloadSize;
+            int length = Math.min(payloadSize, message.length - offset);
+            byte[] fragment = new byte[HEADER_SIZE + length];
+            fragment[0] = (byte) messageId;
+            fragment[1] = (byte) ((index >> 8) | (index == numFragments - 1 ? LAST_FRAGMENT_FLAG : 0));
+            fragment[2] = (byte) index;
+            System.arraycopy(message, offset, fragment, HEADER_SIZE, length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Rebuilds messages from fragments coming from a single sender.
+     * Fragments are expected in order (which GATT guarantees for a given characteristic), so
+     * any gap or unexpected message id discards the message being reassembled.
+     */
+    public static class Reassembler {
+        private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+        private int mMessageId = -1;
+        private int mNextIndex = 0;
+
+        /**
+         * Feeds a new fragment
+         * @param fragment
+         * @return The whole message once the last fragment arrives, null otherwise
+         */
+        public synchronized byte[] onFragment(byte[] fragment) {
+            if (fragment == null || fragment.length < HEADER_SIZE) {
+                reset();
+                return null;
+            }
+            int messageId = fragment[0] & 0xFF;
+            boolean last = (fragment[1] & LAST_FRAGMENT_FLAG) != 0;
+            int index = ((fragment[1] & 0x7F) << 8) | (fragment[2] & 0xFF);
+
+            if (index == 0) {
+                // A new message always starts over, even if the previous one was not completed
+                reset();
+                mMessageId = messageId;
+            } else if (messageId != mMessageId || index != mNextIndex) {
+                reset();
+                return null;
+            }
+
+            if (mBuffer.size() + fragment.length - HEADER_SIZE > MAX_MESSAGE_SIZE) {
+                reset();
+                return null;
+            }
+            mBuffer.write(fragment, HEADER_SIZE, fragment.length - HEADER_SIZE);
+            mNextIndex = index + 1;
+
+            if (!last) {
+                return null;
+            }
+            byte[] message = mBuffer.toByteArray();
+            reset();
+            return message;
+        }
+
+        public synchronized void reset() {
+            mBuffer.reset();
+            mMessageId = -1;
+            mNextIndex = 0;
+        }
+    }
+}
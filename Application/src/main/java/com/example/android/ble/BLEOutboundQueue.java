@@ -0,0 +1,163 @@
+package com.example.android.ble;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Bounded queue of messages going to a single device, sent one fragment at a time.
+ *
+ * Producers never block: when the device falls behind and the queue is full, the configured
+ * policy decides what happens:
+ * * POLICY_DROP_OLDEST: the oldest message not being sent yet is dropped. If that's only the
+ *   new one, it's the one dropped.
+ * * POLICY_DISCONNECT: offer() fails, and the caller is expected to drop the device.
+ *
+ * Whole messages are dropped, never single fragments, so the receiver never has to deal with
+ * gaps. This class has no Android dependencies.
+ */
+public class BLEOutboundQueue {
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_DISCONNECT = 1;
+
+    /**
+     * Something able to send a fragment. A successful send must be followed by a call to
+     * onSent(), like BluetoothGattServerCallback.onNotificationSent() does.
+     */
+    public interface Sender {
+        /**
+         * @return false if the fragment couldn't be sent (ie: the stack is busy)
+         */
+        boolean send(byte[] fragment);
+    }
+
+    private final Sender mSender;
+    private final ArrayDeque<List<byte[]>> mQueue = new ArrayDeque<>();
+    private int mCapacity;
+    private int mPolicy;
+    /* Next fragment of the message at the head of the queue */
+    private int mNextFragment = 0;
+    private boolean mSending = false;
+    private long mDropped = 0;
+
+    /**
+     * @param sender
+     * @param capacity Max number of messages queued
+     * @param policy One of POLICY_*
+     */
+    public BLEOutboundQueue(Sender sender, int capacity, int policy) {
+        mSender = sender;
+        setPolicy(capacity, policy);
+    }
+
+    public synchronized void setPolicy(int capacity, int policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    /**
+     * Queues a message
+     * @param fragments The fragments of the message, in order
+     * @return false if the queue is full and the policy is POLICY_DISCONNECT
+     */
+    public synchronized boolean offer(List<byte[]> fragments) {
+        if (mQueue.size() >= mCapacity) {
+            if (mPolicy == POLICY_DISCONNECT) {
+                return false;
+            }
+            if (!dropOldest()) {
+                mDropped++;
+                return true;
+            }
+        }
+        mQueue.add(fragments);
+        return true;
+    }
+
+    /**
+     * Sends the next fragment, unless there's one on its way already
+     * @return false if the Sender was busy, so drain() has to be called again later
+     */
+    public synchronized boolean drain() {
+        while (!mSending && !mQueue.isEmpty()) {
+            List<byte[]> head = mQueue.peek();
+            if (mNextFragment >= head.size()) {
+                nextMessage();
+                continue;
+            }
+            if (!mSender.send(head.get(mNextFragment))) {
+                return false;
+            }
+            mSending = true;
+            if (++mNextFragment >= head.size()) {
+                nextMessage();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Must be called whenever a fragment sent by the queue is gone
+     * @param success
+     * @return Same as drain()
+     */
+    public synchronized boolean onSent(boolean success) {
+        // A failed fragment is lost anyway, the receiver will discard its message
+        mSending = false;
+        return drain();
+    }
+
+    /**
+     * Drops everything queued
+     */
+    public synchronized void clear() {
+        mQueue.clear();
+        mNextFragment = 0;
+        mSending = false;
+    }
+
+    public synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Whether there's nothing queued nor on its way
+     */
+    public synchronized boolean isIdle() {
+        return mQueue.isEmpty() && !mSending;
+    }
+
+    /**
+     * Number of messages dropped because the device was too slow
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    private void nextMessage() {
+        mQueue.poll();
+        mNextFragment = 0;
+    }
+
+    /**
+     * @return false if nothing can be dropped but the message being sent
+     */
+    private boolean dropOldest() {
+        if (mNextFragment > 0) {
+            // The head is half sent, so it goes on and the one behind it is dropped
+            if (mQueue.size() < 2) {
+                return false;
+            }
+            List<byte[]> head = mQueue.poll();
+            mQueue.poll();
+            mQueue.addFirst(head);
+        } else {
+            mQueue.poll();
+        }
+        mDropped++;
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional compression of chat messages and files.
+ *
+ * Every compressed payload starts with a codec byte (one of CODEC_*), so the receiver knows how
+ * to decode it and the sender is free to skip compression whenever it doesn't pay off.
+ * * Chat messages are short, so they are deflated against a preset dictionary of common chat
+ *   text, without the zlib header and trailer.
+ * * Files are deflated as a stream, unless they look already compressed (ie: JPEGs).
+ *
+ * Compression is only used once both sides have agreed on it, see BLEChatProfile.CAPABILITIES.
+ * This class has no Android dependencies.
+ */
+public class BLEPayloadCodec {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_DEFLATE_DICT = 2;
+
+    /* Compression must save at least this fraction of the size to be worth the CPU */
+    private static final double MIN_SAVING = 0.1;
+    /* How much of a file we try to compress before deciding */
+    public static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+    /**
+     * Words and bits of text that show up in most chat messages. Deflate looks for matches
+     * starting from the end of the dictionary, so the most common ones go last.
+     */
+    private static final byte[] DICTIONARY = (
+            "https://www. .com thanks thank you please sorry tomorrow today tonight morning "
+            + "what where when how why who which would could should about there their "
+            + "yes no ok okay sure maybe great good nice cool haha lol :) :( ;) "
+            + "I'm I am you are we are it's don't can't let's see you later "
+            + "is the to and of in for on that this with have be not at it a I ")
+            .getBytes(Charset.forName("UTF-8"));
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mBuffer = new byte[1024];
+
+    /**
+     * Encodes a chat message
+     * @param message
+     * @return The codec byte followed by the (maybe) compressed message
+     */
+    public synchronized byte[] encode(byte[] message) {
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(message);
+        mDeflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length + 1);
+        out.write(CODEC_DEFLATE_DICT);
+        while (!mDeflater.finished()) {
+            int length = mDeflater.deflate(mBuffer);
+            out.write(mBuffer, 0, length);
+            if (out.size() > message.length) {
+                // It's only getting bigger, no need to go on
+                break;
+            }
+        }
+        if (!mDeflater.finished() || out.size() > message.length) {
+            return frame(CODEC_NONE, message);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a chat message encoded with encode()
+     * @param payload
+     * @return The original message
+     * @throws IOException If the payload is corrupted or uses an unknown codec
+     */
+    public synchronized byte[] decode(byte[] payload) throws IOException {
+        if (payload == null || payload.length == 0) {
+            throw new IOException("Empty payload");
+        }
+        int codec = payload[0] & 0xFF;
+        if (codec == CODEC_NONE) {
+            byte[] message = new byte[payload.length - 1];
+            System.arraycopy(payload, 1, message, 0, message.length);
+            return message;
+        }
+        if (codec != CODEC_DEFLATE_DICT) {
+            throw new IOException("Unknown codec " + codec);
+        }
+        mInflater.reset();
+        mInflater.setDictionary(DICTIONARY);
+        mInflater.setInput(payload, 1, payload.length - 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+        try {
+            while (!mInflater.finished()) {
+                int length = mInflater.inflate(mBuffer);
+                if (length == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new IOException("Truncated payload");
+                }
+                out.write(mBuffer, 0, length);
+                if (out.size() > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Message too long");
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex.toString());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] frame(int codec, byte[] data) {
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = (byte) codec;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        return payload;
+    }
+
+    /**
+     * Whether a file of the given type is already compressed, so deflating it is a waste of time
+     * @param mimeType May be null
+     */
+    public static boolean isCompressedType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        return mimeType.startsWith("video/")
+                || mimeType.startsWith("audio/")
+                || (mimeType.startsWith("image/") && !mimeType.equals("image/bmp")
+                        && !mimeType.equals("image/svg+xml"))
+                || mimeType.equals("application/zip")
+                || mimeType.equals("application/gzip")
+                || mimeType.equals("application/vnd.android.package-archive");
+    }
+
+    /**
+     * Compresses a sample of some data and checks if the saving is worth it
+     * @param sample
+     * @param length Bytes of the sample to use
+     */
+    public static boolean isWorthCompressing(byte[] sample, int length) {
+        if (length <= 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[1024];
+            long limit = (long) (length * (1 - MIN_SAVING));
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+                if (deflater.getBytesWritten() > limit) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Starts a file stream. The codec byte is written right away.
+     * @param out Where the file goes
+     * @param codec CODEC_NONE or CODEC_DEFLATE
+     * @return The stream to write the file to. Closing it ends the file (and closes out).
+     * @throws IOException
+     */
+    public static OutputStream newFileOutputStream(OutputStream out, int codec) throws IOException {
+        out.write(codec);
+        if (codec == CODEC_NONE) {
+            return out;
+        }
+        if (codec != CODEC_DEFLATE) {
+            throw new IOException("Unknown codec " + codec);
+        }
+        return new DeflaterOutputStream(out);
+    }
+
+    /**
+     * Reads the codec byte of a file stream, written by newFileOutputStream()
+     * @param in
+     * @return The stream to read the original file from
+     * @throws IOException
+     */
+    public static InputStream newFileInputStream(InputStream in) throws IOException {
+        int codec = in.read();
+        if (codec == CODEC_NONE) {
+            return in;
+        }
+        if (codec == CODEC_DEFLATE) {
+            return new InflaterInputStream(in);
+        }
+        throw new IOException(codec < 0 ? "Empty stream" : "Unknown codec " + codec);
+    }
+}
@@ -2,6 +2,8 @@ package com.example.android.ble;
 
 import android.bluetooth.BluetoothDevice;
 
+import java.io.File;
+
 /**
  * Created by jgomez on 4/05/16.
  */
@@ -9,4 +11,8 @@ public interface BLEPeripheralChatEvents extends BLEChatEvents {
     void onClientDisconnect(BluetoothDevice device);
     void onInitRfcommSocket();
     void onConnectRfcommSocket();
+    /**
+     * A file sent through the RFCOMM Socket is complete, and checked if the sender added a trailer
+     */
+    void onFileReceived(File file);
 }
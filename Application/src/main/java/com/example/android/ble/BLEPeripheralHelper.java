@@ -9,22 +9,27 @@ import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 
@@ -50,14 +55,53 @@ public class BLEPeripheralHelper {
     private BluetoothGattServer mGattServer;
     private Context mContext;
     //private BLEAdvertiseCallback mBleAdvCallback;
-    private ArrayList<BLEAdvertiseCallback> mAdvListeners = new ArrayList<>();
-    private ArrayList<BLEPeripheralChatEvents> mChatListeners = new ArrayList<>();
+    /* Notified from binder threads, while the UI registers and unregisters */
+    private final BLEListenerList<BLEAdvertiseCallback> mAdvListeners = new BLEListenerList<>();
+    private final BLEListenerList<BLEPeripheralChatEvents> mChatListeners = new BLEListenerList<>();
 
     private ArrayList<BluetoothDevice> mConnectedDevices;
+    /* Chat messages are split in MTU sized fragments, and reassembled per connected device */
+    private BLEMessageFragmenter mFragmenter = new BLEMessageFragmenter();
+    private HashMap<String, BLEMessageFragmenter.Reassembler> mReassemblers = new HashMap<>();
+    /* Bulk data arrives through a reliable stream per connected device */
+    private HashMap<String, BLEReliableStream.Receiver> mStreamReceivers = new HashMap<>();
+    /* Bonded transfer being received over RFCOMM, and the frame parsers of the devices whose
+       BLE stream is bound to it */
+    private volatile BLEBondedTransfer.Receiver mBondedReceiver;
+    private HashMap<String, BLEBondedTransfer.Receiver.Parser> mBondedParsers = new HashMap<>();
+    /* Files coming through the BLE stream of every device, see BLEChatProfile.CAPABILITY_BLE_FILES */
+    private HashMap<String, BleFile> mBleFiles = new HashMap<>();
+    private volatile File mFileTarget;
+    /* Payload size negotiated by every connected device */
+    private HashMap<String, Integer> mPayloadSizes = new HashMap<>();
+    /* Capabilities every connected device wrote into the Version characteristic */
+    private HashMap<String, Integer> mCapabilities = new HashMap<>();
+    private BLEPayloadCodec mCodec = new BLEPayloadCodec();
+    /* Bulk data notified to every connected device, paced by onNotificationSent() */
+    private HashMap<String, NotificationStream> mNotificationStreams = new HashMap<>();
+    private BluetoothGattCharacteristic mBleTransferCharacteristic;
+    private BluetoothGattCharacteristic mRfcommTransferCharacteristic;
+    private NotificationStreamThread mNotificationStreamThread;
+
+    /* Number of notifications queued per device */
+    private static final int NOTIFICATION_WINDOW = 8;
+    /* Max time we wait for a device to take a new notification */
+    private static final long NOTIFICATION_TIMEOUT = 5000;
+    /* Bytes sent to every device by sendStream() */
+    private static final int STREAM_TEST_SIZE = 1024 * 1024;
+    /* How often we retry a notification the stack refused */
+    private static final long NOTIFICATION_RETRY_INTERVAL = 10;
+    private BluetoothGattCharacteristic mMessageCharacteristic;
+    /* What every device does with chat messages when it falls behind, see setBroadcastPolicy() */
+    private final Object mBroadcastLock = new Object();
+    private int mBroadcastCapacity = 32;
+    private int mBroadcastPolicy = BLEOutboundQueue.POLICY_DROP_OLDEST;
+    /* Bandwidth cap of bulk notifications to every device, 0 for none */
+    private long mBulkRate = 0;
     private Object mLock = new Object();
     private Handler mHandler = new Handler();
 
-    private AcceptThread mInsecureAcceptThread;
+    private RfcommReceiver mRfcommReceiver;
 
 
     private static BLEPeripheralHelper instance = new BLEPeripheralHelper();
@@ -114,101 +158,142 @@ public class BLEPeripheralHelper {
     /**
      * Events for the advertising phase
      */
-    private enum NotifyAdvAction {
-        NOTIFY_ADV_ACTION_INIT_FAILURE,
-        NOTIFY_ADV_ACTION_INIT_SUCCESS,
-        NOTIFY_ADV_ACTION_CLIENT_CONNECT,
-        NOTIFY_ADV_ACTION_INFO,
-        NOTIFY_ADV_ACTION_CONNECTION_ERROR,
-    }
-
-    ;
+    private static final BLEListenerList.Event<BLEAdvertiseCallback, Object> ADV_INIT_SUCCESS =
+            new BLEListenerList.Event<BLEAdvertiseCallback, Object>() {
+        @Override
+        public void dispatch(BLEAdvertiseCallback listener, Object data) {
+            listener.onInitSuccess();
+        }
+    };
+    private static final BLEListenerList.Event<BLEAdvertiseCallback, String> ADV_INIT_FAILURE =
+            new BLEListenerList.Event<BLEAdvertiseCallback, String>() {
+        @Override
+        public void dispatch(BLEAdvertiseCallback listener, String data) {
+            listener.onInitFailure(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEAdvertiseCallback, BluetoothDevice> ADV_CLIENT_CONNECT =
+            new BLEListenerList.Event<BLEAdvertiseCallback, BluetoothDevice>() {
+        @Override
+        public void dispatch(BLEAdvertiseCallback listener, BluetoothDevice data) {
+            listener.onClientConnect(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEAdvertiseCallback, String> ADV_INFO =
+            new BLEListenerList.Event<BLEAdvertiseCallback, String>() {
+        @Override
+        public void dispatch(BLEAdvertiseCallback listener, String data) {
+            listener.onInfo(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEAdvertiseCallback, String> ADV_CONNECTION_ERROR =
+            new BLEListenerList.Event<BLEAdvertiseCallback, String>() {
+        @Override
+        public void dispatch(BLEAdvertiseCallback listener, String data) {
+            listener.onError(data);
+        }
+    };
 
     /**
      * Events for the chatting phase
      */
-    private enum NotifyChatAction {
-        NOTIFY_CHAT_ACTION_MESSAGE,
-        NOTIFY_CHAT_ACTION_INFO,
-        NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT,
-        NOTIFY_CHAT_ACTION_CONNECTION_ERROR,
-        NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET,
-        NOTIFY_CHAT_ACTION_BLE_STREAM,
-    }
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, String> CHAT_MESSAGE =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, String>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, String data) {
+            listener.onMessage(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, BLEControlMessage> CHAT_CONTROL_MESSAGE =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, BLEControlMessage>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, BLEControlMessage data) {
+            listener.onControlMessage(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, String> CHAT_INFO =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, String>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, String data) {
+            listener.onInfo(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, BluetoothDevice> CHAT_CLIENT_DISCONNECT =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, BluetoothDevice>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, BluetoothDevice data) {
+            listener.onClientDisconnect(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, String> CHAT_CONNECTION_ERROR =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, String>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, String data) {
+            listener.onConnectionError(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, Object> CHAT_INIT_RFCOMM_SOCKET =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, Object>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, Object data) {
+            listener.onInitRfcommSocket();
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, Object> CHAT_CONNECT_RFCOMM_SOCKET =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, Object>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, Object data) {
+            listener.onConnectRfcommSocket();
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, File> CHAT_FILE_RECEIVED =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, File>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, File data) {
+            listener.onFileReceived(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, byte[]> CHAT_BLE_STREAM =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, byte[]>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, byte[] data) {
+            listener.onDataStream(data);
+        }
+    };
+    private static final BLEListenerList.Event<BLEPeripheralChatEvents, Integer> CHAT_STREAM_SENT =
+            new BLEListenerList.Event<BLEPeripheralChatEvents, Integer>() {
+        @Override
+        public void dispatch(BLEPeripheralChatEvents listener, Integer data) {
+            listener.onStreamSent(data);
+        }
+    };
 
 
     /**
      * Notifies via events to all registered listeners in the Advertising phase.
      *
-     * @param action
+     * @param event
      * @param data
      */
-    private void notifyAdvListeners(NotifyAdvAction action, Object data) {
-        for (BLEAdvertiseCallback listener : mAdvListeners) {
-            switch (action) {
-                case NOTIFY_ADV_ACTION_INIT_SUCCESS:
-                    listener.onInitSuccess();
-                    break;
-                case NOTIFY_ADV_ACTION_INIT_FAILURE:
-                    listener.onInitFailure((String) data);
-                    break;
-                case NOTIFY_ADV_ACTION_CLIENT_CONNECT:
-                    listener.onClientConnect((BluetoothDevice) data);
-                    break;
-                case NOTIFY_ADV_ACTION_INFO:
-                    listener.onInfo((String) data);
-                    break;
-                case NOTIFY_ADV_ACTION_CONNECTION_ERROR:
-                    listener.onError((String) data);
-                    break;
-            }
-        }
+    private <T> void notifyAdvListeners(BLEListenerList.Event<BLEAdvertiseCallback, T> event, T data) {
+        mAdvListeners.dispatch(event, data);
     }
 
 
     /**
      * Notifies via events to all registered listeners in the Chatting phase
      *
-     * @param action
+     * @param event
      * @param data
      */
-
-    private void notifyChatListeners(NotifyChatAction action, Object data) {
-        for (BLEPeripheralChatEvents listener : mChatListeners) {
-            switch (action) {
-                case NOTIFY_CHAT_ACTION_MESSAGE:
-                    listener.onMessage((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_INFO:
-                    listener.onInfo((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT:
-                    listener.onClientDisconnect((BluetoothDevice) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_CONNECTION_ERROR:
-                    listener.onConnectionError((String) data);
-                    break;
-                case NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET:
-                    listener.onInitRfcommSocket();
-                    break;
-                case NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET:
-                    listener.onConnectRfcommSocket();
-                    break;
-                case NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET:
-                    listener.onData((byte [])data);
-                    break;
-                case NOTIFY_CHAT_ACTION_BLE_STREAM:
-                    listener.onDataStream((byte [])data);
-            }
-        }
+    private <T> void notifyChatListeners(BLEListenerList.Event<BLEPeripheralChatEvents, T> event, T data) {
+        mChatListeners.dispatch(event, data);
     }
 
 
     public void init(Context context) {
         if (context == null) {
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Context cannot be null!!");
+            notifyAdvListeners(ADV_INIT_FAILURE, "Context cannot be null!!");
             return;
         }
         mContext = context;
@@ -217,17 +302,17 @@ public class BLEPeripheralHelper {
         mBluetoothAdapter = mBluetoothManager.getAdapter();
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
             //mBleAdvCallback.onInitFailure("Bluetooth not supported in this device!!");
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Bluetooth not supported in this device!!");
+            notifyAdvListeners(ADV_INIT_FAILURE, "Bluetooth not supported in this device!!");
             return;
         }
 
         if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             //mBleAdvCallback.onInitFailure("Bluetooth LE is not supported in this devices!!");
-            notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_FAILURE, "Bluetooth LE is not supported in this devices!!");
+            notifyAdvListeners(ADV_INIT_FAILURE, "Bluetooth LE is not supported in this devices!!");
             return;
         }
         //mBleAdvCallback.onInitSuccess();
-        notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INIT_SUCCESS, null);
+        notifyAdvListeners(ADV_INIT_SUCCESS, null);
     }
 
     private BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
@@ -239,16 +324,50 @@ public class BLEPeripheralHelper {
                     + BLEChatProfile.getStateDescription(newState));
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    mConnectedDevices.add(device);
-                    notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_CLIENT_CONNECT, device);
+                    synchronized (mConnectedDevices) {
+                        mConnectedDevices.add(device);
+                    }
+                    BLEMeshRelay.getInstance().onLinkUp(device.getAddress());
+                    notifyAdvListeners(ADV_CLIENT_CONNECT, device);
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    mConnectedDevices.remove(device);
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CLIENT_DISCONNECT, device);
+                    synchronized (mConnectedDevices) {
+                        mConnectedDevices.remove(device);
+                    }
+                    BLEMeshRelay.getInstance().onLinkDown(device.getAddress());
+                    synchronized (mReassemblers) {
+                        mReassemblers.remove(device.getAddress());
+                    }
+                    synchronized (mStreamReceivers) {
+                        mStreamReceivers.remove(device.getAddress());
+                    }
+                    synchronized (mBondedParsers) {
+                        mBondedParsers.remove(device.getAddress());
+                    }
+                    synchronized (mBleFiles) {
+                        BleFile file = mBleFiles.remove(device.getAddress());
+                        if (file != null) {
+                            file.mSink.abort();
+                        }
+                    }
+                    synchronized (mPayloadSizes) {
+                        mPayloadSizes.remove(device.getAddress());
+                    }
+                    synchronized (mCapabilities) {
+                        mCapabilities.remove(device.getAddress());
+                    }
+                    synchronized (mNotificationStreams) {
+                        NotificationStream stream = mNotificationStreams.remove(device.getAddress());
+                        if (stream != null) {
+                            // Anyone streaming to this device gives up right away
+                            stream.close();
+                        }
+                    }
+                    notifyChatListeners(CHAT_CLIENT_DISCONNECT, device);
                 }
             } else {
                 String error = "Error:" + status;
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, error);
-                notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_CONNECTION_ERROR, error);
+                notifyChatListeners(CHAT_CONNECTION_ERROR, error);
+                notifyAdvListeners(ADV_CONNECTION_ERROR, error);
             }
         }
 
@@ -261,7 +380,7 @@ public class BLEPeripheralHelper {
             Log.i(TAG, "onCharacteristicReadRequest " + characteristic.getUuid().toString());
             byte [] value;
             if (BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid())) {
-                value = getCharacteristicVersionValue();
+                value = getCharacteristicVersionValue(device);
             } else if (BLEChatProfile.CHARACTERISTIC_DESC_UUID.equals(characteristic.getUuid())) {
                 value = getCharacteristicDescValue();
             } else {
@@ -286,21 +405,50 @@ public class BLEPeripheralHelper {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
             Log.i(TAG, "onCharacteristicWriteRequest " + characteristic.getUuid().toString());
             int gatResult = BluetoothGatt.GATT_SUCCESS;
+            if (!preparedWrite && value != null) {
+                onWriteReceived(device, value.length);
+            }
             try{
                 if (BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID.equals(characteristic.getUuid())) {
-                    String msg = new String(value, "UTF-8");
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_MESSAGE, msg);
+                    byte[] message = getReassembler(device).onFragment(value);
+                    if (message != null) {
+                        if (hasCapability(device, BLEChatProfile.CAPABILITY_DEFLATE)) {
+                            message = mCodec.decode(message);
+                        }
+                        BLEControlMessage msg = BLEControlMessage.fromPayload(message);
+                        if (msg.getType() == BLEControlMessage.TYPE_TRANSFER_REQUEST
+                                && msg.getTransport() == BLEControlMessage.TRANSPORT_BLE) {
+                            // The file is right behind, so this can't wait for the listeners
+                            startBleFile(device, msg.getSize());
+                        }
+                        if (msg.getType() == BLEControlMessage.TYPE_RELAY
+                                && BLEMeshRelay.getInstance().onReceive(device.getAddress(), msg)) {
+                            // The relay shows it, and passes it on
+                        } else if (msg.getType() == BLEControlMessage.TYPE_TEXT) {
+                            notifyChatListeners(CHAT_MESSAGE, msg.getText());
+                        } else {
+                            notifyChatListeners(CHAT_CONTROL_MESSAGE, msg);
+                        }
+                    }
                     /*for (BluetoothDevice connectedDevice : mConnectedDevices) {
                         BluetoothGattCharacteristic msgCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
                                 .getCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID);
                         msgCharacteristic.setValue(msg.getBytes());
                         mGattServer.notifyCharacteristicChanged(connectedDevice, msgCharacteristic, false);
                     }*/
-                }else if(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID.equals(characteristic.getUuid())) {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_BLE_STREAM, value);
+                }else if(BLEChatProfile.getTransferStripe(characteristic.getUuid()) >= 0) {
+                    // Data is delivered in order by the receiver, whatever stripe it came
+                    // through. It also sends the ACKs back.
+                    getStreamReceiver(device).onPacket(value);
+                }else if(BLEChatProfile.CHARACTERISTIC_VERSION_UUID.equals(characteristic.getUuid())) {
+                    // The Central tells us what it supports, we keep what we both support
+                    int capabilities = (value != null && value.length > 0 ? value[0] & BLEChatProfile.CAPABILITIES : 0);
+                    synchronized (mCapabilities) {
+                        mCapabilities.put(device.getAddress(), capabilities);
+                    }
                 }
-            }catch (UnsupportedEncodingException ex) {
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, ex.toString());
+            }catch (IOException ex) {
+                    notifyChatListeners(CHAT_CONNECTION_ERROR, ex.toString());
                     gatResult = BluetoothGatt.GATT_FAILURE;
             }finally{
                 if (responseNeeded) {
@@ -313,6 +461,31 @@ public class BLEPeripheralHelper {
             }
         }
 
+        /**
+         * Only called from API 22. Below it, see onWriteReceived().
+         */
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.i(TAG, "onMtuChanged " + device.getAddress() + " " + mtu);
+            synchronized (mPayloadSizes) {
+                // The ATT header takes 3 bytes of every packet
+                mPayloadSizes.put(device.getAddress(), mtu - BLEChatProfile.ATT_HEADER_SIZE);
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            NotificationStream stream;
+            synchronized (mNotificationStreams) {
+                stream = mNotificationStreams.get(device.getAddress());
+            }
+            if (stream != null) {
+                stream.onNotificationSent(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device,
                                              int requestId, BluetoothGattDescriptor descriptor,
@@ -345,12 +518,13 @@ public class BLEPeripheralHelper {
         BluetoothGattDescriptor messageDesc = new BluetoothGattDescriptor(BLEChatProfile.DESCRIPTOR_MESSAGE_UUID,
                 BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ);
         messageCharacteristic.addDescriptor(messageDesc);
+        mMessageCharacteristic = messageCharacteristic;
 
         BluetoothGattCharacteristic versionCharacteristic =
                 new BluetoothGattCharacteristic(BLEChatProfile.CHARACTERISTIC_VERSION_UUID,
-                        //Read-only characteristic
-                        BluetoothGattCharacteristic.PROPERTY_READ,
-                        BluetoothGattCharacteristic.PERMISSION_READ);
+                        //Read-write characteristic, Centrals write their capabilities here
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
 
         BluetoothGattCharacteristic descriptionCharacteristic =
                 new BluetoothGattCharacteristic(BLEChatProfile.CHARACTERISTIC_DESC_UUID,
@@ -375,6 +549,8 @@ public class BLEPeripheralHelper {
         BluetoothGattDescriptor transferBleDesc = new BluetoothGattDescriptor(BLEChatProfile.DESCRIPTOR_BLE_TRANSFER_UUID,
                 BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ);
         transferBleCharacteristic.addDescriptor(transferBleDesc);
+        mBleTransferCharacteristic = transferBleCharacteristic;
+        mRfcommTransferCharacteristic = transferCharacteristic;
 
 
         service.addCharacteristic(descriptionCharacteristic);
@@ -382,6 +558,13 @@ public class BLEPeripheralHelper {
         service.addCharacteristic(messageCharacteristic);
         service.addCharacteristic(transferCharacteristic);
         service.addCharacteristic(transferBleCharacteristic);
+        // Extra stripes only take bulk writes, ACKs go back through the first one
+        for (int stripe = 1; stripe < BLEChatProfile.MAX_TRANSFER_STRIPES; stripe++) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(
+                    BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_STRIPE_UUIDS[stripe],
+                    BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                    BluetoothGattCharacteristic.PERMISSION_WRITE));
+        }
 
 
         mGattServer.addService(service);
@@ -389,24 +572,25 @@ public class BLEPeripheralHelper {
 
     /**
      * Initialize RFCOMM Socket thread for Classic Bluetooth communications/transfers
+     * @param target Where the received file goes. onFileReceived() is called once it's there.
      */
-    public void initRfcommService() {
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
+    public void initRfcommService(File target) {
+        if (mRfcommReceiver == null) {
+            BLERfcommEngine.getInstance().init(mContext);
+            mRfcommReceiver = new RfcommReceiver(false, target);
         }
         sendTransferReady();
-        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_INIT_RFCOMM_SOCKET, null);
+        notifyChatListeners(CHAT_INIT_RFCOMM_SOCKET, null);
     }
 
     /**
      * Stops the RFCOMM Socket
      */
     public void stopRfcommService(){
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.end();
+        if (mRfcommReceiver != null) {
+            mRfcommReceiver.end();
         }
-        mInsecureAcceptThread = null;
+        mRfcommReceiver = null;
     }
 
     /**
@@ -495,18 +679,25 @@ public class BLEPeripheralHelper {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                notifyAdvListeners(NotifyAdvAction.NOTIFY_ADV_ACTION_INFO, message);
+                notifyAdvListeners(ADV_INFO, message);
             }
         });
     }
 
     /**
      * Returns an array of bytes representing the value of the Version characteristic
-     * @return
+     * @return With the capabilities we agreed, once the device wrote its own
      */
-    private byte[] getCharacteristicVersionValue() {
+    private byte[] getCharacteristicVersionValue(BluetoothDevice device) {
+        Integer capabilities;
+        synchronized (mCapabilities) {
+            capabilities = mCapabilities.get(device.getAddress());
+        }
         synchronized (mLock) {
-            return BLEChatProfile.getVersion().getBytes();
+            if (capabilities == null) {
+                return BLEChatProfile.getVersion().getBytes();
+            }
+            return BLEChatProfile.getVersionValue(capabilities);
         }
     }
 
@@ -520,28 +711,613 @@ public class BLEPeripheralHelper {
         }
     }
 
+    private BLEMessageFragmenter.Reassembler getReassembler(BluetoothDevice device) {
+        synchronized (mReassemblers) {
+            BLEMessageFragmenter.Reassembler reassembler = mReassemblers.get(device.getAddress());
+            if (reassembler == null) {
+                reassembler = new BLEMessageFragmenter.Reassembler();
+                mReassemblers.put(device.getAddress(), reassembler);
+            }
+            return reassembler;
+        }
+    }
+
+    private BLEReliableStream.Receiver getStreamReceiver(final BluetoothDevice device) {
+        synchronized (mStreamReceivers) {
+            BLEReliableStream.Receiver receiver = mStreamReceivers.get(device.getAddress());
+            if (receiver == null) {
+                receiver = new BLEReliableStream.Receiver(new BLEReliableStream.Receiver.Listener() {
+                    @Override
+                    public void onData(byte[] data) {
+                        if (!onBondedData(device, data) && !onBleFileData(device, data)) {
+                            notifyChatListeners(CHAT_BLE_STREAM, data);
+                        }
+                    }
+
+                    @Override
+                    public void onAck(byte[] ack) {
+                        getNotificationStream(device).notifyNow(mBleTransferCharacteristic, ack);
+                    }
+                }, BLEReliableStream.DEFAULT_WINDOW);
+                mStreamReceivers.put(device.getAddress(), receiver);
+            }
+            return receiver;
+        }
+    }
+
+    /**
+     * A file coming through the BLE stream of a device
+     */
+    private static class BleFile {
+        final BLEFileSink mSink;
+        long mRemaining;
+
+        BleFile(BLEFileSink sink, long size) {
+            mSink = sink;
+            mRemaining = size;
+        }
+    }
+
+    /**
+     * Where files sent through the BLE stream are saved. Without one, the stream data goes
+     * to the listeners as usual.
+     * @param target
+     */
+    public void setFileTarget(File target) {
+        mFileTarget = target;
+    }
+
+    /**
+     * Saves the next bytes of stream data of a device into a file
+     * @param device
+     * @param size Bytes of the file
+     */
+    private void startBleFile(BluetoothDevice device, long size) {
+        File target = mFileTarget;
+        if (target == null || size <= 0) {
+            Log.w(TAG, "Can't take a BLE file of " + size + " bytes");
+            return;
+        }
+        synchronized (mBleFiles) {
+            BleFile previous = mBleFiles.remove(device.getAddress());
+            if (previous != null) {
+                previous.mSink.abort();
+            }
+            try {
+                mBleFiles.put(device.getAddress(), new BleFile(new BLEFileSink(target, false), size));
+            } catch (IOException ex) {
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "BLE transfer failed: " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Hands stream data to the file the device is sending, if any
+     * @return false if there's no such file
+     */
+    private boolean onBleFileData(BluetoothDevice device, byte[] data) {
+        synchronized (mBleFiles) {
+            BleFile file = mBleFiles.get(device.getAddress());
+            if (file == null) {
+                return false;
+            }
+            try {
+                int length = (int) Math.min(data.length, file.mRemaining);
+                file.mSink.write(data, 0, length);
+                file.mRemaining -= length;
+                if (file.mRemaining == 0) {
+                    mBleFiles.remove(device.getAddress());
+                    File received = file.mSink.finish();
+                    Log.d(TAG, "Received " + file.mSink.getBytesWritten() + " bytes into " + received);
+                    notifyChatListeners(CHAT_FILE_RECEIVED, received);
+                }
+            } catch (IOException ex) {
+                mBleFiles.remove(device.getAddress());
+                file.mSink.abort();
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "BLE transfer failed: " + ex.toString());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hands stream data to the bonded transfer, if the device is bound to it
+     * @return false if it's not part of a bonded transfer
+     */
+    private boolean onBondedData(BluetoothDevice device, byte[] data) {
+        BLEBondedTransfer.Receiver receiver = mBondedReceiver;
+        if (receiver == null) {
+            return false;
+        }
+        BLEBondedTransfer.Receiver.Parser parser;
+        synchronized (mBondedParsers) {
+            parser = mBondedParsers.get(device.getAddress());
+            if (parser == null) {
+                Long transferId = BLEBondedTransfer.readBindPacket(data);
+                if (transferId == null || transferId != receiver.getTransferId()) {
+                    return false;
+                }
+                mBondedParsers.put(device.getAddress(), receiver.newParser());
+                return true;
+            }
+        }
+        try {
+            parser.onData(data, 0, data.length);
+        } catch (IOException ex) {
+            notifyChatListeners(CHAT_CONNECTION_ERROR, "Bonded transfer failed: " + ex.toString());
+        }
+        return true;
+    }
+
+    /**
+     * BluetoothGattServerCallback.onMtuChanged() doesn't exist on API 21, so the MTU the Central
+     * negotiated is never reported and notifications would stay at the default payload size.
+     * There, every write the Central makes tells us its payload size is at least that big: its
+     * fragments and stream packets are as big as its MTU allows.
+     * @param device
+     * @param length Bytes of a write that wasn't a prepared (long) one
+     */
+    private void onWriteReceived(BluetoothDevice device, int length) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+                || length <= BLEChatProfile.DEFAULT_PAYLOAD_SIZE) {
+            return;
+        }
+        synchronized (mPayloadSizes) {
+            Integer payloadSize = mPayloadSizes.get(device.getAddress());
+            if (payloadSize == null || payloadSize < length) {
+                Log.i(TAG, "Payload size of " + device.getAddress() + " is at least " + length);
+                mPayloadSizes.put(device.getAddress(), Math.min(length, BLEChatProfile.MAX_MTU - BLEChatProfile.ATT_HEADER_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Returns how many bytes of payload fit in a single notification to the given device
+     * @param device
+     * @return
+     */
+    public int getPayloadSize(BluetoothDevice device) {
+        synchronized (mPayloadSizes) {
+            Integer payloadSize = mPayloadSizes.get(device.getAddress());
+            return (payloadSize == null ? BLEChatProfile.DEFAULT_PAYLOAD_SIZE : payloadSize);
+        }
+    }
+
+    /**
+     * Capabilities of BLEChatProfile.CAPABILITIES we agreed on with the given device
+     * @param device
+     * @return
+     */
+    private int getCapabilities(BluetoothDevice device) {
+        synchronized (mCapabilities) {
+            Integer capabilities = mCapabilities.get(device.getAddress());
+            return (capabilities == null ? 0 : capabilities);
+        }
+    }
+
+    private boolean hasCapability(BluetoothDevice device, int capability) {
+        return (getCapabilities(device) & capability) != 0;
+    }
+
+    /**
+     * Capabilities of a device sending a file through RFCOMM. A Central may use another
+     * address over BLE (ie: a private one), so if the device isn't known and a single Central
+     * is connected, the file comes from that one.
+     * @param device
+     * @return
+     */
+    private int getRfcommCapabilities(BluetoothDevice device) {
+        synchronized (mCapabilities) {
+            Integer capabilities = mCapabilities.get(device.getAddress());
+            if (capabilities == null && mCapabilities.size() == 1) {
+                capabilities = mCapabilities.values().iterator().next();
+            }
+            return (capabilities == null ? 0 : capabilities);
+        }
+    }
+
+    /**
+     * Sends a message to all connected Central devices.
+     * @param msg
+     */
     public void send(String msg) {
-        for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic msgCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_MESSAGE_UUID);
-            msgCharacteristic.setValue(msg);
-            mGattServer.notifyCharacteristicChanged(device, msgCharacteristic, false);
+        send(BLEControlMessage.text(msg));
+    }
+
+    /**
+     * Sends a control message to all connected Central devices. Every device gets it encoded
+     * as it can understand, and messages bigger than its MTU are split in fragments.
+     * It never blocks, messages are queued per device and sent as fast as each one can take them.
+     * @param msg
+     */
+    public void send(BLEControlMessage msg) {
+        // One payload per combination of capabilities, so each one is only encoded once
+        byte[][] payloads = new byte[BLEChatProfile.CAPABILITIES + 1][];
+        for (BluetoothDevice device : getConnectedDevices()) {
+            send(device, msg, payloads);
+        }
+    }
+
+    /**
+     * Sends a control message to a single Central device
+     * @param address
+     * @param msg
+     * @return false if it isn't connected, or can't take it
+     */
+    public boolean send(String address, BLEControlMessage msg) {
+        for (BluetoothDevice device : getConnectedDevices()) {
+            if (device.getAddress().equals(address)) {
+                return send(device, msg, new byte[BLEChatProfile.CAPABILITIES + 1][]);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param payloads Payloads already encoded, by capabilities
+     */
+    private boolean send(BluetoothDevice device, BLEControlMessage msg, byte[][] payloads) {
+        int capabilities = getCapabilities(device);
+        byte[] payload = payloads[capabilities];
+        if (payload == null) {
+            payload = msg.toPayload(capabilities);
+            if (payload == null) {
+                Log.w(TAG, device.getAddress() + " doesn't support " + msg);
+                return false;
+            }
+            if ((capabilities & BLEChatProfile.CAPABILITY_DEFLATE) != 0) {
+                payload = mCodec.encode(payload);
+            }
+            payloads[capabilities] = payload;
+        }
+        // Fragments are built per device, so each one gets its own copy of the payload
+        if (!getNotificationStream(device).offerMessage(mFragmenter.fragment(payload, getPayloadSize(device)))) {
+            Log.w(TAG, device.getAddress() + " is too far behind, disconnecting it");
+            mGattServer.cancelConnection(device);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A copy of the connected devices list, as it changes from the GATT callbacks
+     */
+    private ArrayList<BluetoothDevice> getConnectedDevices() {
+        synchronized (mConnectedDevices) {
+            return new ArrayList<>(mConnectedDevices);
+        }
+    }
+
+    /**
+     * Addresses of the connected Central devices
+     */
+    List<String> getConnectedAddresses() {
+        ArrayList<String> addresses = new ArrayList<>();
+        for (BluetoothDevice device : getConnectedDevices()) {
+            addresses.add(device.getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * Sets how chat messages are queued for every connected device
+     * @param capacity Max number of messages queued per device
+     * @param policy What to do when a device queue is full, one of BLEOutboundQueue.POLICY_*
+     */
+    public void setBroadcastPolicy(int capacity, int policy) {
+        synchronized (mBroadcastLock) {
+            mBroadcastCapacity = capacity;
+            mBroadcastPolicy = policy;
+        }
+        synchronized (mNotificationStreams) {
+            for (NotificationStream stream : mNotificationStreams.values()) {
+                stream.mMessages.setPolicy(capacity, policy);
+            }
+        }
+    }
+
+    /**
+     * Caps the bandwidth of bulk notifications (ie: sendStream()) to every connected device.
+     * Chat messages are never capped, and always go ahead of bulk data.
+     * @param bytesPerSecond 0 for no cap
+     */
+    public void setBulkRate(long bytesPerSecond) {
+        synchronized (mBroadcastLock) {
+            mBulkRate = bytesPerSecond;
+        }
+        synchronized (mNotificationStreams) {
+            for (NotificationStream stream : mNotificationStreams.values()) {
+                stream.setBulkRate(bytesPerSecond);
+            }
+        }
+    }
+
+    private NotificationStream getNotificationStream(BluetoothDevice device) {
+        synchronized (mNotificationStreams) {
+            NotificationStream stream = mNotificationStreams.get(device.getAddress());
+            if (stream == null) {
+                stream = new NotificationStream(device);
+                mNotificationStreams.put(device.getAddress(), stream);
+            }
+            return stream;
+        }
+    }
+
+    /**
+     * All notifications going to a single device.
+     *
+     * Android only takes a new notification once the previous one has been sent, which is
+     * reported by onNotificationSent(). Chat messages wait in a bounded queue and bulk data in
+     * a pipeline, and both release their next notification from that callback. So a slow
+     * device never holds back the others.
+     *
+     * Chat messages have strict priority: bulk data only gets the link while no message is
+     * waiting, and no faster than the bulk rate (see BLETrafficScheduler).
+     */
+    private class NotificationStream implements BLEWritePipeline.Writer, BLEOutboundQueue.Sender {
+        /* Who sent each notification still waiting for onNotificationSent(), in order */
+        static final int KIND_BULK = 0;
+        static final int KIND_MESSAGE = 1;
+        static final int KIND_OTHER = 2;
+
+        final BluetoothDevice mDevice;
+        final BLEWritePipeline mPipeline = new BLEWritePipeline(this, NOTIFICATION_WINDOW);
+        final BLEBufferPool mBuffers = new BLEBufferPool(BLEChatProfile.DEFAULT_PAYLOAD_SIZE,
+                NOTIFICATION_WINDOW * 2);
+        final BLEOutboundQueue mMessages;
+        final ArrayDeque<Integer> mInFlight = new ArrayDeque<>();
+        final BLETrafficScheduler.TokenBucket mBulkBucket = new BLETrafficScheduler.TokenBucket();
+        int mNextSeq = 0;
+
+        /* Retries the message queue when the stack was too busy to take a notification */
+        final Runnable mDrainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drainMessages();
+            }
+        };
+
+        /* Retries bulk data once the messages are gone, or the bulk rate allows it */
+        final Runnable mBulkRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.retry();
+            }
+        };
+
+        NotificationStream(BluetoothDevice device) {
+            mDevice = device;
+            synchronized (mBroadcastLock) {
+                mMessages = new BLEOutboundQueue(this, mBroadcastCapacity, mBroadcastPolicy);
+                setBulkRate(mBulkRate);
+            }
+        }
+
+        void setBulkRate(long bytesPerSecond) {
+            // Up to 100 ms worth of data can go at once
+            mBulkBucket.setRate(bytesPerSecond,
+                    (int) Math.max(getPayloadSize(mDevice), bytesPerSecond / 10));
+        }
+
+        /**
+         * Bulk data, from the pipeline
+         */
+        @Override
+        public boolean write(byte[] data) {
+            if (!mMessages.isIdle()) {
+                // Messages first, bulk goes on once they are sent, see onNotificationSent()
+                return false;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (!mBulkBucket.tryAcquire(data.length, now)) {
+                mHandler.removeCallbacks(mBulkRunnable);
+                mHandler.postDelayed(mBulkRunnable, Math.max(1, mBulkBucket.getDelay(data.length, now)));
+                return false;
+            }
+            if (!notify(KIND_BULK, mBleTransferCharacteristic, data)) {
+                // Busy, the pipeline will try again
+                return false;
+            }
+            // The value was copied when notifying
+            mBuffers.release(data);
+            return true;
+        }
+
+        /**
+         * Chat message fragments, from the message queue
+         */
+        @Override
+        public boolean send(byte[] fragment) {
+            return notify(KIND_MESSAGE, mMessageCharacteristic, fragment);
+        }
+
+        /**
+         * Notifies something right away, skipping the queues. It's lost if the stack is busy.
+         */
+        void notifyNow(BluetoothGattCharacteristic characteristic, byte[] data) {
+            notify(KIND_OTHER, characteristic, data);
+        }
+
+        private boolean notify(int kind, BluetoothGattCharacteristic characteristic, byte[] data) {
+            synchronized (this) {
+                // Every device shares the characteristic, so its value is set and sent at once
+                boolean sent;
+                synchronized (characteristic) {
+                    characteristic.setValue(data);
+                    sent = mGattServer.notifyCharacteristicChanged(mDevice, characteristic, false);
+                }
+                if (sent) {
+                    mInFlight.add(kind);
+                }
+                return sent;
+            }
+        }
+
+        void onNotificationSent(boolean success) {
+            Integer kind;
+            synchronized (this) {
+                kind = mInFlight.poll();
+            }
+            if (kind == null) {
+                return;
+            }
+            if (kind == KIND_BULK) {
+                // It won't write anything while there are messages waiting
+                mPipeline.onWriteComplete(success);
+            } else if (kind == KIND_MESSAGE && !mMessages.onSent(success)) {
+                mHandler.postDelayed(mDrainRunnable, NOTIFICATION_RETRY_INTERVAL);
+            }
+            if (!mMessages.isIdle()) {
+                if (kind != KIND_MESSAGE) {
+                    drainMessages();
+                }
+            } else {
+                // The link is free for bulk data again
+                mPipeline.retry();
+            }
+        }
+
+        /**
+         * Queues a chat message
+         * @return false if the device is too far behind and has to be dropped
+         */
+        boolean offerMessage(List<byte[]> fragments) {
+            if (!mMessages.offer(fragments)) {
+                return false;
+            }
+            drainMessages();
+            return true;
+        }
+
+        void drainMessages() {
+            if (!mMessages.drain()) {
+                mHandler.postDelayed(mDrainRunnable, NOTIFICATION_RETRY_INTERVAL);
+            }
+        }
+
+        void close() {
+            mPipeline.cancel();
+            mMessages.clear();
+            mHandler.removeCallbacks(mDrainRunnable);
+            mHandler.removeCallbacks(mBulkRunnable);
+        }
+
+        /**
+         * Queues a DATA packet, waiting for room in the pipeline
+         * @return false if it timed out or the device is gone
+         */
+        boolean send(byte[] data, int offset, int length) throws InterruptedException {
+            byte[] packet = mBuffers.acquire(BLEReliableStream.HEADER_SIZE + length);
+            BLEReliableStream.writeDataHeader(packet, mNextSeq++);
+            System.arraycopy(data, offset, packet, BLEReliableStream.HEADER_SIZE, length);
+            return mPipeline.offer(packet, NOTIFICATION_TIMEOUT);
+        }
+
+        /**
+         * Bytes of data fitting in a single notification to this device
+         */
+        int getDataSize() {
+            return getPayloadSize(mDevice) - BLEReliableStream.HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Streams STREAM_TEST_SIZE bytes of random data to every connected device, reporting the
+     * transfer rate every second
+     */
+    private class NotificationStreamThread extends Thread {
+        private volatile boolean mEnd = false;
+
+        public void run() {
+            setName("NotificationStreamThread");
+            ArrayList<NotificationStream> streams = new ArrayList<>();
+            for (BluetoothDevice device : getConnectedDevices()) {
+                NotificationStream stream = getNotificationStream(device);
+                stream.mPipeline.reset();
+                stream.mBuffers.setBufferSize(getPayloadSize(device));
+                streams.add(stream);
+            }
+            byte[] data = new byte[BLEChatProfile.MAX_MTU];
+            (new Random()).nextBytes(data);
+
+            boolean success = true;
+            long startTime = System.currentTimeMillis();
+            long lastReport = startTime;
+            long lastBytes = 0;
+            try {
+                // Every device gets packets as big as its own MTU allows
+                int[] sent = new int[streams.size()];
+                boolean pending = true;
+                while (success && !mEnd && pending) {
+                    pending = false;
+                    for (int i = 0; i < streams.size(); i++) {
+                        if (sent[i] >= STREAM_TEST_SIZE) {
+                            continue;
+                        }
+                        NotificationStream stream = streams.get(i);
+                        int length = Math.min(stream.getDataSize(), STREAM_TEST_SIZE - sent[i]);
+                        success &= stream.send(data, 0, length);
+                        sent[i] += length;
+                        pending |= sent[i] < STREAM_TEST_SIZE;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReport >= 1000) {
+                        long bytes = getBytesWritten(streams);
+                        notifyChatListeners(CHAT_INFO,
+                                ((bytes - lastBytes) * 1000 / (now - lastReport)) + " B/s");
+                        lastReport = now;
+                        lastBytes = bytes;
+                    }
+                }
+                for (NotificationStream stream : streams) {
+                    success &= stream.mPipeline.flush(NOTIFICATION_TIMEOUT);
+                }
+            } catch (InterruptedException ex) {
+                success = false;
+            }
+            if (success && !mEnd) {
+                long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+                notifyChatListeners(CHAT_INFO,
+                        "1 MB took " + seconds + " secs, " + (getBytesWritten(streams) / seconds) + " B/s");
+            }
+            notifyChatListeners(CHAT_STREAM_SENT,
+                    success ? BLEChatEvents.SENT_SUCCEED : BLEChatEvents.SENT_FAILED);
+        }
+
+        private long getBytesWritten(ArrayList<NotificationStream> streams) {
+            long bytes = 0;
+            for (NotificationStream stream : streams) {
+                bytes += stream.mPipeline.getBytesWritten();
+            }
+            return bytes;
+        }
+
+        public void end() {
+            mEnd = true;
         }
     }
 
     /**
-     * Sends a block of random data
+     * Streams 1 MB of random data to every connected device, as fast as each of them can take
+     * notifications. Progress is reported through onInfo(), and the end through onStreamSent().
      */
     public synchronized void sendStream(){
-        notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_INFO, "Not tested yet!");
-        byte[] randomBytes = new byte[512];
-        (new Random()).nextBytes(randomBytes);
+        if (mNotificationStreamThread != null && mNotificationStreamThread.isAlive()) {
+            notifyChatListeners(CHAT_INFO, "Already streaming!");
+            return;
+        }
+        mNotificationStreamThread = new NotificationStreamThread();
+        mNotificationStreamThread.start();
+    }
 
-        for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic transferCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_BLE_TRANSFER_UUID);
-            transferCharacteristic.setValue(randomBytes);
-            mGattServer.notifyCharacteristicChanged(device, transferCharacteristic, false);
+    /**
+     * Stops the stream started by sendStream()
+     */
+    public synchronized void stopStream(){
+        if (mNotificationStreamThread != null) {
+            mNotificationStreamThread.end();
+            mNotificationStreamThread = null;
         }
     }
 
@@ -552,12 +1328,15 @@ public class BLEPeripheralHelper {
      * identify this devices so he can filter and connect to it.
      */
     private void sendTransferReady(){
-        for (BluetoothDevice device : mConnectedDevices) {
-            BluetoothGattCharacteristic transferCharacteristic = mGattServer.getService(BLEChatProfile.SERVICE_UUID)
-                    .getCharacteristic(BLEChatProfile.CHARACTERISTIC_RFCOMM_TRANSFER_UUID);
-            String macAddress = android.provider.Settings.Secure.getString(mContext.getContentResolver(), "bluetooth_address");
-            transferCharacteristic.setValue(macAddress);
-            mGattServer.notifyCharacteristicChanged(device, transferCharacteristic, false);
+        String macAddress = android.provider.Settings.Secure.getString(mContext.getContentResolver(), "bluetooth_address");
+        if (macAddress == null) {
+            Log.w(TAG, "Unknown Bluetooth address, can't send the transfer ready");
+            return;
+        }
+        byte[] value = macAddress.getBytes(Charset.forName("UTF-8"));
+        // Through every device's stream, so it's accounted as any other notification
+        for (BluetoothDevice device : getConnectedDevices()) {
+            getNotificationStream(device).notifyNow(mRfcommTransferCharacteristic, value);
         }
     }
 
@@ -571,58 +1350,235 @@ public class BLEPeripheralHelper {
     private static final UUID MY_UUID_INSECURE =
             UUID.fromString("83769a57-e930-4496-8ece-fec16420c77c");
 
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+    /* RFCOMM data is read in chunks this big, into the same buffer */
+    private static final int RFCOMM_BUFFER_SIZE = 64 * 1024;
+    /* Partial resumable transfers are kept here, next to the received files */
+    private static final String PARTIAL_FILES_DIR = ".partial";
+    /* Once RFCOMM is done, max time we wait for the BLE part of a bonded transfer */
+    private static final long BONDED_COMPLETION_TIMEOUT = 10000;
+
+    /**
+     * Takes the RFCOMM connections of the Central, one transfer at a time, and receives the
+     * file. The Sockets are run by BLERfcommEngine; the transfer blocks a thread of its
+     * transfer pool, see BLERfcommEngine.Callback.onConnected().
+     */
+    private class RfcommReceiver implements BLERfcommEngine.Acceptor, BLERfcommEngine.Callback {
+        private final BLERfcommEngine mEngine = BLERfcommEngine.getInstance();
+        private BLERfcommEngine.Server mServer;
+        private final File mTarget;
+        private final byte[] mBuffer = new byte[RFCOMM_BUFFER_SIZE];
         private String mSocketType;
-        boolean mEnd = false;
+        volatile boolean mEnd = false;
+        /* Whether a transfer is going on, and its connection once open */
+        private boolean mBusy = false;
+        private BLERfcommEngine.Connection mConnection;
 
-        public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+        public RfcommReceiver(boolean secure, File target) {
             mSocketType = secure ? "Secure" : "Insecure";
+            mTarget = target;
 
             // Create a new listening server socket
             try {
                 if (secure) {
-                    tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
+                    mServer = mEngine.listen(NAME_SECURE, MY_UUID_SECURE, true, this);
                 } else {
-                    tmp = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
+                    mServer = mEngine.listen(NAME_INSECURE, MY_UUID_INSECURE, false, this);
                 }
             } catch (IOException e) {
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Socket Type: " + mSocketType + "listen() failed");
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "Socket Type: " + mSocketType + "listen() failed");
             }
-            mmServerSocket = tmp;
         }
 
-        public void run() {
-            com.example.android.common.logger.Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
+        @Override
+        public synchronized BLERfcommEngine.Callback onAccept(BluetoothDevice device) {
+            if (mEnd || mBusy) {
+                return null;
+            }
+            mBusy = true;
+            return this;
+        }
+
+        @Override
+        public void onError(IOException e) {
+            if (!mEnd) {
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "Socket Type: " + mSocketType + "accept() failed");
+            }
+        }
 
-            BluetoothSocket socket = null;
+        @Override
+        public void onConnected(BLERfcommEngine.Connection connection) {
+            synchronized (this) {
+                mConnection = connection;
+            }
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                socket = mmServerSocket.accept();
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECT_RFCOMM_SOCKET, null);
-                int bytesRead = 0;
-                do
-                {
-                    InputStream is = socket.getInputStream();
-                    byte[] buffer = new byte[1024];
-                    bytesRead = is.read(buffer);
-                    notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_DATA_RFCOMM_SOCKET, buffer);
-                }while(bytesRead != 0 && !mEnd);
+                receive(connection);
+            } finally {
+                synchronized (this) {
+                    mConnection = null;
+                }
+            }
+        }
+
+        @Override
+        public void onData(BLERfcommEngine.Connection connection, byte[] buffer, int length) {
+            // Transfers read the stream, see receive()
+            mEngine.release(buffer);
+        }
 
+        @Override
+        public synchronized void onClosed(BLERfcommEngine.Connection connection, IOException cause) {
+            mBusy = false;
+        }
+
+        private void receive(BLERfcommEngine.Connection connection) {
+            notifyChatListeners(CHAT_CONNECT_RFCOMM_SOCKET, null);
+            InputStream socketIn = connection.getInputStream();
+            // What the sender agreed to tells how its file is framed
+            int capabilities = getRfcommCapabilities(connection.getDevice());
+
+            if ((capabilities & BLEChatProfile.CAPABILITY_BONDED_FILES) != 0) {
+                // Bonded and resumable transfers both start with their magic
+                int magic;
+                PushbackInputStream in;
+                try {
+                    in = new PushbackInputStream(socketIn, 4);
+                    magic = peekMagic(in);
+                } catch (IOException e) {
+                    notifyChatListeners(CHAT_CONNECTION_ERROR, "RFCOMM transfer failed: " + e.toString());
+                    connection.close();
+                    return;
+                }
+                if (magic == BLEBondedTransfer.MAGIC) {
+                    receiveBonded(connection, in);
+                } else {
+                    receiveResumable(connection, in);
+                }
+                return;
+            }
+            if ((capabilities & BLEChatProfile.CAPABILITY_RESUMABLE_FILES) != 0) {
+                receiveResumable(connection, socketIn);
+                return;
+            }
+
+            BLEFileSink sink = null;
+            try {
+                InputStream is = socketIn;
+                if ((capabilities & BLEChatProfile.CAPABILITY_DEFLATE) != 0) {
+                    is = BLEPayloadCodec.newFileInputStream(is);
+                }
+                sink = new BLEFileSink(mTarget,
+                        (capabilities & BLEChatProfile.CAPABILITY_FILE_TRAILER) != 0);
+                int bytesRead;
+                while (!mEnd && (bytesRead = is.read(mBuffer)) != -1) {
+                    sink.write(mBuffer, 0, bytesRead);
+                }
+                if (mEnd) {
+                    sink.abort();
+                    return;
+                }
+                File file = sink.finish();
+                Log.d(TAG, "Received " + sink.getBytesWritten() + " bytes into " + file);
+                notifyChatListeners(CHAT_FILE_RECEIVED, file);
             } catch (IOException e) {
-                notifyChatListeners(NotifyChatAction.NOTIFY_CHAT_ACTION_CONNECTION_ERROR, "Socket Type: " + mSocketType + "accept() failed");
+                if (sink != null) {
+                    sink.abort();
+                }
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "RFCOMM transfer failed: " + e.toString());
+            } finally {
+                connection.close();
             }
         }
 
+        /**
+         * Receives the file through BLEResumableTransfer. Whatever arrives is kept, so if the
+         * link drops the Central can send only the missing chunks next time.
+         */
+        private void receiveResumable(BLERfcommEngine.Connection connection, InputStream in) {
+            File stateDir = new File(mTarget.getParentFile(), PARTIAL_FILES_DIR);
+            stateDir.mkdirs();
+            try {
+                BLEResumableTransfer.Receiver receiver = new BLEResumableTransfer.Receiver(
+                        in, connection.getOutputStream(), stateDir);
+                File file = receiver.receive(mTarget, new BLEResumableTransfer.Listener() {
+                    @Override
+                    public void onChunk(int index, int length) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return mEnd;
+                    }
+                });
+                if (file != null) {
+                    Log.d(TAG, "Received " + receiver.getChunksReceived() + " new chunks into " + file);
+                    notifyChatListeners(CHAT_FILE_RECEIVED, file);
+                }
+            } catch (IOException e) {
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "RFCOMM transfer failed: " + e.toString());
+            } finally {
+                connection.close();
+            }
+        }
+
+        /**
+         * Receives the file through BLEBondedTransfer, merging the chunks that come through
+         * RFCOMM with the ones from the BLE stream of the Central
+         * @param in Already past the magic
+         */
+        private void receiveBonded(BLERfcommEngine.Connection connection, InputStream in) {
+            try {
+                BLEBondedTransfer.Receiver receiver = BLEBondedTransfer.Receiver.accept(in, mTarget);
+                // BLE data may come as soon as we're ready
+                mBondedReceiver = receiver;
+                receiver.ready(connection.getOutputStream());
+                File file = receiver.receive(in, connection.getOutputStream(), BONDED_COMPLETION_TIMEOUT);
+                Log.d(TAG, "Received " + receiver.getBytesReceived() + " bytes into " + file);
+                notifyChatListeners(CHAT_FILE_RECEIVED, file);
+            } catch (IOException e) {
+                notifyChatListeners(CHAT_CONNECTION_ERROR, "RFCOMM transfer failed: " + e.toString());
+            } finally {
+                mBondedReceiver = null;
+                synchronized (mBondedParsers) {
+                    mBondedParsers.clear();
+                }
+                connection.close();
+            }
+        }
+
+        /**
+         * Reads the first int of the stream, and puts it back
+         */
+        private int peekMagic(PushbackInputStream in) throws IOException {
+            byte[] magic = new byte[4];
+            int length = 0;
+            while (length < magic.length) {
+                int count = in.read(magic, length, magic.length - length);
+                if (count == -1) {
+                    throw new IOException("RFCOMM connection closed");
+                }
+                length += count;
+            }
+            int value = ((magic[0] & 0xFF) << 24) | ((magic[1] & 0xFF) << 16)
+                    | ((magic[2] & 0xFF) << 8) | (magic[3] & 0xFF);
+            if (value != BLEBondedTransfer.MAGIC) {
+                in.unread(magic);
+            }
+            return value;
+        }
+
         public void end(){
             mEnd = true;
+            if (mServer != null) {
+                mServer.close();
+            }
+            BLERfcommEngine.Connection connection;
+            synchronized (this) {
+                connection = mConnection;
+            }
+            if (connection != null) {
+                // Unblocks the transfer
+                connection.close();
+            }
         }
     }
 }
@@ -0,0 +1,160 @@
+package com.example.android.ble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares the radio between the GATT connections of a Central.
+ *
+ * Every connection has its own operation queue, which runs one operation at a time. But
+ * nothing stops a connection busy with bulk writes from keeping the radio to itself, while
+ * another one waits with a chat message. So every queue asks for a turn before starting an
+ * operation. At most maxInFlight operations run at once over all the connections. When one
+ * finishes, the turn goes to the waiting queue with the most urgent traffic class, and among
+ * those to the one that has waited longest, so they take turns.
+ *
+ * A single connection never waits, it only runs one operation at a time anyway.
+ * This class has no Android dependencies.
+ */
+public class BLERadioScheduler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    /**
+     * A queue that takes turns
+     */
+    public interface Client {
+        /**
+         * It got the turn it waited for. It must call acquire(), which succeeds now, or
+         * cancel() if it doesn't need it anymore.
+         */
+        void onTurn();
+    }
+
+    private int mMaxInFlight;
+    private int mInFlight = 0;
+    /* Clients waiting for a turn, in the order they asked, with their traffic class */
+    private final LinkedHashMap<Client, Integer> mWaiting = new LinkedHashMap<>();
+    /* Clients with a turn given, not taken yet */
+    private final HashSet<Client> mGranted = new HashSet<>();
+    private long mTurns = 0;
+    private long mWaits = 0;
+
+    public BLERadioScheduler() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public BLERadioScheduler(int maxInFlight) {
+        mMaxInFlight = Math.max(maxInFlight, 1);
+    }
+
+    /**
+     * Operations that can run at once, over all the connections
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        ArrayList<Client> granted = new ArrayList<>();
+        synchronized (this) {
+            mMaxInFlight = Math.max(maxInFlight, 1);
+            Client next;
+            while ((next = grantNext()) != null) {
+                granted.add(next);
+            }
+        }
+        for (Client client : granted) {
+            client.onTurn();
+        }
+    }
+
+    /**
+     * Asks for a turn to start an operation
+     * @param trafficClass Class of the operation, one of BLETrafficScheduler.CLASS_*
+     * @return false if it has to wait, onTurn() will be called then
+     */
+    public synchronized boolean acquire(Client client, int trafficClass) {
+        if (mGranted.remove(client)) {
+            mTurns++;
+            return true;
+        }
+        if (mInFlight < mMaxInFlight && mWaiting.isEmpty()) {
+            mInFlight++;
+            mTurns++;
+            return true;
+        }
+        // Keeps its place if it was already waiting, maybe for a less urgent operation
+        mWaiting.put(client, trafficClass);
+        mWaits++;
+        return false;
+    }
+
+    /**
+     * The operation started with a turn is finished
+     */
+    public void release(Client client) {
+        Client next;
+        synchronized (this) {
+            mInFlight = Math.max(mInFlight - 1, 0);
+            next = grantNext();
+        }
+        if (next != null) {
+            next.onTurn();
+        }
+    }
+
+    /**
+     * The client doesn't want a turn anymore. A turn already given to it goes to the next one.
+     */
+    public void cancel(Client client) {
+        Client next = null;
+        synchronized (this) {
+            mWaiting.remove(client);
+            if (mGranted.remove(client)) {
+                mInFlight = Math.max(mInFlight - 1, 0);
+                next = grantNext();
+            }
+        }
+        if (next != null) {
+            next.onTurn();
+        }
+    }
+
+    /**
+     * Operations running right now
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mInFlight + "/" + mMaxInFlight + " in flight, " + mWaiting.size() + " waiting, "
+                + mTurns + " turns, " + mWaits + " waits";
+    }
+
+    /**
+     * Gives a free turn to the most urgent waiting client. Must be called holding the lock.
+     * @return The client, or null if there's no turn or no one waiting
+     */
+    private Client grantNext() {
+        if (mInFlight >= mMaxInFlight || mWaiting.isEmpty()) {
+            return null;
+        }
+        Client best = null;
+        int bestClass = Integer.MAX_VALUE;
+        // The first one of the most urgent class, as they are in arrival order
+        Iterator<Map.Entry<Client, Integer>> it = mWaiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Client, Integer> entry = it.next();
+            if (entry.getValue() < bestClass) {
+                best = entry.getKey();
+                bestClass = entry.getValue();
+            }
+        }
+        mWaiting.remove(best);
+        mGranted.add(best);
+        mInFlight++;
+        return best;
+    }
+}
@@ -0,0 +1,476 @@
+package com.example.android.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selective-repeat ARQ for the bulk transfer characteristic.
+ *
+ * Data goes as fast as WRITE_TYPE_NO_RESPONSE allows, every packet carrying a sequence number.
+ * The receiver periodically notifies back a cumulative ACK plus a bitmap of the packets it got
+ * after the first gap, so the sender only retransmits the missing ones.
+ *
+ * Packets:
+ * * DATA:        [type | flags][seq (16 bits)][payload]
+ * * ACK_REQUEST: [type][next seq (16 bits)]
+ * * ACK:         [type][cumulative ack (16 bits)][bitmap]
+ *
+ * The cumulative ACK is the next sequence number the receiver expects. Bit i of the bitmap
+ * tells whether cumulative ACK + 1 + i was received.
+ *
+ * Sequence numbers live for a whole connection, so a Sender and its Receiver must be created
+ * (or reset) when the connection is established.
+ * This class has no Android dependencies.
+ */
+public class BLEReliableStream {
+
+    public static final int HEADER_SIZE = 3;
+
+    public static final int TYPE_DATA = 0x01;
+    public static final int TYPE_ACK = 0x02;
+    public static final int TYPE_ACK_REQUEST = 0x03;
+    private static final int TYPE_MASK = 0x7F;
+    /* The receiver must answer with an ACK right away */
+    private static final int FLAG_ACK_REQUEST = 0x80;
+
+    /* Max number of unacknowledged packets. Its bitmap must fit in a default MTU ACK */
+    public static final int DEFAULT_WINDOW = 64;
+    /* The receiver acknowledges at least every ACK_INTERVAL packets */
+    private static final int ACK_INTERVAL = 16;
+
+    /**
+     * @return One of TYPE_*, or -1 if it's not a stream packet
+     */
+    public static int getType(byte[] packet) {
+        if (packet == null || packet.length < HEADER_SIZE) {
+            return -1;
+        }
+        return packet[0] & TYPE_MASK;
+    }
+
+    private static int readSeq(byte[] packet) {
+        return ((packet[1] & 0xFF) << 8) | (packet[2] & 0xFF);
+    }
+
+    /**
+     * Writes the header of a DATA packet, for streams that don't need retransmissions
+     * (ie: notifications paced by onNotificationSent())
+     */
+    public static void writeDataHeader(byte[] packet, int seq) {
+        writeHeader(packet, TYPE_DATA, seq);
+    }
+
+    private static void writeHeader(byte[] packet, int type, int seq) {
+        packet[0] = (byte) type;
+        packet[1] = (byte) (seq >> 8);
+        packet[2] = (byte) seq;
+    }
+
+    /**
+     * Maps a 16 bits sequence number to the closest value around reference
+     */
+    private static int unwrap(int wireSeq, int reference) {
+        return reference + (short) (wireSeq - (reference & 0xFFFF));
+    }
+
+    /**
+     * Sending side. It's meant to be driven by a single producer thread, which is also the one
+     * doing retransmissions, so ACKs can be processed from any callback thread without blocking.
+     * Packets are built in buffers owned by the window slots, so once every slot has been used
+     * sending doesn't allocate anything.
+     */
+    public static class Sender {
+
+        /**
+         * Where packets are written to. It may block, but never from the thread calling onAck()
+         */
+        public interface Link {
+            /**
+             * @param packet Only valid during the call, it's reused for retransmissions
+             * @param length Bytes of packet to send
+             * @return false if the packet couldn't be sent. It will be treated as lost.
+             */
+            boolean send(byte[] packet, int length);
+        }
+
+        private final Link mLink;
+        private final int mWindow;
+        private final long mRetransmitTimeout;
+        private final long mFailureTimeout;
+
+        private final byte[][] mPackets;
+        private final int[] mLengths;
+        private final boolean[] mAcked;
+        private final boolean[] mLost;
+        private final long[] mResentAt;
+        /* Scratch space for resendLost() */
+        private final int[] mResend;
+        private final byte[] mAckRequest = new byte[HEADER_SIZE];
+        /* Oldest unacknowledged sequence number, and the next one to use */
+        private int mBase = 0;
+        private int mNextSeq = 0;
+        private long mLastProgress;
+        private long mLastRetransmit;
+        private boolean mFailed = false;
+        private long mRetransmissions = 0;
+        /* Packets sent this far before a received one aren't taken as lost yet */
+        private int mReorderTolerance = 0;
+
+        /**
+         * @param link
+         * @param window Max number of unacknowledged packets
+         * @param retransmitTimeout If nothing is acknowledged in this time (ms), the oldest packet is resent
+         * @param failureTimeout If nothing is acknowledged in this time (ms), the stream fails
+         */
+        public Sender(Link link, int window, long retransmitTimeout, long failureTimeout) {
+            if (window < 1 || window > 0x7FFF) {
+                throw new IllegalArgumentException("Invalid window: " + window);
+            }
+            mLink = link;
+            mWindow = window;
+            mRetransmitTimeout = retransmitTimeout;
+            mFailureTimeout = failureTimeout;
+            mPackets = new byte[window][];
+            mLengths = new int[window];
+            mResend = new int[window];
+            mAcked = new boolean[window];
+            mLost = new boolean[window];
+            mResentAt = new long[window];
+            mLastProgress = System.currentTimeMillis();
+        }
+
+        /**
+         * Sets how far out of order packets may arrive (ie: when they are striped over several
+         * characteristics, see BLETransferStriper). 0 by default, as packets on a single
+         * characteristic arrive in order.
+         * @param packets
+         */
+        public synchronized void setReorderTolerance(int packets) {
+            mReorderTolerance = Math.max(0, packets);
+        }
+
+        /**
+         * Sends a block of data, waiting for room in the window if needed
+         * @return false if the stream failed or it timed out
+         * @throws InterruptedException
+         */
+        public boolean send(byte[] data, int offset, int length, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                resendLost();
+                synchronized (this) {
+                    if (mFailed) {
+                        return false;
+                    }
+                    if (mNextSeq - mBase < mWindow) {
+                        break;
+                    }
+                    if (!waitForProgress(deadline)) {
+                        return false;
+                    }
+                }
+            }
+
+            byte[] packet;
+            int seq;
+            synchronized (this) {
+                seq = mNextSeq++;
+                int slot = slot(seq);
+                // Slots are only written by the producer thread, so the packet can be used
+                // out of the lock
+                packet = mPackets[slot];
+                if (packet == null || packet.length < HEADER_SIZE + length) {
+                    packet = mPackets[slot] = new byte[HEADER_SIZE + length];
+                }
+                writeHeader(packet, TYPE_DATA, seq);
+                System.arraycopy(data, offset, packet, HEADER_SIZE, length);
+                mLengths[slot] = HEADER_SIZE + length;
+                mAcked[slot] = false;
+                mLost[slot] = false;
+                mResentAt[slot] = 0;
+                if (mBase == seq) {
+                    mLastProgress = System.currentTimeMillis();
+                }
+            }
+            if (!mLink.send(packet, HEADER_SIZE + length)) {
+                markLost(seq);
+            }
+            return true;
+        }
+
+        /**
+         * Waits until everything sent has been acknowledged
+         * @return false if the stream failed or it timed out
+         * @throws InterruptedException
+         */
+        public boolean flush(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            requestAck();
+            while (true) {
+                resendLost();
+                synchronized (this) {
+                    if (mFailed) {
+                        return false;
+                    }
+                    if (mBase == mNextSeq) {
+                        return true;
+                    }
+                    if (!waitForProgress(deadline)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Processes an ACK packet coming from the receiver. It never blocks.
+         */
+        public synchronized void onAck(byte[] ack) {
+            if (getType(ack) != TYPE_ACK || mBase == mNextSeq) {
+                return;
+            }
+            int cumulative = unwrap(readSeq(ack), mBase);
+            if (cumulative - mBase < 0 || cumulative - mNextSeq > 0) {
+                // Stale or bogus
+                return;
+            }
+            if (cumulative != mBase) {
+                // Their slots are free again
+                mBase = cumulative;
+                mLastProgress = System.currentTimeMillis();
+            }
+
+            // Selective part. Anything missing below the highest acknowledged packet is lost,
+            // as packets on a characteristic arrive in order. Across several characteristics
+            // they may be a bit late, up to the reorder tolerance.
+            int highest = -1;
+            for (int i = 0; i < (ack.length - HEADER_SIZE) * 8; i++) {
+                if ((ack[HEADER_SIZE + i / 8] & (1 << (i % 8))) == 0) {
+                    continue;
+                }
+                int seq = cumulative + 1 + i;
+                if (seq - mNextSeq >= 0) {
+                    break;
+                }
+                mAcked[slot(seq)] = true;
+                highest = i;
+            }
+            if (highest >= 0) {
+                // The cumulative ACK itself is missing too. Packets we just resent are given
+                // some time before being resent again.
+                long now = System.currentTimeMillis();
+                int lastLost = cumulative + 1 + highest - mReorderTolerance;
+                for (int seq = cumulative; seq - lastLost < 0; seq++) {
+                    int slot = slot(seq);
+                    if (!mAcked[slot] && now - mResentAt[slot] > mRetransmitTimeout) {
+                        mLost[slot] = true;
+                    }
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Drops everything, so the stream can be reused with a new connection
+         */
+        public synchronized void reset() {
+            Arrays.fill(mAcked, false);
+            Arrays.fill(mLost, false);
+            Arrays.fill(mResentAt, 0);
+            mBase = mNextSeq = 0;
+            mFailed = false;
+            mRetransmissions = 0;
+            mLastProgress = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        public synchronized boolean isFailed() {
+            return mFailed;
+        }
+
+        public synchronized long getRetransmissions() {
+            return mRetransmissions;
+        }
+
+        private int slot(int seq) {
+            return (seq & 0x7FFFFFFF) % mWindow;
+        }
+
+        private void markLost(int seq) {
+            synchronized (this) {
+                if (seq - mBase >= 0 && seq - mNextSeq < 0) {
+                    mLost[slot(seq)] = true;
+                }
+            }
+        }
+
+        /**
+         * Waits for ACKs. Must be called holding the lock.
+         * @return false if the deadline passed or the stream failed
+         */
+        private boolean waitForProgress(long deadline) throws InterruptedException {
+            long now = System.currentTimeMillis();
+            if (now - mLastProgress > mFailureTimeout) {
+                mFailed = true;
+                return false;
+            }
+            if (now >= deadline) {
+                return false;
+            }
+            if (now - mLastProgress > mRetransmitTimeout
+                    && now - mLastRetransmit > mRetransmitTimeout) {
+                // Nothing acknowledged for a while, the oldest packet (or its ACK) got lost
+                mLost[slot(mBase)] = true;
+                mLastRetransmit = now;
+                return true;
+            }
+            wait(Math.min(deadline - now, mRetransmitTimeout));
+            return true;
+        }
+
+        /**
+         * Resends the packets flagged as lost, asking for an ACK in the last one
+         */
+        private void resendLost() {
+            int count = 0;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (int seq = mBase; seq != mNextSeq; seq++) {
+                    int slot = slot(seq);
+                    if (mLost[slot] && !mAcked[slot]) {
+                        mLost[slot] = false;
+                        mResentAt[slot] = now;
+                        mResend[count++] = seq;
+                    }
+                }
+                if (count == 0) {
+                    return;
+                }
+                mRetransmissions += count;
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = slot(mResend[i]);
+                byte[] packet = mPackets[slot];
+                if (i == count - 1) {
+                    packet[0] |= FLAG_ACK_REQUEST;
+                }
+                if (!mLink.send(packet, mLengths[slot])) {
+                    markLost(mResend[i]);
+                }
+            }
+        }
+
+        private void requestAck() {
+            synchronized (this) {
+                if (mBase == mNextSeq) {
+                    return;
+                }
+                writeHeader(mAckRequest, TYPE_ACK_REQUEST, mNextSeq);
+            }
+            mLink.send(mAckRequest, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Receiving side. It delivers the data in order, exactly once.
+     */
+    public static class Receiver {
+
+        public interface Listener {
+            /**
+             * A new block of data, in order
+             */
+            void onData(byte[] data);
+
+            /**
+             * An ACK packet has to be sent back to the Sender
+             */
+            void onAck(byte[] ack);
+        }
+
+        private final Listener mListener;
+        private final int mWindow;
+        private final byte[][] mBuffer;
+        private int mExpected = 0;
+        private int mSinceLastAck = 0;
+        private int mOutOfOrder = 0;
+
+        public Receiver(Listener listener, int window) {
+            mListener = listener;
+            mWindow = window;
+            mBuffer = new byte[window][];
+        }
+
+        /**
+         * Processes a packet written by the Sender
+         */
+        public void onPacket(byte[] packet) {
+            byte[] ack = null;
+            List<byte[]> ready = null;
+            synchronized (this) {
+                int type = getType(packet);
+                if (type == TYPE_ACK_REQUEST) {
+                    ack = buildAck();
+                } else if (type == TYPE_DATA) {
+                    int seq = unwrap(readSeq(packet), mExpected);
+                    int delta = seq - mExpected;
+                    boolean ackNow = (packet[0] & FLAG_ACK_REQUEST) != 0;
+                    if (delta < 0) {
+                        // Duplicate, our last ACK got lost or was late
+                        ackNow = true;
+                    } else if (delta < mWindow) {
+                        int slot = slot(seq);
+                        if (mBuffer[slot] == null) {
+                            mBuffer[slot] = Arrays.copyOfRange(packet, HEADER_SIZE, packet.length);
+                            mSinceLastAck++;
+                            if (delta > 0 && mOutOfOrder++ == 0) {
+                                // First gap, let the sender know right away
+                                ackNow = true;
+                            }
+                        }
+                        // Only the expected packet can release buffered ones
+                        while (delta == 0 && mBuffer[slot(mExpected)] != null) {
+                            if (ready == null) {
+                                ready = new ArrayList<>();
+                            }
+                            ready.add(mBuffer[slot(mExpected)]);
+                            mBuffer[slot(mExpected)] = null;
+                            mExpected++;
+                        }
+                        if (ready != null) {
+                            mOutOfOrder -= ready.size() - 1;
+                        }
+                    }
+                    if (ackNow || mSinceLastAck >= ACK_INTERVAL) {
+                        ack = buildAck();
+                    }
+                }
+            }
+            if (ready != null) {
+                for (byte[] data : ready) {
+                    mListener.onData(data);
+                }
+            }
+            if (ack != null) {
+                mListener.onAck(ack);
+            }
+        }
+
+        private int slot(int seq) {
+            return (seq & 0x7FFFFFFF) % mWindow;
+        }
+
+        private byte[] buildAck() {
+            byte[] ack = new byte[HEADER_SIZE + (mWindow + 7) / 8];
+            writeHeader(ack, TYPE_ACK, mExpected);
+            for (int i = 0; i < mWindow - 1; i++) {
+                if (mBuffer[slot(mExpected + 1 + i)] != null) {
+                    ack[HEADER_SIZE + i / 8] |= (byte) (1 << (i % 8));
+                }
+            }
+            mSinceLastAck = 0;
+            return ack;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.example.android.ble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * File transfers over a two-way stream (the RFCOMM Socket) which survive a dropped link.
+ *
+ * A file is identified by its SHA-256 and split in CHUNK_SIZE chunks. The receiver keeps the
+ * chunks it got in a ".part" file, and a bitmap of them in a ".map" file, both named after the
+ * hash. So when the same file is sent again, only the missing chunks go through:
+ * * Sender:   HELLO [magic][version][hash (32)][length (8)][chunk size (4)]
+ * * Receiver: MAP   [chunk count (4)][bitmap, one bit per chunk, LSB first]
+ * * Sender:   CHUNK [index (4)][codec (1)][payload length (4)][payload], for every missing chunk
+ * * Sender:   END   [END_OF_CHUNKS (4)]
+ * * Receiver: DONE  [status (1)], once the whole file is checked against the hash.
+ * Chunks are deflated on their own (see BLEPayloadCodec.CODEC_*), so any of them can be
+ * sent alone. Numbers are big endian.
+ *
+ * Both sides reuse their buffers, so a transfer only allocates at the start. The sender reads
+ * the file twice: once to hash it, and once to send it.
+ * This class has no Android dependencies.
+ */
+public class BLEResumableTransfer {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int MAGIC = 0x424C4552; // "BLER"
+    public static final int VERSION = 1;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_CORRUPTED = 1;
+
+    private static final int END_OF_CHUNKS = -1;
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String MAP_SUFFIX = ".map";
+    /* chunk count (4) + length (8), followed by the bitmap */
+    private static final int MAP_HEADER_SIZE = 12;
+
+    /**
+     * Progress and cancellation of a transfer
+     */
+    public interface Listener {
+        void onChunk(int index, int length);
+        boolean isCancelled();
+    }
+
+    private static int getChunkCount(long length) {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static int getChunkLength(long length, int index) {
+        return (int) Math.min(CHUNK_SIZE, length - (long) index * CHUNK_SIZE);
+    }
+
+    private static boolean isSet(byte[] bitmap, int index) {
+        return (bitmap[index >> 3] & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * Sending side of a transfer. Good for a single file.
+     */
+    public static class Sender {
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        /* Deflate may grow incompressible data a bit */
+        private final byte[] mCompressed = new byte[CHUNK_SIZE + CHUNK_SIZE / 16 + 64];
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] mHash;
+        private long mLength = -1;
+        private int mChunksSkipped = 0;
+
+        /**
+         * @param in Where the receiver answers
+         * @param out Where the file goes
+         */
+        public Sender(InputStream in, OutputStream out) {
+            // Headers are written a few bytes at a time, so they'd better not hit the Socket
+            mIn = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+            mOut = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the whole file to get its SHA-256, which identifies the transfer
+         * @param file Closed at the end
+         * @return Length of the file
+         */
+        public long prepare(InputStream file) throws IOException {
+            MessageDigest digest = BLEFileSink.newDigest();
+            long length = 0;
+            try {
+                int bytesRead;
+                while ((bytesRead = file.read(mChunk)) != -1) {
+                    digest.update(mChunk, 0, bytesRead);
+                    length += bytesRead;
+                }
+            } finally {
+                file.close();
+            }
+            mHash = digest.digest();
+            mLength = length;
+            return length;
+        }
+
+        /**
+         * Sends the chunks of a file the receiver doesn't have yet. prepare() must be called
+         * first.
+         * @param file The same file passed to prepare(), from the beginning
+         * @param compress Whether chunks should be deflated, when it pays off
+         * @param listener
+         * @return false if it was cancelled
+         * @throws IOException If the link is gone, or the receiver found the file corrupted
+         */
+        public boolean send(InputStream file, boolean compress, Listener listener) throws IOException {
+            if (mHash == null) {
+                throw new IllegalStateException("prepare() wasn't called");
+            }
+            long length = mLength;
+            try {
+                mOut.writeInt(MAGIC);
+                mOut.writeByte(VERSION);
+                mOut.write(mHash);
+                mOut.writeLong(length);
+                mOut.writeInt(CHUNK_SIZE);
+                mOut.flush();
+
+                int chunkCount = mIn.readInt();
+                if (chunkCount != getChunkCount(length)) {
+                    throw new IOException("Receiver expects " + chunkCount + " chunks");
+                }
+                byte[] bitmap = new byte[(chunkCount + 7) / 8];
+                mIn.readFully(bitmap);
+
+                for (int index = 0; index < chunkCount; index++) {
+                    if (listener.isCancelled()) {
+                        return false;
+                    }
+                    int chunkLength = getChunkLength(length, index);
+                    if (isSet(bitmap, index)) {
+                        skipFully(file, chunkLength);
+                        mChunksSkipped++;
+                        continue;
+                    }
+                    readFully(file, mChunk, chunkLength);
+                    writeChunk(index, chunkLength, compress);
+                    listener.onChunk(index, chunkLength);
+                }
+                mOut.writeInt(END_OF_CHUNKS);
+                mOut.flush();
+
+                int status = mIn.readUnsignedByte();
+                if (status != STATUS_OK) {
+                    throw new IOException("Receiver found the file corrupted");
+                }
+                return true;
+            } finally {
+                mDeflater.end();
+            }
+        }
+
+        /**
+         * Chunks the receiver already had in the last send()
+         */
+        public int getChunksSkipped() {
+            return mChunksSkipped;
+        }
+
+        private void writeChunk(int index, int length, boolean compress) throws IOException {
+            int compressedLength = (compress ? deflate(length) : -1);
+            mOut.writeInt(index);
+            if (compressedLength > 0 && compressedLength < length) {
+                mOut.writeByte(BLEPayloadCodec.CODEC_DEFLATE);
+                mOut.writeInt(compressedLength);
+                mOut.write(mCompressed, 0, compressedLength);
+            } else {
+                mOut.writeByte(BLEPayloadCodec.CODEC_NONE);
+                mOut.writeInt(length);
+                mOut.write(mChunk, 0, length);
+            }
+        }
+
+        /**
+         * @return Deflated length, or -1 if it doesn't fit in the buffer
+         */
+        private int deflate(int length) {
+            mDeflater.reset();
+            mDeflater.setInput(mChunk, 0, length);
+            mDeflater.finish();
+            int compressedLength = 0;
+            while (!mDeflater.finished()) {
+                if (compressedLength == mCompressed.length) {
+                    return -1;
+                }
+                compressedLength += mDeflater.deflate(mCompressed, compressedLength,
+                        mCompressed.length - compressedLength);
+            }
+            return compressedLength;
+        }
+
+        private static void readFully(InputStream is, byte[] buffer, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                int bytesRead = is.read(buffer, offset, length - offset);
+                if (bytesRead == -1) {
+                    throw new IOException("File shorter than expected");
+                }
+                offset += bytesRead;
+            }
+        }
+
+        private void skipFully(InputStream is, int length) throws IOException {
+            while (length > 0) {
+                long skipped = is.skip(length);
+                if (skipped <= 0) {
+                    // Some streams can't skip, so they are read instead
+                    readFully(is, mChunk, length);
+                    return;
+                }
+                length -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Receiving side of a transfer. Good for a single file.
+     */
+    public static class Receiver {
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+        private final File mStateDir;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private final ByteBuffer mChunkBuffer = ByteBuffer.wrap(mChunk);
+        private byte[] mCompressed = new byte[CHUNK_SIZE];
+        private final Inflater mInflater = new Inflater();
+        private int mChunksReceived = 0;
+
+        /**
+         * @param in Where the file comes from
+         * @param out Where the receiver answers
+         * @param stateDir Where partial transfers are kept between links
+         */
+        public Receiver(InputStream in, OutputStream out, File stateDir) {
+            // Headers are written a few bytes at a time, so they'd better not hit the Socket
+            mIn = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+            mOut = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+            mStateDir = stateDir;
+        }
+
+        /**
+         * Receives a file, or the chunks of it still missing
+         * @param target Where the file goes once complete. It's replaced if it already exists.
+         * @param listener
+         * @return The target file, or null if it was cancelled. What was received so far is
+         * kept for the next time.
+         * @throws IOException If the link is gone, or the file is corrupted. A corrupted
+         * file is deleted, so the next transfer starts over.
+         */
+        public File receive(File target, Listener listener) throws IOException {
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("Not a resumable transfer");
+            }
+            int version = mIn.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            byte[] hash = new byte[BLEFileSink.HASH_SIZE];
+            mIn.readFully(hash);
+            long length = mIn.readLong();
+            int chunkSize = mIn.readInt();
+            if (length < 0 || chunkSize != CHUNK_SIZE) {
+                throw new IOException("Unsupported chunk size " + chunkSize);
+            }
+            int chunkCount = getChunkCount(length);
+
+            String name = toHex(hash);
+            File partFile = new File(mStateDir, name + PART_SUFFIX);
+            File mapFile = new File(mStateDir, name + MAP_SUFFIX);
+            RandomAccessFile part = new RandomAccessFile(partFile, "rw");
+            RandomAccessFile map = new RandomAccessFile(mapFile, "rw");
+            boolean complete = false;
+            try {
+                byte[] bitmap = loadBitmap(map, chunkCount, length);
+                mOut.writeInt(chunkCount);
+                mOut.write(bitmap);
+                mOut.flush();
+
+                FileChannel channel = part.getChannel();
+                int index;
+                while ((index = mIn.readInt()) != END_OF_CHUNKS) {
+                    if (listener.isCancelled()) {
+                        return null;
+                    }
+                    if (index < 0 || index >= chunkCount) {
+                        throw new IOException("Bad chunk " + index);
+                    }
+                    int chunkLength = getChunkLength(length, index);
+                    readChunk(chunkLength);
+                    mChunkBuffer.limit(chunkLength);
+                    mChunkBuffer.position(0);
+                    long position = (long) index * CHUNK_SIZE;
+                    while (mChunkBuffer.hasRemaining()) {
+                        position += channel.write(mChunkBuffer, position);
+                    }
+                    // The chunk must be on disk before the map says so
+                    channel.force(false);
+                    bitmap[index >> 3] |= (1 << (index & 7));
+                    map.seek(MAP_HEADER_SIZE + (index >> 3));
+                    map.write(bitmap[index >> 3]);
+                    mChunksReceived++;
+                    listener.onChunk(index, chunkLength);
+                }
+
+                for (int i = 0; i < chunkCount; i++) {
+                    if (!isSet(bitmap, i)) {
+                        throw new IOException("Chunk " + i + " never arrived");
+                    }
+                }
+                boolean valid = (part.length() >= length && checkHash(part, length, hash));
+                mOut.writeByte(valid ? STATUS_OK : STATUS_CORRUPTED);
+                mOut.flush();
+                if (!valid) {
+                    // No way to tell which chunk is wrong, so everything goes
+                    part.close();
+                    map.close();
+                    partFile.delete();
+                    mapFile.delete();
+                    throw new IOException("File corrupted, hash doesn't match");
+                }
+                part.setLength(length);
+                complete = true;
+            } finally {
+                part.close();
+                map.close();
+                mInflater.end();
+            }
+
+            if (complete) {
+                if (target.exists() && !target.delete()) {
+                    throw new IOException("Couldn't replace " + target);
+                }
+                if (!partFile.renameTo(target)) {
+                    throw new IOException("Couldn't rename " + partFile + " to " + target);
+                }
+                mapFile.delete();
+            }
+            return target;
+        }
+
+        /**
+         * Chunks received in the last receive(), not counting the ones kept from before
+         */
+        public int getChunksReceived() {
+            return mChunksReceived;
+        }
+
+        /**
+         * Reads the map of a previous transfer of the same file, or starts a new one
+         */
+        private byte[] loadBitmap(RandomAccessFile map, int chunkCount, long length) throws IOException {
+            byte[] bitmap = new byte[(chunkCount + 7) / 8];
+            if (map.length() == MAP_HEADER_SIZE + bitmap.length) {
+                map.seek(0);
+                if (map.readInt() == chunkCount && map.readLong() == length) {
+                    map.readFully(bitmap);
+                    return bitmap;
+                }
+            }
+            map.setLength(0);
+            map.writeInt(chunkCount);
+            map.writeLong(length);
+            map.write(bitmap);
+            map.getFD().sync();
+            return bitmap;
+        }
+
+        /**
+         * Reads a chunk into mChunk, inflating it if needed
+         */
+        private void readChunk(int chunkLength) throws IOException {
+            int codec = mIn.readUnsignedByte();
+            int payloadLength = mIn.readInt();
+            if (codec == BLEPayloadCodec.CODEC_NONE) {
+                if (payloadLength != chunkLength) {
+                    throw new IOException("Chunk of " + payloadLength + " bytes, expected " + chunkLength);
+                }
+                mIn.readFully(mChunk, 0, chunkLength);
+                return;
+            }
+            if (codec != BLEPayloadCodec.CODEC_DEFLATE) {
+                throw new IOException("Unknown codec " + codec);
+            }
+            if (payloadLength < 0 || payloadLength > 2 * CHUNK_SIZE) {
+                throw new IOException("Chunk of " + payloadLength + " bytes");
+            }
+            if (payloadLength > mCompressed.length) {
+                mCompressed = new byte[payloadLength];
+            }
+            mIn.readFully(mCompressed, 0, payloadLength);
+            mInflater.reset();
+            mInflater.setInput(mCompressed, 0, payloadLength);
+            try {
+                int inflated = 0;
+                while (inflated < chunkLength && !mInflater.finished()) {
+                    int count = mInflater.inflate(mChunk, inflated, chunkLength - inflated);
+                    if (count == 0 && mInflater.needsInput()) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != chunkLength || !mInflater.finished()) {
+                    throw new IOException("Chunk inflated to " + inflated + " bytes, expected " + chunkLength);
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(ex.toString());
+            }
+        }
+
+        private boolean checkHash(RandomAccessFile part, long length, byte[] hash) throws IOException {
+            MessageDigest digest = BLEFileSink.newDigest();
+            part.seek(0);
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = part.read(mChunk, 0, (int) Math.min(mChunk.length, remaining));
+                if (bytesRead == -1) {
+                    return false;
+                }
+                digest.update(mChunk, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            return MessageDigest.isEqual(hash, digest.digest());
+        }
+
+        private static String toHex(byte[] data) {
+            StringBuilder hex = new StringBuilder(data.length * 2);
+            for (byte b : data) {
+                hex.append(Character.forDigit((b >> 4) & 0x0F, 16));
+                hex.append(Character.forDigit(b & 0x0F, 16));
+            }
+            return hex.toString();
+        }
+    }
+}
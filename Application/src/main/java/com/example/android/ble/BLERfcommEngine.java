@@ -0,0 +1,856 @@
+package com.example.android.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the RFCOMM Sockets of the app: listens, connects, and reads and writes all of them with
+ * a fixed number of threads, however many connections there are.
+ *
+ * Bluetooth Sockets only have blocking streams, there's no selector to wait on. So one loop
+ * thread polls every connection with available() and only reads what's already there, which
+ * never blocks, and backs off while nothing arrives. What it reads goes to the Callback of the
+ * connection on the worker pool, in order. Writes are queued and drained by the workers too.
+ *
+ * What blocks for long never takes a worker, it has pools of its own:
+ * * Accepts and connects run on CONNECTORS threads. Accepts in short slices, so listening
+ *   servers and connects share them.
+ * * onConnected() runs on TRANSFERS threads. Code that needs a blocking stream (ie: a file
+ *   transfer protocol) takes the connection over with getInputStream() and runs there until
+ *   it's done. Connections opened while they are all busy wait for one.
+ *
+ * A Socket only tells its peer is gone when a read fails, and the loop only reads when there's
+ * data. So a polled connection is closed when a write fails, or when the ACL link to the
+ * device drops (see init()).
+ *
+ * Every byte in and out goes through here, see getStats().
+ */
+public class BLERfcommEngine {
+
+    private static final String TAG = "BLERfcommEngine";
+
+    public static final int WORKERS = 4;
+    public static final int CONNECTORS = 2;
+    public static final int TRANSFERS = 2;
+    /* Size of the read buffers, and how many free ones are kept */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int BUFFERS = 16;
+    /* Buffers read ahead for a connection, before the loop waits for its consumer */
+    private static final int MAX_PENDING_BUFFERS = 8;
+    /* While idle the poll interval doubles up to this, in milliseconds. Every poll is a call
+       into the Bluetooth stack per connection, so an idle link shouldn't poll often. */
+    private static final long MAX_POLL_INTERVAL = 200;
+    /* An accept() waits this long, and gives the connector back, in milliseconds */
+    private static final int ACCEPT_SLICE = 250;
+
+    /**
+     * Events of a connection. They run one at a time and in order, on the worker pool but
+     * onConnected(), which runs on the transfer pool.
+     */
+    public interface Callback {
+        /**
+         * The connection is open. Comes before any onData(). It runs on the transfer pool, so
+         * stream users call Connection.getInputStream() from here, and may block until they're
+         * done.
+         */
+        void onConnected(Connection connection);
+
+        /**
+         * Data arrived. The buffer belongs to the callback now, give it back with release().
+         */
+        void onData(Connection connection, byte[] buffer, int length);
+
+        /**
+         * The connection is closed, or couldn't be opened (then there was no onConnected()).
+         * @param cause null if it was closed locally, or the peer ended the stream
+         */
+        void onClosed(Connection connection, IOException cause);
+    }
+
+    /**
+     * Decides on the connections a server accepts
+     */
+    public interface Acceptor {
+        /**
+         * @return The callback of the new connection, or null to refuse it
+         */
+        Callback onAccept(BluetoothDevice device);
+
+        /**
+         * The server stopped listening
+         */
+        void onError(IOException e);
+    }
+
+    private static BLERfcommEngine instance = new BLERfcommEngine();
+
+    public static BLERfcommEngine getInstance() {
+        return instance;
+    }
+
+    private final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+    private final BLEBufferPool mBuffers = new BLEBufferPool(BUFFER_SIZE, BUFFERS);
+    private final ExecutorService mWorkers = newPool(WORKERS, "RfcommWorker");
+    private final ExecutorService mConnectors = newPool(CONNECTORS, "RfcommConnector");
+    private final ExecutorService mTransfers = newPool(TRANSFERS, "RfcommTransfer");
+
+    /* Open connections, copied on every change so the loop walks them without locks */
+    private volatile Connection[] mConnections = new Connection[0];
+    private final Object mLoopLock = new Object();
+    /* Counts what may make a connection pollable, so the loop doesn't miss it while scanning */
+    private long mLoopWakeups = 0;
+    private Thread mLoop;
+    private Context mContext;
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mIdlePolls = new AtomicLong();
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mConnected = new AtomicLong();
+
+    private BLERfcommEngine() {
+    }
+
+    private static ExecutorService newPool(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + (mCount++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Watches the ACL links, so connections to a device that went away get closed.
+     * Only the first call does something.
+     */
+    public synchronized void init(Context context) {
+        if (mContext != null) {
+            return;
+        }
+        mContext = context.getApplicationContext();
+        mContext.registerReceiver(mReceiver, new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED));
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            for (Connection connection : mConnections) {
+                if (device.getAddress().equals(connection.getAddress())) {
+                    connection.close(new IOException("Link to " + device.getAddress() + " lost"));
+                }
+            }
+        }
+    };
+
+    /**
+     * Starts listening for RFCOMM connections
+     * @param secure Whether the link must be authenticated and encrypted
+     * @throws IOException If the server Socket can't be created
+     */
+    public Server listen(String name, UUID uuid, boolean secure, Acceptor acceptor) throws IOException {
+        BluetoothServerSocket serverSocket = (secure
+                ? mAdapter.listenUsingRfcommWithServiceRecord(name, uuid)
+                : mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid));
+        Server server = new Server(serverSocket, acceptor, name);
+        mConnectors.execute(server);
+        return server;
+    }
+
+    /**
+     * Connects to a device. Discovery is cancelled, as it slows down the connection.
+     * @return The connection, already usable: what's written before it opens is queued
+     */
+    public Connection connect(final BluetoothDevice device, final UUID uuid, final boolean secure,
+                              Callback callback) {
+        final Connection connection = new Connection(device, callback);
+        // connect() blocks for seconds when the device doesn't answer
+        mConnectors.execute(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothSocket socket;
+                try {
+                    socket = (secure ? device.createRfcommSocketToServiceRecord(uuid)
+                            : device.createInsecureRfcommSocketToServiceRecord(uuid));
+                    if (mAdapter != null) {
+                        mAdapter.cancelDiscovery();
+                    }
+                    // close() can abort it from now on
+                    if (!connection.setSocket(socket)) {
+                        return;
+                    }
+                    socket.connect();
+                } catch (IOException e) {
+                    connection.close(e);
+                    return;
+                }
+                mConnected.incrementAndGet();
+                connection.open();
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Gives back a buffer that came with onData()
+     */
+    public void release(byte[] buffer) {
+        mBuffers.release(buffer);
+    }
+
+    public int getConnectionCount() {
+        return mConnections.length;
+    }
+
+    /**
+     * Totals of all the Socket I/O, in a human readable way
+     */
+    public String getStats() {
+        return mConnections.length + " open, " + mAccepted.get() + " accepted, "
+                + mConnected.get() + " connected, read " + mBytesRead.get() + " B in "
+                + mReads.get() + " reads, wrote " + mBytesWritten.get() + " B in "
+                + mWrites.get() + " writes, " + mIdlePolls.get() + " idle polls";
+    }
+
+    private void add(Connection connection) {
+        synchronized (mLoopLock) {
+            Connection[] connections = Arrays.copyOf(mConnections, mConnections.length + 1);
+            connections[connections.length - 1] = connection;
+            mConnections = connections;
+            if (mLoop == null) {
+                mLoop = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runLoop();
+                    }
+                }, "RfcommLoop");
+                mLoop.setDaemon(true);
+                mLoop.start();
+            }
+            mLoopWakeups++;
+            mLoopLock.notifyAll();
+        }
+    }
+
+    private void remove(Connection connection) {
+        synchronized (mLoopLock) {
+            Connection[] connections = mConnections;
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] == connection) {
+                    Connection[] updated = new Connection[connections.length - 1];
+                    System.arraycopy(connections, 0, updated, 0, i);
+                    System.arraycopy(connections, i + 1, updated, i, updated.length - i);
+                    mConnections = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void wakeLoop() {
+        synchronized (mLoopLock) {
+            mLoopWakeups++;
+            mLoopLock.notifyAll();
+        }
+    }
+
+    private void runLoop() {
+        long interval = 0;
+        try {
+            while (true) {
+                long wakeups;
+                synchronized (mLoopLock) {
+                    wakeups = mLoopWakeups;
+                }
+                boolean active = false;
+                boolean polled = false;
+                for (Connection connection : mConnections) {
+                    if (connection.isPolled()) {
+                        polled = true;
+                        active |= connection.poll();
+                    }
+                }
+                if (active) {
+                    interval = 0;
+                    continue;
+                }
+                synchronized (mLoopLock) {
+                    if (!polled) {
+                        // Nothing to poll until a connection is added, or its consumer
+                        // makes room for more data
+                        if (wakeups == mLoopWakeups) {
+                            mLoopLock.wait();
+                        }
+                        interval = 0;
+                    } else {
+                        interval = (interval == 0 ? 1 : Math.min(interval * 2, MAX_POLL_INTERVAL));
+                        mIdlePolls.incrementAndGet();
+                        mLoopLock.wait(interval);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Loop interrupted");
+        }
+    }
+
+    /**
+     * A listening server Socket. Every run() is one slice of accept().
+     */
+    public class Server implements Runnable {
+        private final BluetoothServerSocket mServerSocket;
+        private final Acceptor mAcceptor;
+        private final String mName;
+        private volatile boolean mClosed = false;
+
+        Server(BluetoothServerSocket serverSocket, Acceptor acceptor, String name) {
+            mServerSocket = serverSocket;
+            mAcceptor = acceptor;
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            if (mClosed) {
+                return;
+            }
+            long start = SystemClock.uptimeMillis();
+            BluetoothSocket socket;
+            try {
+                // close() aborts it
+                socket = mServerSocket.accept(ACCEPT_SLICE);
+            } catch (IOException e) {
+                if (mClosed) {
+                    return;
+                }
+                if (SystemClock.uptimeMillis() - start >= ACCEPT_SLICE / 2) {
+                    // Just timed out
+                    mConnectors.execute(this);
+                    return;
+                }
+                Log.e(TAG, mName + " accept() failed", e);
+                close();
+                mAcceptor.onError(e);
+                return;
+            }
+            mConnectors.execute(this);
+            if (socket == null) {
+                return;
+            }
+            mAccepted.incrementAndGet();
+            Callback callback = mAcceptor.onAccept(socket.getRemoteDevice());
+            if (callback == null) {
+                closeSocket(socket);
+                return;
+            }
+            Connection connection = new Connection(socket.getRemoteDevice(), callback);
+            if (connection.setSocket(socket)) {
+                connection.open();
+            }
+        }
+
+        /**
+         * Stops listening. Accepted connections stay open.
+         */
+        public void close() {
+            mClosed = true;
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Couldn't close " + mName + " server socket");
+            }
+        }
+    }
+
+    /**
+     * An RFCOMM connection. Either its data goes to Callback.onData(), or, once
+     * getInputStream() is called, to the stream.
+     */
+    public class Connection {
+        private final BluetoothDevice mDevice;
+        private final Callback mCallback;
+        private BluetoothSocket mSocket;
+        private InputStream mIn;
+        private OutputStream mOut;
+        private boolean mOpen = false;
+        private boolean mClosed = false;
+        private boolean mStreaming = false;
+
+        /* Buffers read and not consumed yet, as a ring */
+        private final byte[][] mPending = new byte[MAX_PENDING_BUFFERS][];
+        private final int[] mPendingLengths = new int[MAX_PENDING_BUFFERS];
+        private int mPendingHead = 0;
+        private int mPendingCount = 0;
+        /* Already read from the head buffer, by the stream */
+        private int mHeadOffset = 0;
+        private boolean mDelivering = false;
+
+        /* Callback events, run on the workers one at a time */
+        private final ArrayDeque<Runnable> mEvents = new ArrayDeque<>();
+        private boolean mRunningEvents = false;
+
+        private final ArrayDeque<byte[]> mOutbound = new ArrayDeque<>();
+        private boolean mWriting = false;
+        private final Object mWriteLock = new Object();
+
+        private final AtomicLong mConnectionBytesRead = new AtomicLong();
+        private final AtomicLong mConnectionBytesWritten = new AtomicLong();
+
+        Connection(BluetoothDevice device, Callback callback) {
+            mDevice = device;
+            mCallback = callback;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public String getAddress() {
+            return mDevice.getAddress();
+        }
+
+        public synchronized boolean isOpen() {
+            return mOpen && !mClosed;
+        }
+
+        public long getBytesRead() {
+            return mConnectionBytesRead.get();
+        }
+
+        public long getBytesWritten() {
+            return mConnectionBytesWritten.get();
+        }
+
+        /**
+         * Queues data to send. The array must not change afterwards.
+         */
+        public void write(byte[] data) {
+            synchronized (mOutbound) {
+                mOutbound.add(data);
+                if (mWriting || !isOpen()) {
+                    return;
+                }
+                mWriting = true;
+            }
+            mWorkers.execute(mDrainWrites);
+        }
+
+        /**
+         * Reads the connection as a blocking stream, instead of through onData(). The loop
+         * leaves it alone then: the reading thread is blocked anyway, so it reads the Socket
+         * itself, and sees the end of the stream.
+         */
+        public synchronized InputStream getInputStream() {
+            mStreaming = true;
+            return mInputStream;
+        }
+
+        /**
+         * Writes to the connection on the calling thread, blocking, instead of through write()
+         */
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        public void close() {
+            close(null);
+        }
+
+        synchronized boolean setSocket(BluetoothSocket socket) {
+            if (mClosed) {
+                closeSocket(socket);
+                return false;
+            }
+            mSocket = socket;
+            return true;
+        }
+
+        void open() {
+            try {
+                InputStream in = mSocket.getInputStream();
+                OutputStream out = mSocket.getOutputStream();
+                synchronized (this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mIn = in;
+                    mOut = out;
+                    mOpen = true;
+                }
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnected(Connection.this);
+                }
+            }, true);
+            add(this);
+            synchronized (mOutbound) {
+                if (mOutbound.isEmpty() || mWriting) {
+                    return;
+                }
+                mWriting = true;
+            }
+            mWorkers.execute(mDrainWrites);
+        }
+
+        void close(IOException cause) {
+            BluetoothSocket socket;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                socket = mSocket;
+                while (mPendingCount > 0) {
+                    mBuffers.release(takePending());
+                }
+            }
+            synchronized (mOutbound) {
+                mOutbound.clear();
+            }
+            remove(this);
+            if (socket != null) {
+                closeSocket(socket);
+            }
+            if (cause != null) {
+                Log.d(TAG, "Connection to " + getAddress() + " closed: " + cause.getMessage());
+            }
+            final IOException closeCause = cause;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onClosed(Connection.this, closeCause);
+                }
+            });
+        }
+
+        /**
+         * Whether the loop has to poll it: it's open, not taken over by a stream, and its
+         * consumer has room for more data
+         */
+        synchronized boolean isPolled() {
+            return mOpen && !mClosed && !mStreaming && mPendingCount < MAX_PENDING_BUFFERS;
+        }
+
+        /**
+         * Reads what's available, without blocking. Runs on the loop.
+         * @return Whether something was read
+         */
+        boolean poll() {
+            InputStream in;
+            synchronized (this) {
+                if (mClosed || mStreaming || mPendingCount == MAX_PENDING_BUFFERS) {
+                    return false;
+                }
+                in = mIn;
+            }
+            byte[] buffer = null;
+            try {
+                int available = in.available();
+                if (available <= 0) {
+                    return false;
+                }
+                buffer = mBuffers.acquire(BUFFER_SIZE);
+                int length = in.read(buffer, 0, Math.min(available, BUFFER_SIZE));
+                if (length < 0) {
+                    mBuffers.release(buffer);
+                    close(new IOException("Closed by " + getAddress()));
+                    return false;
+                }
+                onBytesRead(length);
+                onRead(buffer, length);
+                return true;
+            } catch (IOException e) {
+                if (buffer != null) {
+                    mBuffers.release(buffer);
+                }
+                close(e);
+                return false;
+            }
+        }
+
+        private void onBytesRead(int length) {
+            mReads.incrementAndGet();
+            mBytesRead.addAndGet(length);
+            mConnectionBytesRead.addAndGet(length);
+        }
+
+        private void onRead(byte[] buffer, int length) {
+            synchronized (this) {
+                if (mClosed) {
+                    mBuffers.release(buffer);
+                    return;
+                }
+                int tail = (mPendingHead + mPendingCount) % MAX_PENDING_BUFFERS;
+                mPending[tail] = buffer;
+                mPendingLengths[tail] = length;
+                mPendingCount++;
+                if (mStreaming || mDelivering) {
+                    return;
+                }
+                mDelivering = true;
+            }
+            post(mDeliver);
+        }
+
+        /* Only call holding the lock */
+        private byte[] takePending() {
+            byte[] buffer = mPending[mPendingHead];
+            mPending[mPendingHead] = null;
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING_BUFFERS;
+            mPendingCount--;
+            mHeadOffset = 0;
+            return buffer;
+        }
+
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    byte[] buffer;
+                    int length;
+                    boolean wasFull;
+                    synchronized (Connection.this) {
+                        if (mPendingCount == 0 || mStreaming) {
+                            mDelivering = false;
+                            return;
+                        }
+                        wasFull = (mPendingCount == MAX_PENDING_BUFFERS);
+                        length = mPendingLengths[mPendingHead];
+                        buffer = takePending();
+                    }
+                    if (wasFull) {
+                        wakeLoop();
+                    }
+                    mCallback.onData(Connection.this, buffer, length);
+                }
+            }
+        };
+
+        private final Runnable mDrainWrites = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    byte[] data;
+                    synchronized (mOutbound) {
+                        data = mOutbound.poll();
+                        if (data == null) {
+                            mWriting = false;
+                            return;
+                        }
+                    }
+                    try {
+                        writeNow(data, 0, data.length);
+                    } catch (IOException e) {
+                        synchronized (mOutbound) {
+                            mWriting = false;
+                        }
+                        close(e);
+                        return;
+                    }
+                }
+            }
+        };
+
+        private void writeNow(byte[] data, int offset, int length) throws IOException {
+            OutputStream out;
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Connection closed");
+                }
+                out = mOut;
+            }
+            synchronized (mWriteLock) {
+                out.write(data, offset, length);
+            }
+            mWrites.incrementAndGet();
+            mBytesWritten.addAndGet(length);
+            mConnectionBytesWritten.addAndGet(length);
+        }
+
+        private void post(Runnable event) {
+            post(event, false);
+        }
+
+        /**
+         * @param mayBlock Whether the event may block for long, so it runs on the transfer pool.
+         * Events queued behind it wait for it, as always.
+         */
+        private void post(Runnable event, boolean mayBlock) {
+            synchronized (mEvents) {
+                mEvents.add(event);
+                if (mRunningEvents) {
+                    return;
+                }
+                mRunningEvents = true;
+            }
+            if (mayBlock) {
+                mTransfers.execute(mRunEvents);
+            } else {
+                mWorkers.execute(mRunEvents);
+            }
+        }
+
+        private final Runnable mRunEvents = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable event;
+                    synchronized (mEvents) {
+                        event = mEvents.poll();
+                        if (event == null) {
+                            mRunningEvents = false;
+                            return;
+                        }
+                    }
+                    try {
+                        event.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Callback of " + getAddress() + " failed", e);
+                    }
+                }
+            }
+        };
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                InputStream in;
+                synchronized (Connection.this) {
+                    // What the loop read before the switch goes first
+                    if (mPendingCount > 0) {
+                        int count = Math.min(len, mPendingLengths[mPendingHead] - mHeadOffset);
+                        System.arraycopy(mPending[mPendingHead], mHeadOffset, b, off, count);
+                        mHeadOffset += count;
+                        if (mHeadOffset == mPendingLengths[mPendingHead]) {
+                            mBuffers.release(takePending());
+                        }
+                        return count;
+                    }
+                    if (mClosed) {
+                        return -1;
+                    }
+                    in = mIn;
+                }
+                int count;
+                try {
+                    count = in.read(b, off, len);
+                } catch (IOException e) {
+                    Connection.this.close(e);
+                    throw e;
+                }
+                if (count == -1) {
+                    Connection.this.close();
+                    return -1;
+                }
+                onBytesRead(count);
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                InputStream in;
+                synchronized (Connection.this) {
+                    if (mPendingCount > 0) {
+                        return mPendingLengths[mPendingHead] - mHeadOffset;
+                    }
+                    if (mClosed) {
+                        return 0;
+                    }
+                    in = mIn;
+                }
+                return in.available();
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    writeNow(b, off, len);
+                } catch (IOException e) {
+                    Connection.this.close(e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                OutputStream out;
+                synchronized (Connection.this) {
+                    out = mOut;
+                }
+                if (out != null) {
+                    synchronized (mWriteLock) {
+                        out.flush();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+        };
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Couldn't close RFCOMM socket");
+        }
+    }
+}
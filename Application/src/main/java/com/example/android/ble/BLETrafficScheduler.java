@@ -0,0 +1,194 @@
+package com.example.android.ble;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides what goes next on a link shared by chat messages and bulk transfers.
+ *
+ * Items are queued in one of three traffic classes:
+ * * CLASS_INTERACTIVE: chat messages. Strict priority, they go as soon as the link is free.
+ * * CLASS_CONTROL: everything needed to keep the link working (MTU, reads, descriptors...).
+ * * CLASS_BULK: transfers. They only get what the other classes leave, and no more than the
+ *   bulk rate, see setBulkRate().
+ * Items of the same class keep their order.
+ *
+ * This class has no Android dependencies.
+ */
+public class BLETrafficScheduler<T extends BLETrafficScheduler.Item> {
+
+    public static final int CLASS_INTERACTIVE = 0;
+    public static final int CLASS_CONTROL = 1;
+    public static final int CLASS_BULK = 2;
+
+    /**
+     * Something to schedule
+     */
+    public interface Item {
+        /**
+         * One of CLASS_*
+         */
+        int getTrafficClass();
+
+        /**
+         * Bytes it will put on the link
+         */
+        int getSize();
+    }
+
+    private final ArrayDeque<T> mInteractive = new ArrayDeque<>();
+    private final ArrayDeque<T> mControl = new ArrayDeque<>();
+    private final ArrayDeque<T> mBulk = new ArrayDeque<>();
+    private final TokenBucket mBulkBucket = new TokenBucket();
+
+    public synchronized void offer(T item) {
+        getQueue(item.getTrafficClass()).add(item);
+    }
+
+    /**
+     * Takes the next item allowed to go
+     * @param now Current time, in milliseconds
+     * @return null if there's nothing, or only bulk items over the bulk rate
+     */
+    public synchronized T poll(long now) {
+        if (!mInteractive.isEmpty()) {
+            return mInteractive.poll();
+        }
+        if (!mControl.isEmpty()) {
+            return mControl.poll();
+        }
+        T bulk = mBulk.peek();
+        if (bulk != null && mBulkBucket.tryAcquire(bulk.getSize(), now)) {
+            return mBulk.poll();
+        }
+        return null;
+    }
+
+    /**
+     * Time until poll() will return something
+     * @param now Current time, in milliseconds
+     * @return 0 if right away, -1 if there's nothing queued
+     */
+    public synchronized long getDelay(long now) {
+        if (!mInteractive.isEmpty() || !mControl.isEmpty()) {
+            return 0;
+        }
+        T bulk = mBulk.peek();
+        return (bulk == null ? -1 : mBulkBucket.getDelay(bulk.getSize(), now));
+    }
+
+    /**
+     * Class of the next item, whether it's allowed to go or not
+     * @return One of CLASS_*, -1 if there's nothing queued
+     */
+    public synchronized int peekClass() {
+        if (!mInteractive.isEmpty()) {
+            return CLASS_INTERACTIVE;
+        }
+        if (!mControl.isEmpty()) {
+            return CLASS_CONTROL;
+        }
+        return (mBulk.isEmpty() ? -1 : CLASS_BULK);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mInteractive.isEmpty() && mControl.isEmpty() && mBulk.isEmpty();
+    }
+
+    /**
+     * Takes everything queued, in priority order
+     */
+    public synchronized List<T> clear() {
+        List<T> items = new ArrayList<>(mInteractive.size() + mControl.size() + mBulk.size());
+        items.addAll(mInteractive);
+        items.addAll(mControl);
+        items.addAll(mBulk);
+        mInteractive.clear();
+        mControl.clear();
+        mBulk.clear();
+        return items;
+    }
+
+    /**
+     * Caps the bandwidth of bulk items
+     * @param bytesPerSecond 0 for no cap
+     * @param burst Bytes that can go at once after some idle time
+     */
+    public void setBulkRate(long bytesPerSecond, int burst) {
+        mBulkBucket.setRate(bytesPerSecond, burst);
+    }
+
+    private ArrayDeque<T> getQueue(int trafficClass) {
+        switch (trafficClass) {
+            case CLASS_INTERACTIVE:
+                return mInteractive;
+            case CLASS_CONTROL:
+                return mControl;
+            case CLASS_BULK:
+                return mBulk;
+            default:
+                throw new IllegalArgumentException("Unknown traffic class " + trafficClass);
+        }
+    }
+
+    /**
+     * Token bucket of bytes. Tokens are kept in thousandths of a byte, so a millisecond
+     * refill is exact for any rate.
+     */
+    public static class TokenBucket {
+        private long mRate = 0;
+        private long mCapacity = 0;
+        private long mTokens = 0;
+        private long mLastRefill = -1;
+
+        /**
+         * @param bytesPerSecond 0 for no cap
+         * @param burst Bytes that can go at once after some idle time
+         */
+        public synchronized void setRate(long bytesPerSecond, int burst) {
+            mRate = bytesPerSecond;
+            mCapacity = Math.max(burst, 1) * 1000L;
+            mTokens = Math.min(mTokens, mCapacity);
+        }
+
+        /**
+         * Takes tokens for some bytes, if there are enough
+         * @param now Current time, in milliseconds
+         */
+        public synchronized boolean tryAcquire(int bytes, long now) {
+            if (mRate <= 0) {
+                return true;
+            }
+            refill(now);
+            long needed = bytes * 1000L;
+            // A burst smaller than an item would block it forever
+            if (mTokens >= Math.min(needed, mCapacity)) {
+                mTokens -= needed;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Time until tryAcquire() would succeed, in milliseconds
+         */
+        public synchronized long getDelay(int bytes, long now) {
+            if (mRate <= 0) {
+                return 0;
+            }
+            refill(now);
+            long missing = Math.min(bytes * 1000L, mCapacity) - mTokens;
+            return (missing <= 0 ? 0 : (missing + mRate - 1) / mRate);
+        }
+
+        private void refill(long now) {
+            if (mLastRefill < 0) {
+                mTokens = mCapacity;
+            } else if (now > mLastRefill) {
+                mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mRate);
+            }
+            mLastRefill = now;
+        }
+    }
+}
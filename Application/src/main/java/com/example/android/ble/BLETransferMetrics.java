@@ -0,0 +1,82 @@
+package com.example.android.ble;
+
+/**
+ * Bulk bytes sent under every connection priority, so their throughput can be compared.
+ *
+ * Only busy time counts: gaps longer than IDLE_GAP between two writes are taken as idle, so
+ * a priority doesn't look slow just because the link was idle while it was set.
+ * Priorities are BLEConnectionPriorityManager.PRIORITY_*.
+ *
+ * This class has no Android dependencies.
+ */
+public class BLETransferMetrics {
+
+    /* Longer gaps between writes aren't counted as transfer time, in milliseconds */
+    private static final long IDLE_GAP = 100;
+    private static final int PRIORITIES = 3;
+
+    private final long[] mBytes = new long[PRIORITIES];
+    private final long[] mBusyTime = new long[PRIORITIES];
+    private final int[] mChanges = new int[PRIORITIES];
+    private int mPriority = BLEConnectionPriorityManager.PRIORITY_BALANCED;
+    private long mLastWrite = -1;
+
+    /**
+     * Bulk bytes went through the link
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onBytes(int bytes, long now) {
+        if (mLastWrite >= 0) {
+            mBusyTime[mPriority] += Math.min(now - mLastWrite, IDLE_GAP);
+        }
+        mLastWrite = now;
+        mBytes[mPriority] += bytes;
+    }
+
+    /**
+     * The link got a new connection priority
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onPriorityChanged(int priority, long now) {
+        if (mLastWrite >= 0) {
+            // The time up to the change belongs to the old priority
+            mBusyTime[mPriority] += Math.min(now - mLastWrite, IDLE_GAP);
+            mLastWrite = now;
+        }
+        mPriority = priority;
+        mChanges[priority]++;
+    }
+
+    /**
+     * @return Bytes per second sent under a priority, 0 if nothing was
+     */
+    public synchronized long getThroughput(int priority) {
+        return (mBusyTime[priority] == 0 ? 0 : mBytes[priority] * 1000 / mBusyTime[priority]);
+    }
+
+    /**
+     * Times the link switched to a priority
+     */
+    public synchronized int getChanges(int priority) {
+        return mChanges[priority];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < PRIORITIES; i++) {
+            mBytes[i] = mBusyTime[i] = mChanges[i] = 0;
+        }
+        mPriority = BLEConnectionPriorityManager.PRIORITY_BALANCED;
+        mLastWrite = -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "high " + describe(BLEConnectionPriorityManager.PRIORITY_HIGH)
+                + ", balanced " + describe(BLEConnectionPriorityManager.PRIORITY_BALANCED)
+                + ", low power " + describe(BLEConnectionPriorityManager.PRIORITY_LOW_POWER);
+    }
+
+    private String describe(int priority) {
+        return mBytes[priority] + " B at " + getThroughput(priority) + " B/s (" + mChanges[priority] + " switches)";
+    }
+}
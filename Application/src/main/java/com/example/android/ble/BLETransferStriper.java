@@ -0,0 +1,66 @@
+package com.example.android.ble;
+
+/**
+ * Spreads bulk packets over several transfer characteristics ("stripes"), round-robin.
+ *
+ * Some stacks serialise writes per attribute handle, so a single transfer characteristic can
+ * cap the throughput. Every packet already carries a sequence number (see BLEReliableStream),
+ * so the receiver puts them back in order whatever stripe they came through.
+ *
+ * The number of stripes is negotiated at connect time: the Central uses as many as it wants
+ * and the Peripheral exposes, see negotiate(). Older Peripherals only have stripe 0, the
+ * original transfer characteristic.
+ *
+ * This class has no Android dependencies.
+ */
+public class BLETransferStriper {
+
+    private int mStripes;
+    private int mNext = 0;
+
+    /**
+     * @param stripes Number of stripes to use
+     */
+    public BLETransferStriper(int stripes) {
+        setStripes(stripes);
+    }
+
+    public synchronized void setStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("At least one stripe is needed");
+        }
+        mStripes = stripes;
+        mNext = 0;
+    }
+
+    public synchronized int getStripes() {
+        return mStripes;
+    }
+
+    /**
+     * Stripe of the next packet
+     */
+    public synchronized int next() {
+        int stripe = mNext;
+        mNext = (mNext + 1) % mStripes;
+        return stripe;
+    }
+
+    /**
+     * @param wanted Stripes the Central would like to use
+     * @param available Stripes the Peripheral exposes
+     * @return Stripes to use, at least one
+     */
+    public static int negotiate(int wanted, int available) {
+        return Math.max(1, Math.min(wanted, available));
+    }
+
+    /**
+     * How far out of order packets may arrive, when stripes are serviced independently
+     * @param stripes
+     * @param inFlight Max number of packets queued or on their way
+     */
+    public static int getReorderTolerance(int stripes, int inFlight) {
+        return (stripes - 1) * inFlight;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.ble;
+
+import java.util.HashMap;
+
+/**
+ * Picks the transport a payload should go through, the one expected to finish it first.
+ *
+ * For every peer it keeps an estimate of the throughput of each transport, and of the time it
+ * takes to set up RFCOMM (discovery, Socket connection...). The GATT link is already open, so
+ * it costs nothing to set up. Estimates start at some conservative defaults, and move towards
+ * what every transfer measures (exponentially weighted).
+ * So small payloads go through GATT, and large ones pay for RFCOMM only when it's worth it.
+ *
+ * Transports are BLEControlMessage.TRANSPORT_*.
+ * This class has no Android dependencies.
+ */
+public class BLETransportSelector {
+
+    /* Until we measure something, in bytes per second and milliseconds */
+    public static final long DEFAULT_BLE_THROUGHPUT = 20 * 1024;
+    public static final long DEFAULT_RFCOMM_THROUGHPUT = 150 * 1024;
+    public static final long DEFAULT_RFCOMM_SETUP_TIME = 3000;
+
+    /* Smaller transfers are mostly latency, they would make the throughput look too low */
+    private static final long MIN_SAMPLE_SIZE = 16 * 1024;
+    /* Weight of a new measure, in percent */
+    private static final int SAMPLE_WEIGHT = 30;
+
+    private final HashMap<String, Estimates> mEstimates = new HashMap<>();
+
+    /**
+     * What we know about the links to a peer
+     */
+    private static class Estimates {
+        long mBleThroughput = DEFAULT_BLE_THROUGHPUT;
+        long mRfcommThroughput = DEFAULT_RFCOMM_THROUGHPUT;
+        long mRfcommSetupTime = DEFAULT_RFCOMM_SETUP_TIME;
+    }
+
+    /**
+     * @param peer Address of the peer
+     * @param size Bytes to send, -1 if unknown
+     * @param rfcommOpen Whether the RFCOMM Socket is already connected, so there's no setup
+     * @return The transport expected to finish first. RFCOMM if the size is unknown.
+     */
+    public synchronized int choose(String peer, long size, boolean rfcommOpen) {
+        if (size < 0) {
+            return BLEControlMessage.TRANSPORT_RFCOMM;
+        }
+        long ble = getExpectedTime(peer, BLEControlMessage.TRANSPORT_BLE, size, rfcommOpen);
+        long rfcomm = getExpectedTime(peer, BLEControlMessage.TRANSPORT_RFCOMM, size, rfcommOpen);
+        return (ble <= rfcomm ? BLEControlMessage.TRANSPORT_BLE : BLEControlMessage.TRANSPORT_RFCOMM);
+    }
+
+    /**
+     * Expected time to send a payload, set up included
+     * @return Milliseconds
+     */
+    public synchronized long getExpectedTime(String peer, int transport, long size, boolean rfcommOpen) {
+        Estimates estimates = getEstimates(peer);
+        if (transport == BLEControlMessage.TRANSPORT_BLE) {
+            return size * 1000 / estimates.mBleThroughput;
+        }
+        return (rfcommOpen ? 0 : estimates.mRfcommSetupTime) + size * 1000 / estimates.mRfcommThroughput;
+    }
+
+    /**
+     * A transfer through a transport is done
+     * @param bytes Bytes sent
+     * @param millis Time it took, not counting set up
+     */
+    public synchronized void onTransfer(String peer, int transport, long bytes, long millis) {
+        if (bytes < MIN_SAMPLE_SIZE || millis <= 0) {
+            return;
+        }
+        Estimates estimates = getEstimates(peer);
+        long throughput = bytes * 1000 / millis;
+        if (transport == BLEControlMessage.TRANSPORT_BLE) {
+            estimates.mBleThroughput = Math.max(1, average(estimates.mBleThroughput, throughput));
+        } else {
+            estimates.mRfcommThroughput = Math.max(1, average(estimates.mRfcommThroughput, throughput));
+        }
+    }
+
+    /**
+     * The RFCOMM Socket is connected
+     * @param millis Time since it was requested
+     */
+    public synchronized void onRfcommSetup(String peer, long millis) {
+        Estimates estimates = getEstimates(peer);
+        estimates.mRfcommSetupTime = average(estimates.mRfcommSetupTime, millis);
+    }
+
+    /**
+     * Estimates for a peer, in a human readable way
+     */
+    public synchronized String describe(String peer) {
+        Estimates estimates = getEstimates(peer);
+        return "BLE " + estimates.mBleThroughput / 1024 + " KB/s, RFCOMM "
+                + estimates.mRfcommThroughput / 1024 + " KB/s after " + estimates.mRfcommSetupTime + " ms";
+    }
+
+    private Estimates getEstimates(String peer) {
+        Estimates estimates = mEstimates.get(peer);
+        if (estimates == null) {
+            estimates = new Estimates();
+            mEstimates.put(peer, estimates);
+        }
+        return estimates;
+    }
+
+    private static long average(long estimate, long sample) {
+        return (estimate * (100 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT) / 100;
+    }
+}
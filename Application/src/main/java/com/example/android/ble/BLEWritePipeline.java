@@ -0,0 +1,183 @@
+package com.example.android.ble;
+
+import java.util.ArrayDeque;
+
+/**
+ * Credit based send pipeline for bulk writes.
+ *
+ * Producers offer blocks of data and only block when the whole window is in use, while the
+ * next queued block is written straight from the write completion callback. So the link never
+ * waits for the producer thread to wake up between two writes, as it happens with a
+ * stop-and-wait loop.
+ *
+ * It only knows about a Writer, so it can be driven by a fake GATT on the JVM.
+ */
+public class BLEWritePipeline {
+
+    /**
+     * Something able to start a write. A successful write must be followed by a call to
+     * onWriteComplete(), like BluetoothGattCallback.onCharacteristicWrite() does.
+     */
+    public interface Writer {
+        /**
+         * @return false if the write couldn't be started (ie: the stack is busy)
+         */
+        boolean write(byte[] data);
+    }
+
+    /* How often we retry a write the stack refused, while waiting for credits */
+    private static final long RETRY_INTERVAL = 10;
+
+    private final Writer mWriter;
+    private final ArrayDeque<byte[]> mQueue = new ArrayDeque<>();
+    private int mWindow;
+    private boolean mWriting = false;
+    private boolean mFailed = false;
+    private long mBytesWritten = 0;
+
+    /**
+     * @param writer
+     * @param window Max number of blocks queued or in flight at any time
+     */
+    public BLEWritePipeline(Writer writer, int window) {
+        mWriter = writer;
+        setWindow(window);
+    }
+
+    public synchronized void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        mWindow = window;
+        notifyAll();
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Free slots in the window
+     */
+    public synchronized int getCredits() {
+        return mWindow - inFlight();
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Queues a block of data, waiting for a free credit if the window is full
+     * @param data
+     * @param timeout Max time to wait for a credit, in milliseconds
+     * @return false if it timed out or a previous write failed
+     * @throws InterruptedException
+     */
+    public synchronized boolean offer(byte[] data, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mFailed && inFlight() >= mWindow) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(Math.min(remaining, RETRY_INTERVAL));
+            pump();
+        }
+        if (mFailed) {
+            return false;
+        }
+        mQueue.add(data);
+        pump();
+        return true;
+    }
+
+    /**
+     * Must be called whenever a write started by the pipeline finishes. It gives the credit back.
+     * @param success
+     */
+    public synchronized void onWriteComplete(boolean success) {
+        mWriting = false;
+        if (!success) {
+            mFailed = true;
+            mQueue.clear();
+        } else {
+            pump();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Tries again a write the Writer refused, ie: because the link was given to something else
+     */
+    public synchronized void retry() {
+        pump();
+    }
+
+    /**
+     * Waits until everything queued has been written
+     * @param timeout In milliseconds
+     * @return false if it timed out or a write failed
+     * @throws InterruptedException
+     */
+    public synchronized boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mFailed && inFlight() > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(Math.min(remaining, RETRY_INTERVAL));
+            pump();
+        }
+        return !mFailed;
+    }
+
+    /**
+     * Fails the pipeline (ie: the link is gone). Everything queued is dropped and any producer
+     * waiting in offer() or flush() returns false.
+     */
+    public synchronized void cancel() {
+        mFailed = true;
+        mQueue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Drops everything queued and clears any previous failure, so the pipeline can be reused
+     * (ie: for a new connection)
+     */
+    public synchronized void reset() {
+        mQueue.clear();
+        mWriting = false;
+        mFailed = false;
+        mBytesWritten = 0;
+        notifyAll();
+    }
+
+    private int inFlight() {
+        return mQueue.size() + (mWriting ? 1 : 0);
+    }
+
+    /**
+     * Starts the write of the next block, if there's no other write in progress
+     */
+    private void pump() {
+        if (mWriting || mFailed) {
+            return;
+        }
+        byte[] next = mQueue.poll();
+        if (next == null) {
+            return;
+        }
+        // Flag it before writing, the Writer may complete synchronously
+        mWriting = true;
+        mBytesWritten += next.length;
+        if (!mWriter.write(next)) {
+            // Busy, we'll retry later
+            mWriting = false;
+            mBytesWritten -= next.length;
+            mQueue.addFirst(next);
+        }
+    }
+}
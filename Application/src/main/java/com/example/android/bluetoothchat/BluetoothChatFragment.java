@@ -21,6 +21,7 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
@@ -50,18 +51,17 @@ import com.example.android.ble.BLEAdvertisingActivity;
 import com.example.android.ble.BLECentralHelper;
 import com.example.android.ble.BLECentralChatEvents;
 import com.example.android.ble.BLEChatEvents;
+import com.example.android.ble.BLEConnectionPriorityManager;
+import com.example.android.ble.BLEControlMessage;
 import com.example.android.ble.BLEDiscoveringActivity;
+import com.example.android.ble.BLEMeshRelay;
 import com.example.android.ble.BLEMode;
 import com.example.android.ble.BLEPeripheralChatEvents;
 import com.example.android.ble.BLEPeripheralHelper;
+import com.example.android.ble.BLERfcommEngine;
 import com.example.android.common.logger.Log;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.concurrent.Semaphore;
 
 /**
  * This fragment controls Bluetooth to communicate with other devices.
@@ -236,22 +236,149 @@ public class BluetoothChatFragment extends Fragment {
         if(message.startsWith("/")){
             String[] tokens = message.split(" ", 2);
             if(tokens[0].compareTo("/transfertest") == 0){
-                // We change the MTU to 512 first
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        BLECentralHelper.getInstance().changeMtu(512);
-                    }
-                }, 2100);
+                // The MTU was already negotiated at connect time, so we can start right away
+                mStreamThread = new StreamThread();
+                mStreamThread.start();
                 return;
             }else if(tokens[0].compareTo("/transfer") == 0){
                 sendStream();
                 return;
+            }else if(tokens[0].compareTo("/bulkrate") == 0){
+                // Bytes per second of bulk data, 0 for no cap
+                setBulkRate(tokens.length > 1 ? tokens[1] : "0");
+                return;
+            }else if(tokens[0].compareTo("/stripes") == 0){
+                if(mBleMode == BLEMode.CENTRAL){
+                    try {
+                        BLECentralHelper.getInstance().setStreamStripes(Integer.parseInt(tokens.length > 1 ? tokens[1].trim() : "1"));
+                        showInfo("Striping over " + BLECentralHelper.getInstance().getStreamStripes() + " characteristics");
+                    } catch (NumberFormatException ex) {
+                        showInfo("Usage: /stripes <count>");
+                    }
+                }
+                return;
+            }else if(tokens[0].compareTo("/bonded") == 0){
+                // Files sent over RFCOMM are split with BLE too
+                if(mBleMode == BLEMode.CENTRAL){
+                    boolean bonded = tokens.length < 2 || tokens[1].trim().compareTo("off") != 0;
+                    BLECentralHelper.getInstance().setBondedFiles(bonded);
+                    showInfo(bonded ? "Files go through RFCOMM and BLE" : "Files go through RFCOMM only");
+                }
+                return;
+            }else if(tokens[0].compareTo("/send") == 0 && mBleMode == BLEMode.CENTRAL){
+                // The transport is chosen once we know the size of the file
+                pickImage();
+                return;
+            }else if(tokens[0].compareTo("/idle") == 0){
+                // Milliseconds without traffic before leaving the high connection priority
+                if(mBleMode == BLEMode.CENTRAL){
+                    String[] args = (tokens.length > 1 ? tokens[1].trim().split(" ") : new String[0]);
+                    try {
+                        long timeout = (args.length > 0 ? Long.parseLong(args[0]) : BLEConnectionPriorityManager.DEFAULT_IDLE_TIMEOUT);
+                        boolean lowPower = args.length > 1 && args[1].compareTo("lowpower") == 0;
+                        BLECentralHelper.getInstance().setConnectionPriorityPolicy(lowPower
+                                ? BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER
+                                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED, timeout);
+                        showInfo("Idle after " + timeout + " ms" + (lowPower ? ", in low power" : ""));
+                    } catch (NumberFormatException ex) {
+                        showInfo("Usage: /idle <milliseconds> [lowpower]");
+                    }
+                }
+                return;
+            }else if(tokens[0].compareTo("/metrics") == 0){
+                if(mBleMode == BLEMode.CENTRAL)
+                    showInfo("Bulk data: " + BLECentralHelper.getInstance().getTransferMetrics());
+                showInfo("RFCOMM: " + BLERfcommEngine.getInstance().getStats());
+                return;
+            }else if(tokens[0].compareTo("/sessions") == 0 && mBleMode == BLEMode.CENTRAL){
+                // Every Peripheral we are connected to, and how they share the radio
+                showInfo("Sessions: " + BLECentralHelper.getInstance().getSessions());
+                showInfo("Radio: " + BLECentralHelper.getInstance().describeRadio());
+                return;
+            }else if(tokens[0].compareTo("/cancel") == 0){
+                if(mBleMode == BLEMode.CENTRAL)
+                    BLECentralHelper.getInstance().cancelFile();
+                return;
+            }else if(tokens[0].compareTo("/hub") == 0 && mBleMode == BLEMode.NONE){
+                // Keep accepting devices over classic Bluetooth, up to that many
+                try {
+                    int clients = (tokens.length < 2 || tokens[1].trim().compareTo("off") == 0
+                            ? 1 : Integer.parseInt(tokens[1].trim()));
+                    mChatService.setMaxClients(clients);
+                    showInfo(clients > 1 ? "Hub for up to " + clients + " devices" : "Single device");
+                } catch (NumberFormatException ex) {
+                    showInfo("Usage: /hub <devices>|off");
+                }
+                return;
+            }else if(tokens[0].compareTo("/peers") == 0 && mBleMode == BLEMode.NONE){
+                showInfo("Connected: " + mChatService.getPeers());
+                return;
+            }else if(tokens[0].compareTo("/to") == 0 && mBleMode == BLEMode.NONE){
+                // Only to one of the devices of the hub
+                String[] args = (tokens.length > 1 ? tokens[1].trim().split(" ", 2) : new String[0]);
+                if (args.length < 2) {
+                    showInfo("Usage: /to <address> <message>");
+                } else if (!mChatService.write(args[0], args[1].getBytes())) {
+                    showInfo(args[0] + " isn't connected");
+                }
+                return;
+            }else if(tokens[0].compareTo("/mesh") == 0 && mBleMode != BLEMode.NONE){
+                // Chat messages are relayed through every BLE link, to reach devices out of range
+                String arg = (tokens.length > 1 ? tokens[1].trim() : "");
+                if(arg.compareTo("on") == 0){
+                    BLEMeshRelay.getInstance().start(mBluetoothAdapter.getName(), mMeshListener);
+                }else if(arg.compareTo("off") == 0){
+                    BLEMeshRelay.getInstance().stop();
+                }
+                showInfo("Mesh: " + BLEMeshRelay.getInstance());
+                return;
+            }else if(tokens[0].compareTo("/ping") == 0){
+                sendControlMessage(BLEControlMessage.probe(++mProbeId, System.currentTimeMillis()));
+                return;
+            }else if(mBleMode != BLEMode.NONE){
+                BLEControlMessage msg = BLEControlMessage.fromLegacyText(message);
+                if(msg.getType() != BLEControlMessage.TYPE_TEXT){
+                    sendControlMessage(msg);
+                    return;
+                }
             }
         }
         sendMessage(message);
     }
 
+    private long mProbeId = 0;
+
+    private BLEMeshRelay.Listener mMeshListener = new BLEMeshRelay.Listener() {
+        @Override
+        public void onRelayedMessage(String origin, String text) {
+            showIncomingMessage(origin + ": " + text);
+        }
+    };
+
+    private void sendControlMessage(BLEControlMessage msg){
+        if(mBleMode == BLEMode.PERIPHERAL){
+            BLEPeripheralHelper.getInstance().send(msg);
+        }else if(mBleMode == BLEMode.CENTRAL){
+            BLECentralHelper.getInstance().send(msg);
+        }
+    }
+
+    private void setBulkRate(String rate){
+        long bytesPerSecond;
+        try {
+            bytesPerSecond = Long.parseLong(rate.trim());
+        } catch (NumberFormatException ex) {
+            showInfo("Usage: /bulkrate <bytes per second>");
+            return;
+        }
+        if(mBleMode == BLEMode.PERIPHERAL){
+            BLEPeripheralHelper.getInstance().setBulkRate(bytesPerSecond);
+        }else if(mBleMode == BLEMode.CENTRAL){
+            BLECentralHelper.getInstance().setBulkRate(bytesPerSecond);
+        }
+        showInfo(bytesPerSecond > 0 ? "Bulk data capped to " + bytesPerSecond + " B/s" : "Bulk data not capped");
+    }
+
     private void sendStream(){
         if(mBleMode == BLEMode.PERIPHERAL ){
             BLEPeripheralHelper.getInstance().sendStream();
@@ -433,7 +560,13 @@ public class BluetoothChatFragment extends Fragment {
                     byte[] readBuf = (byte[]) msg.obj;
                     // construct a string from the valid bytes in the buffer
                     String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                    if (mChatService != null) {
+                        mChatService.releaseReadBuffer(readBuf);
+                    }
+                    // A hub has several devices, the service tells which one it was
+                    String sender = (msg.peekData() != null
+                            ? msg.getData().getString(Constants.DEVICE_NAME) : mConnectedDeviceName);
+                    mConversationArrayAdapter.add(sender + ":  " + readMessage);
                     //answerBack(readMessage);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
@@ -588,7 +721,9 @@ public class BluetoothChatFragment extends Fragment {
     private synchronized void sendMessageViaBLE(String message) {
         // Check that there's actually something to send
         if (message.length() > 0) {
-            if(mBleMode == BLEMode.PERIPHERAL){
+            if(BLEMeshRelay.getInstance().send(message)){
+                // Goes to every link, and from there on
+            }else if(mBleMode == BLEMode.PERIPHERAL){
                 BLEPeripheralHelper.getInstance().send(message);
             }else if(mBleMode == BLEMode.CENTRAL){
                 BLECentralHelper.getInstance().send(message);
@@ -601,12 +736,22 @@ public class BluetoothChatFragment extends Fragment {
     }
 
     /**
-     * Sends the selected file to the Peripheral device
+     * Sends the selected file to the Peripheral device, through the transport expected to
+     * finish first
      * @param data
      */
     private void sendFile(Intent data){
         Uri uri = data.getData();
-        BLECentralHelper.getInstance().sendFile(uri);
+        int transport = BLECentralHelper.getInstance().sendFileAuto(uri);
+        showInfo("Sending file via " + (transport == BLEControlMessage.TRANSPORT_BLE ? "BLE" : "RFCOMM")
+                + " (" + BLECentralHelper.getInstance().describeTransports() + ")");
+    }
+
+    private void pickImage(){
+        Intent intent = new Intent();
+        intent.setType("image/*");
+        intent.setAction(Intent.ACTION_GET_CONTENT);
+        startActivityForResult(Intent.createChooser(intent, "Select Picture"), PICK_IMAGE);
     }
 
     /**
@@ -646,7 +791,14 @@ public class BluetoothChatFragment extends Fragment {
         @Override
         public void onMessage(String msg) {
             synchronized (mLock){
-                processIncomingMsg(msg);
+                showIncomingMessage(msg);
+            }
+        }
+
+        @Override
+        public void onControlMessage(BLEControlMessage msg) {
+            synchronized (mLock){
+                processControlMessage(msg);
             }
         }
 
@@ -663,9 +815,16 @@ public class BluetoothChatFragment extends Fragment {
                 mHandler.postDelayed(new Runnable() {
                     @Override
                     public void run() {
-                        sendMessage("/name Z3C");
+                        sendControlMessage(BLEControlMessage.name("Z3C"));
                         showConnectedName(mConnectedDeviceName);
                         showStatus(BluetoothChatService.STATE_CONNECTED);
+                        if(BLECentralHelper.getInstance().hasPendingFile()){
+                            // The link dropped in the middle of a file, so ask for the RFCOMM
+                            // Socket again to send what's missing
+                            showInfo("Resuming file transfer...");
+                            sendControlMessage(BLEControlMessage.transferRequest(
+                                    BLEControlMessage.TRANSPORT_RFCOMM, 0));
+                        }
                     }
                 }, 2000);
             }
@@ -707,17 +866,11 @@ public class BluetoothChatFragment extends Fragment {
         @Override
         public void onRfcommConnect(){
             synchronized (mLock) {
-                Intent intent = new Intent();
-                intent.setType("image/*");
-                intent.setAction(Intent.ACTION_GET_CONTENT);
-                startActivityForResult(Intent.createChooser(intent, "Select Picture"), PICK_IMAGE);
-            }
-        }
-
-        @Override
-        public void onData(byte [] data){
-            synchronized (mLock){
-                showInfo("Not implemented yet");
+                if(BLECentralHelper.getInstance().hasPendingFile()){
+                    BLECentralHelper.getInstance().resumeFile();
+                    return;
+                }
+                pickImage();
             }
         }
 
@@ -736,26 +889,46 @@ public class BluetoothChatFragment extends Fragment {
         @Override
         public void onStreamSent(int status){
             synchronized (mLock) {
-                if (status == BLEChatEvents.SENT_SUCCEED) {
-                    mStreamThread.nextMessage();
-                } else {
+                if (status != BLEChatEvents.SENT_SUCCEED && mStreamThread != null) {
                     mStreamThread.end();
                 }
             }
         }
 
 
+        @Override
+        public void onFileProgress(long bytesSent, long totalBytes){
+            synchronized (mLock) {
+                // ProgressDialog works with ints, so progress goes in KB
+                if (totalBytes > 0) {
+                    mProgressBar.setMax((int) (totalBytes / 1024));
+                    mProgressBar.setProgress((int) (bytesSent / 1024));
+                    mProgressBar.show();
+                } else {
+                    showInfo("Sent " + (bytesSent / 1024) + " KB");
+                }
+            }
+        }
+
+        @Override
+        public void onFileSent(int status){
+            synchronized (mLock) {
+                mProgressBar.dismiss();
+                mProgressBar.hide();
+                // Back to the transfer test scale
+                mProgressBar.setMax(1024 * 1024);
+                showInfo(status == BLEChatEvents.SENT_SUCCEED ? "File sent" : "[!] File not sent");
+            }
+        }
+
         @Override
         public void onMtuChanged(int status, int newMtu){
             synchronized (mLock) {
                 if (status == BLECentralChatEvents.MTU_CHANGE_SUCCEED) {
-                    showInfo("MTU changed to " + newMtu);
+                    showInfo("Payload size changed to " + newMtu);
                 } else {
                     showInfo("Error changing MTU. Falling back to " +  newMtu + " ...");
                 }
-                // Once the MTU has been changed, we start the thread for the transfer rate test
-                mStreamThread = new StreamThread();
-                mStreamThread.start();
             }
         }
     };
@@ -774,6 +947,7 @@ public class BluetoothChatFragment extends Fragment {
         //showConnectedName(data.getExtras().getString(BLEAdvertisingActivity.EXTRA_CLIENT_NAME));
         showStatus(BluetoothChatService.STATE_CONNECTED);
         BLEPeripheralHelper.getInstance().register(mBlePeripheralChatEvents);
+        BLEPeripheralHelper.getInstance().setFileTarget(getReceivedFile());
     }
     private BLEPeripheralChatEvents mBlePeripheralChatEvents = new BLEPeripheralChatEvents() {
         private Object mLock = new Object();
@@ -789,7 +963,14 @@ public class BluetoothChatFragment extends Fragment {
         @Override
         public void onMessage(String msg) {
             synchronized (mLock){
-                processIncomingMsg(msg);
+                showIncomingMessage(msg);
+            }
+        }
+
+        @Override
+        public void onControlMessage(BLEControlMessage msg) {
+            synchronized (mLock){
+                processControlMessage(msg);
             }
         }
 
@@ -828,9 +1009,10 @@ public class BluetoothChatFragment extends Fragment {
         }
 
         @Override
-        public void onData(byte [] data){
+        public void onFileReceived(File file){
             synchronized (mLock) {
-                save2File(data);
+                showInfo("File saved to " + file.getAbsolutePath());
+                BLEPeripheralHelper.getInstance().stopRfcommService();
             }
         }
 
@@ -875,26 +1057,40 @@ public class BluetoothChatFragment extends Fragment {
 
         @Override
         public void onStreamSent(int status){
-            if(status == BLEChatEvents.SENT_SUCCEED){
-                mStreamThread.nextMessage();
-            }else{
-                mStreamThread.end();
+            if(status != BLEChatEvents.SENT_SUCCEED){
+                if(mStreamThread != null)
+                    mStreamThread.end();
                 showInfo("Error sending data!!");
             }
         }
 
     };
 
-    private void processIncomingMsg(String msg){
-        if(msg.startsWith("/")){
-            String[] tokens = msg.split(" ", 2);
-            if(tokens[0].compareTo("/name") == 0){
-                showConnectedName(tokens[1]);
-            }else if(tokens[0].compareTo("/send") == 0){
-                transferData();
-            }
-        }else{
-            showIncomingMessage(msg);
+    private void processControlMessage(BLEControlMessage msg){
+        switch (msg.getType()) {
+            case BLEControlMessage.TYPE_NAME:
+                showConnectedName(msg.getText());
+                break;
+            case BLEControlMessage.TYPE_TRANSFER_REQUEST:
+                if(msg.getTransport() == BLEControlMessage.TRANSPORT_BLE){
+                    // The helper is already saving it
+                    showInfo("Receiving " + msg.getSize() + " bytes via BLE...");
+                }else{
+                    transferData();
+                }
+                break;
+            case BLEControlMessage.TYPE_PROBE:
+                sendControlMessage(BLEControlMessage.probeReply(msg));
+                break;
+            case BLEControlMessage.TYPE_PROBE_REPLY:
+                showInfo("Round trip time: " + (System.currentTimeMillis() - msg.getTimestamp()) + " ms");
+                break;
+            case BLEControlMessage.TYPE_RELAY:
+                // Relayed by someone in the mesh, while ours is off
+                showIncomingMessage(msg.getOrigin() + ": " + msg.getText());
+                break;
+            default:
+                Log.d(TAG, "Ignoring " + msg);
         }
     }
 
@@ -905,32 +1101,18 @@ public class BluetoothChatFragment extends Fragment {
     private void transferData(){
         if(mBleMode == BLEMode.PERIPHERAL ) {
             // 1st - unleash RFCOMM Socket machinery...
-            BLEPeripheralHelper.getInstance().initRfcommService();
+            BLEPeripheralHelper.getInstance().initRfcommService(getReceivedFile());
             showInfo("Initializing RFCOMM socket...");
         }
     }
 
     /**
-     * Saves the data byte array into a file
+     * Where files received through the RFCOMM Socket are saved
      */
-    private void save2File(byte [] data){
-        File filepath = Environment.getExternalStorageDirectory();
-        String filePathName = filepath.getAbsolutePath() + "/BluetoothBLEChat/";
-        // Create a new folder in SD Card
-        File dir = new File(filePathName);
+    private File getReceivedFile(){
+        File dir = new File(Environment.getExternalStorageDirectory(), "BluetoothBLEChat");
         dir.mkdirs();
-        try {
-            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePathName + "data.jpg"));
-            bos.write(data);
-            bos.flush();
-            bos.close();
-        }catch (FileNotFoundException ex){
-            showInfo(ex.toString());
-        }catch (IOException ex){
-            showInfo(ex.toString());
-        }finally {
-            BLEPeripheralHelper.getInstance().stopRfcommService();
-        }
+        return new File(dir, "data.jpg");
     }
 
 
@@ -948,12 +1130,11 @@ public class BluetoothChatFragment extends Fragment {
      * This class will help run the Transfer Rate Test
      * It can send the data in two ways:
      * 1 - Within a loop where we will write to characteristcs as fast as possible
-     * 2 - In an event-based way, where we will write to characteristics once we receive
-     *     the onCharacteristicWrite event from the BT stack.
+     * 2 - In an event-based way, where the BT stack pulls the next queued block as soon as
+     *     the onCharacteristicWrite event arrives, and we only wait when the window is full.
      */
     private class StreamThread extends Thread {
-        private boolean mEnd = false;
-        private Semaphore mSemaphore = new Semaphore(0,true);
+        private volatile boolean mEnd = false;
         StreamThread(){ }
 
         private void updateProgressBar(final int increment){
@@ -998,35 +1179,26 @@ public class BluetoothChatFragment extends Fragment {
 
         private void sendViaEvent(){
             int iBytesSent = 0;
-            int iMtu = BLECentralHelper.getInstance().getMtu();
+            int iMtu = BLECentralHelper.getInstance().getStreamPayloadSize();
+            long startTime = System.currentTimeMillis();
             while(!mEnd && iBytesSent < 1024 * 1024) {
-                processOutgoingMsg("/transfer");
+                // Only blocks when the stream window is full
+                BLECentralHelper.getInstance().sendData();
                 iBytesSent += iMtu;
                 updateProgressBar(iBytesSent);
-                try {
-                    mSemaphore.acquire();
-                }catch (InterruptedException ex){
-                    mBLEChatEvents.onConnectionError("Interrupted while in a semaphore!!");
-                }
             }
-        }
-
-        /**
-         * Releases the semaphore, so we can send the next message. It's only used when sending
-         * messages via events.
-         */
-        public void nextMessage(){
-            mSemaphore.release();
+            // Wait until the Peripheral has acknowledged everything
+            if(!mEnd && BLECentralHelper.getInstance().flushData()) {
+                long difference = (System.currentTimeMillis() - startTime) / 1000;
+                showInfo("1 MB took " + difference + " secs to complete");
+            }
         }
 
         public void run(){
             showProgressBar();
             try {
-                Thread.sleep(2000);
                 sendViaEvent();
                 //sendViaLoop();
-            }catch (InterruptedException ex){
-                mBLEChatEvents.onConnectionError("Interrupted while sleeping!!!");
             }finally {
                 hideProgressBar();
             }
@@ -18,25 +18,30 @@ package com.example.android.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import com.example.android.ble.BLERfcommEngine;
 import com.example.android.common.logger.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It listens for incoming connections,
+ * connects with a device, and performs data transmissions when connected.
+ * The Sockets themselves are run by BLERfcommEngine, so this class has
+ * no threads of its own.
+ *
+ * By default it talks to one device at a time. With setMaxClients() it
+ * becomes a hub: it keeps accepting until that many devices are connected,
+ * and talks to each of them through write(address, bytes) or broadcast().
  */
 public class BluetoothChatService {
     // Debugging
@@ -55,10 +60,13 @@ public class BluetoothChatService {
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    private final BLERfcommEngine mEngine = BLERfcommEngine.getInstance();
+    private BLERfcommEngine.Server mSecureServer;
+    private BLERfcommEngine.Server mInsecureServer;
+    private BLERfcommEngine.Connection mConnecting;
+    /* Connected devices by address, more than one only as a hub */
+    private final LinkedHashMap<String, BLERfcommEngine.Connection> mSessions = new LinkedHashMap<>();
+    private int mMaxClients = 1;
     private int mState;
 
     // Constants that indicate the current connection state
@@ -77,6 +85,7 @@ public class BluetoothChatService {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
+        mEngine.init(context);
     }
 
     /**
@@ -100,42 +109,45 @@ public class BluetoothChatService {
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
+     * Gives back the buffer of a MESSAGE_READ, once the consumer is done with it. Every read
+     * gets its own buffer, owned by the consumer until this call, so the next read never
+     * overwrites a message which hasn't been shown yet.
+     * Buffers that don't come from the service are just ignored.
+     *
+     * @param buffer The msg.obj of the MESSAGE_READ, it must not be used after this call
+     */
+    public void releaseReadBuffer(byte[] buffer) {
+        mEngine.release(buffer);
+    }
+
+    /**
+     * Start the chat service. Specifically start the servers to begin a
      * session in listening (server) mode. Called by the Activity onResume()
      */
     public synchronized void start() {
         Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        // Cancel any connection attempt
+        if (mConnecting != null) {
+            mConnecting.close();
+            mConnecting = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        // Cancel any running connection
+        closeSessions();
 
         setState(STATE_LISTEN);
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
-        }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
-        }
+        // Listen on BluetoothServerSockets
+        startServers();
 
         /* Automatically Scanning for BT devices running our app */
 
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start a connection to a remote device. As a hub, the other devices
+     * stay connected.
      *
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
@@ -143,66 +155,64 @@ public class BluetoothChatService {
     public synchronized void connect(BluetoothDevice device, boolean secure) {
         Log.d(TAG, "connect to: " + device);
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+        // Cancel any connection attempt
+        if (mConnecting != null) {
+            mConnecting.close();
+            mConnecting = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any running connection, unless we're a hub
+        if (mMaxClients == 1) {
+            closeSessions();
         }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        // Connect with the given device
+        String socketType = secure ? "Secure" : "Insecure";
+        mConnecting = mEngine.connect(device, secure ? MY_UUID_SECURE : MY_UUID_INSECURE, secure,
+                new ChatCallback(socketType, Constants.ROLE.CLIENT));
+        if (mSessions.isEmpty()) {
+            setState(STATE_CONNECTING);
+        }
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start managing a Bluetooth connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param connection The connection that has been made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType, Constants.ROLE role) {
+    private synchronized void connected(BLERfcommEngine.Connection connection,
+                                        final String socketType, Constants.ROLE role) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        // The attempt that completed the connection
+        if (mConnecting == connection) {
+            mConnecting = null;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mMaxClients == 1) {
+            // Cancel any other attempt or connection
+            if (mConnecting != null) {
+                mConnecting.close();
+                mConnecting = null;
+            }
+            closeSessions();
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        // A device that connects again replaces its old connection
+        BLERfcommEngine.Connection old = mSessions.put(connection.getAddress(), connection);
+        if (old != null) {
+            old.close();
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        // Stop listening once we have all the devices we want
+        if (mSessions.size() >= mMaxClients) {
+            stopServers();
+        }
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
+        bundle.putString(Constants.DEVICE_NAME, connection.getDevice().getName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
@@ -216,49 +226,166 @@ public class BluetoothChatService {
     }
 
     /**
-     * Stop all threads
+     * Stop all connections and servers
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnecting != null) {
+            mConnecting.close();
+            mConnecting = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        closeSessions();
+        stopServers();
+        setState(STATE_NONE);
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * Sets how many devices can be connected at once. More than one makes
+     * this a hub, which keeps listening while there's room. Devices already
+     * connected stay, even if there are more than that.
+     *
+     * @param maxClients 1 to talk to a single device
+     */
+    public synchronized void setMaxClients(int maxClients) {
+        mMaxClients = Math.max(maxClients, 1);
+        if (mState == STATE_NONE) {
+            return;
         }
-
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mSessions.size() < mMaxClients) {
+            startServers();
+        } else {
+            stopServers();
         }
-        setState(STATE_NONE);
+    }
+
+    public synchronized int getMaxClients() {
+        return mMaxClients;
+    }
+
+    /**
+     * Addresses of the connected devices
+     */
+    public synchronized List<String> getPeers() {
+        return new ArrayList<>(mSessions.keySet());
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to every connected device. The bytes are queued, and sent by
+     * the engine.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+        broadcast(out);
+    }
+
+    /**
+     * Write to one of the connected devices
+     *
+     * @param address Address of the device
+     * @param out The bytes to write
+     * @return false if that device isn't connected
+     */
+    public boolean write(String address, byte[] out) {
+        synchronized (this) {
+            BLERfcommEngine.Connection session = mSessions.get(address);
+            if (session == null) return false;
+            session.write(out);
+        }
+
+        // Share the sent message back to the UI Activity
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, out)
+                .sendToTarget();
+        return true;
+    }
+
+    /**
+     * Write to every connected device. Each one has its own queue, so a
+     * slow device doesn't hold up the others.
+     *
+     * @param out The bytes to write
+     * @return How many devices it was queued for
+     */
+    public int broadcast(byte[] out) {
+        int count;
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            if (mState != STATE_CONNECTED) return 0;
+            for (BLERfcommEngine.Connection session : mSessions.values()) {
+                session.write(out);
+            }
+            count = mSessions.size();
+        }
+
+        // Share the sent message back to the UI Activity
+        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, out)
+                .sendToTarget();
+        return count;
+    }
+
+    /**
+     * Socket I/O of the app, in a human readable way
+     */
+    public String getStats() {
+        return mEngine.getStats();
+    }
+
+    private void closeSessions() {
+        // Cleared first, so their onClosed() is taken as ours
+        List<BLERfcommEngine.Connection> sessions = new ArrayList<>(mSessions.values());
+        mSessions.clear();
+        for (BLERfcommEngine.Connection session : sessions) {
+            session.close();
+        }
+    }
+
+    private void startServers() {
+        if (mSecureServer == null) {
+            mSecureServer = listen(true);
+        }
+        if (mInsecureServer == null) {
+            mInsecureServer = listen(false);
+        }
+    }
+
+    private BLERfcommEngine.Server listen(boolean secure) {
+        String socketType = secure ? "Secure" : "Insecure";
+        try {
+            if (secure) {
+                return mEngine.listen(NAME_SECURE, MY_UUID_SECURE, true, new ChatAcceptor(socketType));
+            }
+            return mEngine.listen(NAME_INSECURE, MY_UUID_INSECURE, false, new ChatAcceptor(socketType));
+        } catch (IOException e) {
+            Log.e(TAG, "Socket Type: " + socketType + "listen() failed", e);
+            return null;
+        }
+    }
+
+    private void stopServers() {
+        if (mSecureServer != null) {
+            mSecureServer.close();
+            mSecureServer = null;
+        }
+        if (mInsecureServer != null) {
+            mInsecureServer.close();
+            mInsecureServer = null;
+        }
+    }
+
+    /**
+     * Whether there's room for one more device
+     */
+    private boolean canAccept() {
+        switch (mState) {
+            case STATE_LISTEN:
+            case STATE_CONNECTING:
+                return true;
+            case STATE_CONNECTED:
+                return mSessions.size() < mMaxClients;
+            default:
+                return false;
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
     /**
@@ -272,8 +399,11 @@ public class BluetoothChatService {
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+        // Start the service over to restart listening mode, unless the hub
+        // still has devices
+        if (mSessions.isEmpty()) {
+            BluetoothChatService.this.start();
+        }
     }
 
     /**
@@ -292,6 +422,17 @@ public class BluetoothChatService {
     }
 
 
+    /**
+     * Indicate that a device left the hub, while others are still connected.
+     */
+    private void sessionLost(String name) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, name + " left");
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
     private void reconnect(){
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -302,237 +443,86 @@ public class BluetoothChatService {
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Takes the incoming connections while listening
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-        private String mSocketType;
-
-        public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Create a new listening server socket
-            try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
-            }
-            mmServerSocket = tmp;
-        }
-
-        public void run() {
-            Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
-
-            BluetoothSocket socket = null;
-
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
-                try {
-                    // This is a blocking call and will only return on a
-                    // successful connection or an exception
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
-                    break;
-                }
+    private class ChatAcceptor implements BLERfcommEngine.Acceptor {
+        private final String mSocketType;
 
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType, Constants.ROLE.SERVER);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
-                        }
-                    }
-                }
-            }
-            Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
-
-        }
-
-        public void cancel() {
-            Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
-            }
+        ChatAcceptor(String socketType) {
+            mSocketType = socketType;
         }
-    }
-
 
-    /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
-     */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
-
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
-                }
-                connectionFailed();
-                return;
-            }
-
-            // Reset the ConnectThread because we're done
+        @Override
+        public BLERfcommEngine.Callback onAccept(BluetoothDevice device) {
             synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+                if (canAccept()) {
+                    // Situation normal
+                    return new ChatCallback(mSocketType, Constants.ROLE.SERVER);
+                }
+                // Either not ready or no room left. Refuse the new socket.
+                return null;
             }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType, Constants.ROLE.CLIENT);
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
-            }
+        @Override
+        public void onError(IOException e) {
+            Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Events of a connection, either accepted or made by us
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
+    private class ChatCallback implements BLERfcommEngine.Callback {
+        private final String mSocketType;
+        private final Constants.ROLE mRole;
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+        ChatCallback(String socketType, Constants.ROLE role) {
+            mSocketType = socketType;
+            mRole = role;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
-                    //reconnect();
-                    break;
+        @Override
+        public void onConnected(BLERfcommEngine.Connection connection) {
+            synchronized (BluetoothChatService.this) {
+                if (mRole == Constants.ROLE.CLIENT ? mConnecting != connection : !canAccept()) {
+                    // Too late, another one won or we stopped
+                    connection.close();
+                    return;
                 }
+                connected(connection, mSocketType, mRole);
             }
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        @Override
+        public void onData(BLERfcommEngine.Connection connection, byte[] buffer, int length) {
+            // Send the obtained bytes to the UI Activity, which owns the buffer now
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_READ, length, -1, buffer);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, connection.getDevice().getName());
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+        @Override
+        public void onClosed(BLERfcommEngine.Connection connection, IOException cause) {
+            synchronized (BluetoothChatService.this) {
+                if (mSessions.get(connection.getAddress()) == connection) {
+                    Log.e(TAG, "disconnected", cause);
+                    mSessions.remove(connection.getAddress());
+                    if (mSessions.isEmpty()) {
+                        connectionLost();
+                        // Start the service over to restart listening mode
+                        start();
+                    } else {
+                        // The others stay, and there's room for one more
+                        sessionLost(connection.getDevice().getName());
+                        startServers();
+                    }
+                } else if (connection == mConnecting) {
+                    mConnecting = null;
+                    connectionFailed();
+                }
             }
         }
     }
@@ -0,0 +1,168 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BLEBondedTransferTest {
+
+    /**
+     * Where the transports deliver the file, at the offset of every frame
+     */
+    private static class FakeReceiver {
+        final byte[] mFile;
+
+        FakeReceiver(int length) {
+            mFile = new byte[length];
+        }
+
+        synchronized void deliver(byte[] frame) {
+            ByteBuffer header = ByteBuffer.wrap(frame);
+            long offset = header.getLong();
+            int length = header.getInt();
+            System.arraycopy(frame, BLEBondedTransfer.FRAME_HEADER_SIZE, mFile, (int) offset, length);
+        }
+    }
+
+    /**
+     * Takes a frame every few milliseconds, and only delivers them on flush(). After failAfter
+     * milliseconds the link is lost, with whatever wasn't flushed.
+     */
+    private static class FakeTransport implements BLEBondedTransfer.Transport {
+        final FakeReceiver mReceiver;
+        final int mChunkSize;
+        final long mDelay;
+        final long mFailAt;
+        final List<byte[]> mPending = new ArrayList<>();
+
+        FakeTransport(FakeReceiver receiver, int chunkSize, long delay, long failAfter) {
+            mReceiver = receiver;
+            mChunkSize = chunkSize;
+            mDelay = delay;
+            mFailAt = (failAfter < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + failAfter);
+        }
+
+        @Override
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        @Override
+        public void send(byte[] frame, int length) throws IOException {
+            sleep(mDelay);
+            if (System.currentTimeMillis() >= mFailAt) {
+                throw new IOException("link lost");
+            }
+            mPending.add(Arrays.copyOf(frame, length));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mFailAt != Long.MAX_VALUE) {
+                // Delivering takes until the link is lost
+                sleep(mFailAt - System.currentTimeMillis());
+                throw new IOException("link lost");
+            }
+            for (byte[] frame : mPending) {
+                mReceiver.deliver(frame);
+            }
+            mPending.clear();
+        }
+
+        private static void sleep(long millis) throws IOException {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private static final BLEBondedTransfer.Listener LISTENER = new BLEBondedTransfer.Listener() {
+        @Override
+        public void onProgress(long bytesSent, long totalBytes) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static byte[] randomFile(int length) {
+        byte[] file = new byte[length];
+        new Random(length).nextBytes(file);
+        return file;
+    }
+
+    @Test
+    public void orphansOfALateFailureAreNotStranded() throws IOException {
+        // The fast transport is done with the file long before the slow one fails
+        byte[] file = randomFile(10000);
+        FakeReceiver receiver = new FakeReceiver(file.length);
+        FakeTransport fast = new FakeTransport(receiver, 1000, 1, -1);
+        FakeTransport slow = new FakeTransport(receiver, 500, 20, 200);
+        BLEBondedTransfer.Sender sender = new BLEBondedTransfer.Sender(
+                new ByteArrayInputStream(file), file.length);
+
+        assertTrue(sender.run(Arrays.<BLEBondedTransfer.Transport>asList(fast, slow), LISTENER));
+        assertArrayEquals(file, receiver.mFile);
+        // What the slow one took never arrived, so it doesn't count
+        assertArrayEquals(new long[] { file.length, 0 }, sender.getBytesPerTransport());
+    }
+
+    @Test
+    public void unflushedFramesOfAFailedTransportAreResent() throws IOException {
+        // Both share the file until the slow one fails halfway
+        byte[] file = randomFile(300 * 1000);
+        FakeReceiver receiver = new FakeReceiver(file.length);
+        FakeTransport fast = new FakeTransport(receiver, 2000, 2, -1);
+        FakeTransport slow = new FakeTransport(receiver, 500, 10, 200);
+        BLEBondedTransfer.Sender sender = new BLEBondedTransfer.Sender(
+                new ByteArrayInputStream(file), file.length);
+
+        assertTrue(sender.run(Arrays.<BLEBondedTransfer.Transport>asList(fast, slow), LISTENER));
+        assertArrayEquals(file, receiver.mFile);
+        long[] bytes = sender.getBytesPerTransport();
+        assertEquals(file.length, bytes[0]);
+        assertEquals(0, bytes[1]);
+    }
+
+    @Test
+    public void everyTransportFailing() {
+        byte[] file = randomFile(10000);
+        FakeReceiver receiver = new FakeReceiver(file.length);
+        BLEBondedTransfer.Sender sender = new BLEBondedTransfer.Sender(
+                new ByteArrayInputStream(file), file.length);
+        try {
+            sender.run(Arrays.<BLEBondedTransfer.Transport>asList(
+                    new FakeTransport(receiver, 1000, 20, 100),
+                    new FakeTransport(receiver, 500, 20, 150)), LISTENER);
+            fail("Nothing could deliver the file");
+        } catch (IOException ex) {
+            assertEquals("link lost", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void bindPacket() {
+        assertEquals(Long.valueOf(1234), BLEBondedTransfer.readBindPacket(
+                BLEBondedTransfer.bindPacket(1234)));
+        assertEquals(null, BLEBondedTransfer.readBindPacket(new byte[BLEBondedTransfer.BIND_SIZE]));
+        assertEquals(null, BLEBondedTransfer.readBindPacket(new byte[3]));
+    }
+}
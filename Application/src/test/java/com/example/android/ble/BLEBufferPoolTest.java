@@ -0,0 +1,125 @@
+package com.example.android.ble;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BLEBufferPoolTest {
+
+    private static final int SIZE = 244;
+
+    /**
+     * Completes every write right away and gives its buffer back, like the GATT callback does
+     */
+    private static class RecyclingGatt implements BLEWritePipeline.Writer {
+        final BLEBufferPool mPool;
+        byte[] mWriting;
+
+        RecyclingGatt(BLEBufferPool pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public boolean write(byte[] data) {
+            mWriting = data;
+            return true;
+        }
+
+        void complete(BLEWritePipeline pipeline) {
+            byte[] written = mWriting;
+            mWriting = null;
+            mPool.release(written);
+            pipeline.onWriteComplete(true);
+        }
+    }
+
+    @Test
+    public void buffersAreRecycled() {
+        BLEBufferPool pool = new BLEBufferPool(SIZE, 2);
+        byte[] buffer = pool.acquire(SIZE);
+        assertEquals(SIZE, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(SIZE));
+        assertEquals(1, pool.getAllocations());
+    }
+
+    @Test
+    public void otherLengthsAreNotPooled() {
+        BLEBufferPool pool = new BLEBufferPool(SIZE, 2);
+        byte[] last = pool.acquire(10);
+        assertEquals(10, last.length);
+        pool.release(last);
+        assertNotSame(last, pool.acquire(10));
+        assertEquals(2, pool.getAllocations());
+    }
+
+    @Test
+    public void atMostMaxBuffersAreKept() {
+        BLEBufferPool pool = new BLEBufferPool(SIZE, 1);
+        byte[] first = pool.acquire(SIZE);
+        byte[] second = pool.acquire(SIZE);
+        pool.release(first);
+        pool.release(second);
+        pool.acquire(SIZE);
+        pool.acquire(SIZE);
+        assertEquals(3, pool.getAllocations());
+    }
+
+    @Test
+    public void newSizeDropsOldBuffers() {
+        BLEBufferPool pool = new BLEBufferPool(SIZE, 2);
+        byte[] buffer = pool.acquire(SIZE);
+        pool.setBufferSize(512);
+        // Too small for the new MTU, it's not kept
+        pool.release(buffer);
+        assertEquals(512, pool.acquire(512).length);
+        assertEquals(2, pool.getAllocations());
+    }
+
+    /**
+     * Once warm, the bulk write path must not allocate, whatever the amount of data sent
+     */
+    @Test
+    public void steadyStateDoesNotAllocate() throws InterruptedException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        BLEBufferPool pool = new BLEBufferPool(SIZE, 8);
+        RecyclingGatt gatt = new RecyclingGatt(pool);
+        BLEWritePipeline pipeline = new BLEWritePipeline(gatt, 4);
+        // Warm up: fills the pool, grows the queue and lets the JIT compile the loop
+        sendPackets(pool, gatt, pipeline, 20000);
+        long allocations = pool.getAllocations();
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        int packets = 100000;
+        sendPackets(pool, gatt, pipeline, packets);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(allocations, pool.getAllocations());
+        // A single array per packet would be megabytes, leave some room for the JVM itself
+        assertTrue("Allocated " + allocated + " bytes for " + packets + " packets",
+                allocated < 64 * 1024);
+        assertEquals(20000L * SIZE + (long) packets * SIZE, pipeline.getBytesWritten());
+    }
+
+    private static void sendPackets(BLEBufferPool pool, RecyclingGatt gatt,
+                                    BLEWritePipeline pipeline, int packets) throws InterruptedException {
+        for (int i = 0; i < packets; i++) {
+            byte[] packet = pool.acquire(SIZE);
+            packet[0] = (byte) i;
+            assertTrue(pipeline.offer(packet, 0));
+            gatt.complete(pipeline);
+        }
+    }
+}
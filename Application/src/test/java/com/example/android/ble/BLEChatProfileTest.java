@@ -0,0 +1,38 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BLEChatProfileTest {
+
+    @Test
+    public void versionValueCarriesTheCapabilities() {
+        int capabilities = BLEChatProfile.CAPABILITY_DEFLATE | BLEChatProfile.CAPABILITY_FILE_TRAILER;
+        byte[] value = BLEChatProfile.getVersionValue(capabilities);
+        assertEquals(capabilities, BLEChatProfile.parseCapabilities(value));
+        // Still starts with the version, for whoever shows it
+        assertEquals(BLEChatProfile.getVersion(),
+                new String(value, 0, BLEChatProfile.getVersion().length()));
+    }
+
+    @Test
+    public void noCapabilitiesIsNotNone() {
+        assertEquals(0, BLEChatProfile.parseCapabilities(BLEChatProfile.getVersionValue(0)));
+    }
+
+    @Test
+    public void olderPeripheralsOnlyAnswerTheVersion() {
+        assertEquals(-1, BLEChatProfile.parseCapabilities(BLEChatProfile.getVersion().getBytes()));
+        assertEquals(-1, BLEChatProfile.parseCapabilities(new byte[0]));
+        assertEquals(-1, BLEChatProfile.parseCapabilities(null));
+        // A 0 at the end has nothing after it
+        assertEquals(-1, BLEChatProfile.parseCapabilities(new byte[] { '1', 0 }));
+    }
+
+    @Test
+    public void unknownCapabilitiesAreIgnored() {
+        assertEquals(BLEChatProfile.CAPABILITIES,
+                BLEChatProfile.parseCapabilities(new byte[] { '1', 0, (byte) 0xFF }));
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import static com.example.android.ble.BLEConnectionPriorityManager.MIN_DWELL_TIME;
+import static com.example.android.ble.BLEConnectionPriorityManager.PRIORITY_BALANCED;
+import static com.example.android.ble.BLEConnectionPriorityManager.PRIORITY_HIGH;
+import static com.example.android.ble.BLEConnectionPriorityManager.PRIORITY_LOW_POWER;
+import static org.junit.Assert.assertEquals;
+
+public class BLEConnectionPriorityManagerTest {
+
+    /**
+     * Applies the wanted priority, like BLECentralHelper does
+     */
+    private static int update(BLEConnectionPriorityManager manager, long now) {
+        int wanted = manager.getWantedPriority(now);
+        if (wanted != manager.getPriority()) {
+            manager.onPriorityChanged(wanted, now);
+        }
+        return manager.getPriority();
+    }
+
+    private static void message(BLEConnectionPriorityManager manager, long now) {
+        manager.onTraffic(BLETrafficScheduler.CLASS_INTERACTIVE, now);
+    }
+
+    @Test
+    public void bulkGoesHighUntilIdle() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        assertEquals(PRIORITY_BALANCED, update(manager, 0));
+        assertEquals(-1, manager.getDelay(0));
+
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 0);
+        assertEquals(PRIORITY_HIGH, update(manager, 0));
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 1000);
+        assertEquals(BLEConnectionPriorityManager.DEFAULT_IDLE_TIMEOUT, manager.getDelay(1000));
+
+        assertEquals(PRIORITY_HIGH, update(manager, 1000 + BLEConnectionPriorityManager.DEFAULT_IDLE_TIMEOUT - 1));
+        assertEquals(PRIORITY_BALANCED, update(manager, 1000 + BLEConnectionPriorityManager.DEFAULT_IDLE_TIMEOUT));
+        assertEquals(-1, manager.getDelay(1000 + BLEConnectionPriorityManager.DEFAULT_IDLE_TIMEOUT));
+    }
+
+    @Test
+    public void idlePolicy() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        manager.setIdlePolicy(PRIORITY_LOW_POWER, 5000);
+        assertEquals(PRIORITY_LOW_POWER, update(manager, 0));
+
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 100);
+        assertEquals(PRIORITY_HIGH, update(manager, 100));
+        assertEquals(PRIORITY_HIGH, update(manager, 5099));
+        assertEquals(PRIORITY_LOW_POWER, update(manager, 5100));
+    }
+
+    @Test
+    public void goingDownWaitsForTheDwellTime() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        manager.setIdlePolicy(PRIORITY_BALANCED, 200);
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 0);
+        assertEquals(PRIORITY_HIGH, update(manager, 0));
+
+        // Idle, but HIGH was only just negotiated
+        assertEquals(PRIORITY_HIGH, update(manager, 500));
+        assertEquals(MIN_DWELL_TIME - 500, manager.getDelay(500));
+        assertEquals(PRIORITY_BALANCED, update(manager, MIN_DWELL_TIME));
+    }
+
+    @Test
+    public void goingUpDoesNotWait() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        manager.setIdlePolicy(PRIORITY_BALANCED, 200);
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 0);
+        assertEquals(PRIORITY_HIGH, update(manager, 0));
+        assertEquals(PRIORITY_BALANCED, update(manager, MIN_DWELL_TIME));
+
+        // BALANCED was only just negotiated, a new transfer still gets HIGH right away
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, MIN_DWELL_TIME + 10);
+        assertEquals(0, manager.getDelay(MIN_DWELL_TIME + 10));
+        assertEquals(PRIORITY_HIGH, update(manager, MIN_DWELL_TIME + 10));
+    }
+
+    @Test
+    public void burstOfMessages() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        message(manager, 0);
+        message(manager, 100);
+        message(manager, 200);
+        assertEquals(PRIORITY_BALANCED, update(manager, 200));
+        message(manager, 300);
+        assertEquals(PRIORITY_HIGH, update(manager, 300));
+    }
+
+    @Test
+    public void slowMessagesAreNotABurst() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        for (long now = 0; now <= 1200; now += 400) {
+            message(manager, now);
+            assertEquals(PRIORITY_BALANCED, update(manager, now));
+        }
+        // The last 4 now came within a second
+        message(manager, 1300);
+        assertEquals(PRIORITY_HIGH, update(manager, 1300));
+    }
+
+    @Test
+    public void failedRequestIsNotRetriedRightAway() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 0);
+        assertEquals(PRIORITY_HIGH, manager.getWantedPriority(0));
+        manager.onPriorityRequestFailed(0);
+
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 500);
+        assertEquals(PRIORITY_BALANCED, manager.getWantedPriority(500));
+        assertEquals(MIN_DWELL_TIME - 500, manager.getDelay(500));
+        assertEquals(PRIORITY_HIGH, update(manager, MIN_DWELL_TIME));
+    }
+
+    @Test
+    public void resetForANewConnection() {
+        BLEConnectionPriorityManager manager = new BLEConnectionPriorityManager();
+        manager.onTraffic(BLETrafficScheduler.CLASS_BULK, 0);
+        assertEquals(PRIORITY_HIGH, update(manager, 0));
+
+        manager.reset(100);
+        assertEquals(PRIORITY_BALANCED, manager.getPriority());
+        assertEquals(PRIORITY_BALANCED, update(manager, 100));
+        assertEquals(-1, manager.getDelay(100));
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BLEControlMessageTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ALL = BLEChatProfile.CAPABILITIES;
+    private static final int LEGACY = 0;
+
+    /**
+     * Encodes and decodes, checking the size was right
+     */
+    private static BLEControlMessage roundTrip(BLEControlMessage msg) throws IOException {
+        byte[] data = msg.toByteArray();
+        assertEquals(msg.getEncodedSize(), data.length);
+        assertTrue(BLEControlMessage.isControlMessage(data));
+        BLEControlMessage decoded = BLEControlMessage.decode(data);
+        assertEquals(msg.getType(), decoded.getType());
+        return decoded;
+    }
+
+    private static void assertInvalid(byte[] data) {
+        try {
+            BLEControlMessage.decode(data);
+            fail("Decoded " + new String(data, UTF8));
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void text() throws IOException {
+        assertEquals("hello", roundTrip(BLEControlMessage.text("hello")).getText());
+        assertEquals("", roundTrip(BLEControlMessage.text("")).getText());
+        // Multibyte characters are counted in bytes
+        assertEquals("¿qué tal? ☺", roundTrip(BLEControlMessage.text("¿qué tal? ☺")).getText());
+    }
+
+    @Test
+    public void name() throws IOException {
+        assertEquals("Juan", roundTrip(BLEControlMessage.name("Juan")).getText());
+    }
+
+    @Test
+    public void transferRequest() throws IOException {
+        BLEControlMessage msg = roundTrip(BLEControlMessage.transferRequest(
+                BLEControlMessage.TRANSPORT_BLE, 123456789L));
+        assertEquals(BLEControlMessage.TRANSPORT_BLE, msg.getTransport());
+        assertEquals(123456789L, msg.getSize());
+    }
+
+    @Test
+    public void ack() throws IOException {
+        assertEquals(42, roundTrip(BLEControlMessage.ack(42)).getId());
+    }
+
+    @Test
+    public void probeAndReply() throws IOException {
+        BLEControlMessage probe = roundTrip(BLEControlMessage.probe(7, 1500000000000L));
+        assertEquals(7, probe.getId());
+        assertEquals(1500000000000L, probe.getTimestamp());
+        BLEControlMessage reply = roundTrip(BLEControlMessage.probeReply(probe));
+        assertEquals(BLEControlMessage.TYPE_PROBE_REPLY, reply.getType());
+        assertEquals(7, reply.getId());
+        assertEquals(1500000000000L, reply.getTimestamp());
+    }
+
+    @Test
+    public void relay() throws IOException {
+        BLEControlMessage msg = roundTrip(BLEControlMessage.relay(Long.MAX_VALUE, "Ana", 3, "hi all"));
+        assertEquals(Long.MAX_VALUE, msg.getId());
+        assertEquals("Ana", msg.getOrigin());
+        assertEquals(3, msg.getTtl());
+        assertEquals("hi all", msg.getText());
+
+        BLEControlMessage next = roundTrip(msg.nextHop());
+        assertEquals(2, next.getTtl());
+        assertEquals(msg.getId(), next.getId());
+        assertEquals("Ana", next.getOrigin());
+        assertEquals("hi all", next.getText());
+    }
+
+    @Test
+    public void varintEdges() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1 };
+        int[] sizes = { 1, 1, 1, 2, 2, 3, 5, 9, 10 };
+        for (int i = 0; i < values.length; i++) {
+            BLEControlMessage msg = BLEControlMessage.ack(values[i]);
+            assertEquals("Size of " + values[i],
+                    BLEControlMessage.HEADER_SIZE + sizes[i], msg.getEncodedSize());
+            assertEquals(values[i], roundTrip(msg).getId());
+        }
+        // 127 is the last one in a single byte
+        assertArrayEquals(new byte[] { 0, 0x14, 0x7F }, BLEControlMessage.ack(127).toByteArray());
+        assertArrayEquals(new byte[] { 0, 0x14, (byte) 0x80, 0x01 },
+                BLEControlMessage.ack(128).toByteArray());
+    }
+
+    @Test
+    public void truncatedVarintIsRejected() {
+        assertInvalid(new byte[] { 0, 0x14 });
+        assertInvalid(new byte[] { 0, 0x14, (byte) 0x80 });
+        byte[] data = BLEControlMessage.probe(Long.MAX_VALUE, 300).toByteArray();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertInvalid(truncated);
+    }
+
+    @Test
+    public void malformedVarintIsRejected() {
+        // More than 64 bits of continuation bytes
+        byte[] data = new byte[2 + 11];
+        data[1] = 0x14;
+        for (int i = 2; i < data.length; i++) {
+            data[i] = (byte) 0x80;
+        }
+        assertInvalid(data);
+    }
+
+    @Test
+    public void truncatedTextIsRejected() {
+        byte[] data = BLEControlMessage.text("hello").toByteArray();
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertInvalid(truncated);
+        // A length that doesn't fit an int
+        assertInvalid(new byte[] { 0, 0x11, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F });
+    }
+
+    @Test
+    public void badHeadersAreRejected() {
+        assertInvalid(new byte[] { 0 });
+        assertInvalid(new byte[] { 'h', 'i' });
+        // Version 0
+        assertInvalid(new byte[] { 0, 0x01, 0 });
+        // Unknown type
+        assertInvalid(new byte[] { 0, 0x1F, 0 });
+    }
+
+    @Test
+    public void trailingBytesAreIgnored() throws IOException {
+        byte[] data = BLEControlMessage.ack(5).toByteArray();
+        byte[] longer = new byte[data.length + 3];
+        System.arraycopy(data, 0, longer, 0, data.length);
+        assertEquals(5, BLEControlMessage.decode(longer).getId());
+    }
+
+    @Test
+    public void decodeReusesTheMessage() throws IOException {
+        BLEControlMessage msg = new BLEControlMessage();
+        byte[] relay = BLEControlMessage.relay(1, "Ana", 2, "hi").toByteArray();
+        msg.decode(relay, 0, relay.length);
+        byte[] ack = BLEControlMessage.ack(9).toByteArray();
+        // Decoded at an offset, and nothing of the relay is left
+        byte[] buffer = new byte[ack.length + 4];
+        System.arraycopy(ack, 0, buffer, 4, ack.length);
+        msg.decode(buffer, 4, ack.length);
+        assertEquals(BLEControlMessage.TYPE_ACK, msg.getType());
+        assertEquals(9, msg.getId());
+        assertNull(msg.getText());
+        assertNull(msg.getOrigin());
+        assertEquals(0, msg.getTtl());
+    }
+
+    @Test
+    public void fromLegacyText() {
+        BLEControlMessage msg = BLEControlMessage.fromLegacyText("hello");
+        assertEquals(BLEControlMessage.TYPE_TEXT, msg.getType());
+        assertEquals("hello", msg.getText());
+
+        msg = BLEControlMessage.fromLegacyText("/name Juan");
+        assertEquals(BLEControlMessage.TYPE_NAME, msg.getType());
+        assertEquals("Juan", msg.getText());
+
+        for (String send : new String[] { "/send", "/send photo.jpg" }) {
+            msg = BLEControlMessage.fromLegacyText(send);
+            assertEquals(BLEControlMessage.TYPE_TRANSFER_REQUEST, msg.getType());
+            assertEquals(BLEControlMessage.TRANSPORT_RFCOMM, msg.getTransport());
+        }
+        // Only the exact commands
+        assertEquals(BLEControlMessage.TYPE_TEXT, BLEControlMessage.fromLegacyText("/sender").getType());
+        assertEquals(BLEControlMessage.TYPE_TEXT, BLEControlMessage.fromLegacyText("/name").getType());
+    }
+
+    @Test
+    public void fromPayloadTellsEnvelopesFromText() throws IOException {
+        assertEquals(BLEControlMessage.TYPE_ACK,
+                BLEControlMessage.fromPayload(BLEControlMessage.ack(1).toByteArray()).getType());
+        BLEControlMessage msg = BLEControlMessage.fromPayload("/name Ana".getBytes(UTF8));
+        assertEquals(BLEControlMessage.TYPE_NAME, msg.getType());
+        assertFalse(BLEControlMessage.isControlMessage(new byte[] { 0 }));
+    }
+
+    @Test
+    public void legacyPeersGetPlainText() throws IOException {
+        assertArrayEquals("hi".getBytes(UTF8), BLEControlMessage.text("hi").toPayload(LEGACY));
+        assertArrayEquals("/name Ana".getBytes(UTF8), BLEControlMessage.name("Ana").toPayload(LEGACY));
+        assertArrayEquals("/send".getBytes(UTF8), BLEControlMessage.transferRequest(
+                BLEControlMessage.TRANSPORT_RFCOMM, 10).toPayload(LEGACY));
+        // Older versions have no such messages
+        assertNull(BLEControlMessage.transferRequest(BLEControlMessage.TRANSPORT_BLE, 10).toPayload(LEGACY));
+        assertNull(BLEControlMessage.ack(1).toPayload(LEGACY));
+        assertNull(BLEControlMessage.probe(1, 2).toPayload(LEGACY));
+
+        assertTrue(BLEControlMessage.isControlMessage(BLEControlMessage.ack(1).toPayload(ALL)));
+    }
+
+    @Test
+    public void peersWhichCantRelayGetTheText() throws IOException {
+        BLEControlMessage relay = BLEControlMessage.relay(1, "Ana", 2, "hi");
+        assertArrayEquals("Ana: hi".getBytes(UTF8), relay.toPayload(LEGACY));
+        BLEControlMessage msg = BLEControlMessage.fromPayload(
+                relay.toPayload(ALL & ~BLEChatProfile.CAPABILITY_RELAY));
+        assertEquals(BLEControlMessage.TYPE_TEXT, msg.getType());
+        assertEquals("Ana: hi", msg.getText());
+        assertEquals(BLEControlMessage.TYPE_RELAY,
+                BLEControlMessage.fromPayload(relay.toPayload(ALL)).getType());
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.android.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BLEMeshRouterTest {
+
+    /**
+     * Nodes linked by address. Messages are encoded and queued, and only delivered by run(),
+     * as the routers can't be called back from their Transport.
+     */
+    private static class Mesh {
+        final Map<String, BLEMeshRouter> mRouters = new HashMap<>();
+        final Map<String, List<String>> mReceived = new HashMap<>();
+        final Set<String> mDown = new HashSet<>();
+        final ArrayDeque<String[]> mInFlight = new ArrayDeque<>();
+        final ArrayDeque<byte[]> mPayloads = new ArrayDeque<>();
+        long mNow = 0;
+        int mSeed = 0;
+
+        BLEMeshRouter add(final String id) {
+            BLEMeshRouter.Transport transport = new BLEMeshRouter.Transport() {
+                @Override
+                public boolean send(String link, BLEControlMessage msg) {
+                    if (mDown.contains(key(id, link))) {
+                        return false;
+                    }
+                    mInFlight.add(new String[] { id, link });
+                    mPayloads.add(msg.toPayload(BLEChatProfile.CAPABILITIES));
+                    return true;
+                }
+            };
+            final List<String> received = new ArrayList<>();
+            BLEMeshRouter.Listener listener = new BLEMeshRouter.Listener() {
+                @Override
+                public void onMessage(String link, BLEControlMessage msg) {
+                    received.add(msg.getOrigin() + ": " + msg.getText());
+                }
+            };
+            BLEMeshRouter router = new BLEMeshRouter(id, transport, listener, new Random(mSeed++));
+            // No rate limit, unless a test sets one
+            router.setLinkRate(0, 0);
+            mRouters.put(id, router);
+            mReceived.put(id, received);
+            return router;
+        }
+
+        void link(String a, String b) {
+            mDown.remove(key(a, b));
+            mDown.remove(key(b, a));
+            mRouters.get(a).onLinkUp(b, mNow);
+            mRouters.get(b).onLinkUp(a, mNow);
+        }
+
+        void unlink(String a, String b) {
+            mDown.add(key(a, b));
+            mDown.add(key(b, a));
+            mRouters.get(a).onLinkDown(b, mNow);
+            mRouters.get(b).onLinkDown(a, mNow);
+        }
+
+        /**
+         * Delivers everything in flight, and whatever that sends
+         */
+        void run() throws IOException {
+            while (!mInFlight.isEmpty()) {
+                String[] hop = mInFlight.poll();
+                BLEControlMessage msg = BLEControlMessage.fromPayload(mPayloads.poll());
+                mRouters.get(hop[1]).onReceive(hop[0], msg, mNow);
+            }
+        }
+
+        private static String key(String from, String to) {
+            return from + ">" + to;
+        }
+    }
+
+    private Mesh mMesh;
+
+    @Before
+    public void setUp() {
+        mMesh = new Mesh();
+    }
+
+    /**
+     * A line of nodes, n0 to n(count-1)
+     */
+    private void line(int count) {
+        for (int i = 0; i < count; i++) {
+            mMesh.add("n" + i);
+        }
+        for (int i = 1; i < count; i++) {
+            mMesh.link("n" + (i - 1), "n" + i);
+        }
+    }
+
+    @Test
+    public void floodReachesEveryNodeOnce() throws IOException {
+        // A line with a few chords, so most messages come through several paths
+        int count = 12;
+        line(count);
+        mMesh.link("n0", "n5");
+        mMesh.link("n2", "n9");
+        mMesh.link("n4", "n11");
+        mMesh.link("n6", "n10");
+        for (BLEMeshRouter router : mMesh.mRouters.values()) {
+            router.setTtl(count);
+        }
+        for (int i = 0; i < count; i += 3) {
+            mMesh.mRouters.get("n" + i).send("hello from " + i, mMesh.mNow);
+            mMesh.run();
+        }
+        long duplicates = 0;
+        for (int i = 0; i < count; i++) {
+            List<String> received = mMesh.mReceived.get("n" + i);
+            // Every message but its own, exactly once
+            assertEquals("n" + i + " got " + received, (i % 3 == 0 ? 3 : 4), received.size());
+            assertEquals(received.size(), new HashSet<>(received).size());
+            duplicates += mMesh.mRouters.get("n" + i).getDuplicates();
+        }
+        assertTrue("Chords bring copies", duplicates > 0);
+    }
+
+    @Test
+    public void copiesAreDropped() throws IOException {
+        // A triangle: b gets the message from a, and again through c
+        BLEMeshRouter a = mMesh.add("a");
+        BLEMeshRouter b = mMesh.add("b");
+        mMesh.add("c");
+        mMesh.link("a", "b");
+        mMesh.link("b", "c");
+        mMesh.link("c", "a");
+        a.send("hi", mMesh.mNow);
+        mMesh.run();
+        assertEquals(1, mMesh.mReceived.get("b").size());
+        assertEquals(1, mMesh.mReceived.get("c").size());
+        assertTrue(b.getDuplicates() > 0);
+        // Its own message coming back isn't shown either
+        assertTrue(mMesh.mReceived.get("a").isEmpty());
+    }
+
+    @Test
+    public void onReceiveTellsCopies() {
+        BLEMeshRouter router = mMesh.add("a");
+        BLEControlMessage msg = BLEControlMessage.relay(42, "x", 3, "hi");
+        assertTrue(router.onReceive("b", msg, 0));
+        assertFalse(router.onReceive("c", msg, 0));
+        assertEquals(1, router.getDuplicates());
+        // Same id from someone else is another message
+        assertTrue(router.onReceive("c", BLEControlMessage.relay(42, "y", 3, "hi"), 0));
+    }
+
+    @Test
+    public void ttlExpires() throws IOException {
+        line(6);
+        BLEMeshRouter first = mMesh.mRouters.get("n0");
+        first.setTtl(3);
+        first.send("short trip", mMesh.mNow);
+        mMesh.run();
+        for (int i = 1; i < 6; i++) {
+            assertEquals("n" + i, (i <= 3 ? 1 : 0), mMesh.mReceived.get("n" + i).size());
+        }
+    }
+
+    @Test
+    public void seenIdsAreForgottenInOrder() {
+        BLEMeshRouter router = mMesh.add("a");
+        router.setSeenCapacity(2);
+        router.onReceive("b", BLEControlMessage.relay(1, "x", 1, "1"), 0);
+        router.onReceive("b", BLEControlMessage.relay(2, "x", 1, "2"), 0);
+        router.onReceive("b", BLEControlMessage.relay(3, "x", 1, "3"), 0);
+        // The oldest one is gone, the others are still known
+        assertTrue(router.onReceive("b", BLEControlMessage.relay(1, "x", 1, "1"), 0));
+        assertFalse(router.onReceive("b", BLEControlMessage.relay(3, "x", 1, "3"), 0));
+    }
+
+    @Test
+    public void storeAndForwardAcrossALinkThatComesBack() throws IOException {
+        line(3);
+        mMesh.unlink("n1", "n2");
+        BLEMeshRouter first = mMesh.mRouters.get("n0");
+        BLEMeshRouter middle = mMesh.mRouters.get("n1");
+        first.send("while you were away", mMesh.mNow);
+        first.send("and another one", mMesh.mNow);
+        mMesh.run();
+        assertEquals(2, mMesh.mReceived.get("n1").size());
+        assertTrue(mMesh.mReceived.get("n2").isEmpty());
+        assertEquals(2, middle.getStored("n2"));
+        assertTrue(middle.getDelay(mMesh.mNow) > 0);
+
+        mMesh.mNow += 60 * 1000;
+        mMesh.link("n1", "n2");
+        mMesh.run();
+        assertEquals(0, middle.getStored("n2"));
+        List<String> received = mMesh.mReceived.get("n2");
+        assertEquals(2, received.size());
+        // In the order they were written
+        assertEquals("n0: while you were away", received.get(0));
+        assertEquals("n0: and another one", received.get(1));
+    }
+
+    @Test
+    public void linkDownTooLongIsForgotten() throws IOException {
+        line(2);
+        BLEMeshRouter first = mMesh.mRouters.get("n0");
+        first.setStore(8, 1000);
+        mMesh.unlink("n0", "n1");
+        first.send("nobody hears", mMesh.mNow);
+        assertEquals(1, first.getStored("n1"));
+        assertEquals(1000, first.getDelay(mMesh.mNow));
+
+        mMesh.mNow += 1000;
+        first.flush(mMesh.mNow);
+        assertFalse(first.getLinks().contains("n1"));
+        assertEquals(-1, first.getDelay(mMesh.mNow));
+        // Coming back later, it doesn't get the old message
+        mMesh.link("n0", "n1");
+        mMesh.run();
+        assertTrue(mMesh.mReceived.get("n1").isEmpty());
+    }
+
+    @Test
+    public void storeKeepsTheNewestMessages() throws IOException {
+        line(2);
+        BLEMeshRouter first = mMesh.mRouters.get("n0");
+        first.setStore(2, BLEMeshRouter.DEFAULT_STORE_TIMEOUT);
+        mMesh.unlink("n0", "n1");
+        for (int i = 0; i < 3; i++) {
+            first.send("message " + i, mMesh.mNow);
+        }
+        assertEquals(2, first.getStored("n1"));
+        assertEquals(1, first.getDropped());
+        mMesh.link("n0", "n1");
+        mMesh.run();
+        List<String> received = mMesh.mReceived.get("n1");
+        assertEquals(2, received.size());
+        assertEquals("n0: message 1", received.get(0));
+    }
+
+    @Test
+    public void rateLimitDefersMessages() throws IOException {
+        line(2);
+        BLEMeshRouter first = mMesh.mRouters.get("n0");
+        first.setLinkRate(10, 2);
+        for (int i = 0; i < 5; i++) {
+            first.send("burst " + i, mMesh.mNow);
+        }
+        mMesh.run();
+        // The burst goes now, the rest waits for tokens
+        assertEquals(2, mMesh.mReceived.get("n1").size());
+        assertEquals(3, first.getStored("n1"));
+        long delay = first.getDelay(mMesh.mNow);
+        assertTrue(delay > 0 && delay <= 100);
+
+        // Flushing when told to, the rest go a token at a time
+        long start = mMesh.mNow;
+        while ((delay = first.getDelay(mMesh.mNow)) >= 0) {
+            mMesh.mNow += delay;
+            first.flush(mMesh.mNow);
+            mMesh.run();
+        }
+        assertEquals(5, mMesh.mReceived.get("n1").size());
+        assertTrue(mMesh.mNow - start >= 300 && mMesh.mNow - start <= 400);
+    }
+}
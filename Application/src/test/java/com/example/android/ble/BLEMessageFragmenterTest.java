@@ -0,0 +1,134 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BLEMessageFragmenterTest {
+
+    private static byte[] randomMessage(int length, long seed) {
+        byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+    }
+
+    /**
+     * Feeds all the fragments, checking only the last one completes the message
+     */
+    private static byte[] reassemble(BLEMessageFragmenter.Reassembler reassembler, List<byte[]> fragments) {
+        for (int i = 0; i < fragments.size() - 1; i++) {
+            assertNull(reassembler.onFragment(fragments.get(i)));
+        }
+        return reassembler.onFragment(fragments.get(fragments.size() - 1));
+    }
+
+    @Test
+    public void roundTripAtSeveralMtus() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        BLEMessageFragmenter.Reassembler reassembler = new BLEMessageFragmenter.Reassembler();
+        int[] sizes = { BLEChatProfile.DEFAULT_PAYLOAD_SIZE, 182, 244, BLEChatProfile.MAX_MTU - 3 };
+        int[] lengths = { 0, 1, 16, 17, 18, 500, 5000 };
+        for (int size : sizes) {
+            for (int length : lengths) {
+                byte[] message = randomMessage(length, size * 31 + length);
+                List<byte[]> fragments = fragmenter.fragment(message, size);
+                int payloadSize = size - BLEMessageFragmenter.HEADER_SIZE;
+                assertEquals(Math.max(1, (length + payloadSize - 1) / payloadSize), fragments.size());
+                for (byte[] fragment : fragments) {
+                    assertTrue(fragment.length <= size);
+                }
+                assertArrayEquals("MTU " + size + ", " + length + " bytes",
+                        message, reassemble(reassembler, fragments));
+            }
+        }
+    }
+
+    @Test
+    public void lastFragmentIndexUsesAll15Bits() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        // One byte per fragment, so the message takes every index there is
+        int size = BLEMessageFragmenter.HEADER_SIZE + 1;
+        byte[] message = randomMessage(BLEMessageFragmenter.MAX_FRAGMENTS, 1);
+        List<byte[]> fragments = fragmenter.fragment(message, size);
+        assertEquals(BLEMessageFragmenter.MAX_FRAGMENTS, fragments.size());
+        byte[] last = fragments.get(fragments.size() - 1);
+        assertEquals(0x80 | 0x7F, last[1] & 0xFF);
+        assertEquals(0xFE, last[2] & 0xFF);
+        assertArrayEquals(message, reassemble(new BLEMessageFragmenter.Reassembler(), fragments));
+    }
+
+    @Test
+    public void tooManyFragmentsIsRejected() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        try {
+            fragmenter.fragment(new byte[BLEMessageFragmenter.MAX_FRAGMENTS + 1],
+                    BLEMessageFragmenter.HEADER_SIZE + 1);
+            fail("Message needs more than 15 bits of index");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void fragmentSizeMustFitTheHeader() {
+        try {
+            new BLEMessageFragmenter().fragment(new byte[10], BLEMessageFragmenter.HEADER_SIZE);
+            fail("No room for payload");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void indexZeroRestartsAnIncompleteMessage() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        BLEMessageFragmenter.Reassembler reassembler = new BLEMessageFragmenter.Reassembler();
+        List<byte[]> dropped = fragmenter.fragment(randomMessage(100, 2), 20);
+        // The sender gave up halfway
+        assertNull(reassembler.onFragment(dropped.get(0)));
+        assertNull(reassembler.onFragment(dropped.get(1)));
+
+        byte[] message = randomMessage(100, 3);
+        assertArrayEquals(message, reassemble(reassembler, fragmenter.fragment(message, 20)));
+    }
+
+    @Test
+    public void gapDiscardsTheMessage() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        BLEMessageFragmenter.Reassembler reassembler = new BLEMessageFragmenter.Reassembler();
+        List<byte[]> fragments = fragmenter.fragment(randomMessage(100, 4), 20);
+        for (int i = 0; i < fragments.size(); i++) {
+            if (i != 2) {
+                assertNull(reassembler.onFragment(fragments.get(i)));
+            }
+        }
+        // The next message still goes through
+        byte[] message = randomMessage(50, 5);
+        assertArrayEquals(message, reassemble(reassembler, fragmenter.fragment(message, 20)));
+    }
+
+    @Test
+    public void fragmentsOfAnotherMessageAreNotMixed() {
+        BLEMessageFragmenter fragmenter = new BLEMessageFragmenter();
+        BLEMessageFragmenter.Reassembler reassembler = new BLEMessageFragmenter.Reassembler();
+        List<byte[]> first = fragmenter.fragment(randomMessage(60, 6), 20);
+        List<byte[]> second = fragmenter.fragment(randomMessage(60, 7), 20);
+        assertNull(reassembler.onFragment(first.get(0)));
+        assertNull(reassembler.onFragment(second.get(1)));
+        assertNull(reassembler.onFragment(first.get(1)));
+    }
+
+    @Test
+    public void shortFragmentResets() {
+        BLEMessageFragmenter.Reassembler reassembler = new BLEMessageFragmenter.Reassembler();
+        assertNull(reassembler.onFragment(new byte[2]));
+        assertNull(reassembler.onFragment(null));
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BLEOutboundQueueTest {
+
+    /**
+     * Takes one fragment at a time, like notifications do
+     */
+    private static class FakeSender implements BLEOutboundQueue.Sender {
+        final List<byte[]> mSent = new ArrayList<>();
+        boolean mBusy = false;
+
+        @Override
+        public boolean send(byte[] fragment) {
+            if (mBusy) {
+                return false;
+            }
+            mSent.add(fragment);
+            return true;
+        }
+
+        /**
+         * Message and fragment of every fragment sent
+         */
+        String sent() {
+            StringBuilder sent = new StringBuilder();
+            for (byte[] fragment : mSent) {
+                sent.append(fragment[0]).append('.').append(fragment[1]).append(' ');
+            }
+            return sent.toString().trim();
+        }
+    }
+
+    private static List<byte[]> message(int id, int fragments) {
+        List<byte[]> message = new ArrayList<>();
+        for (int i = 0; i < fragments; i++) {
+            message.add(new byte[] { (byte) id, (byte) i });
+        }
+        return message;
+    }
+
+    private static void sendAll(BLEOutboundQueue queue) {
+        queue.drain();
+        while (!queue.isIdle()) {
+            queue.onSent(true);
+        }
+    }
+
+    @Test
+    public void sendsOneFragmentAtATime() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 4, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 2));
+        queue.offer(message(2, 1));
+        queue.drain();
+        assertEquals("1.0", sender.sent());
+        // Nothing else goes until the first one is gone
+        queue.drain();
+        assertEquals(1, sender.mSent.size());
+        sendAll(queue);
+        assertEquals("1.0 1.1 2.0", sender.sent());
+    }
+
+    @Test
+    public void busySenderIsRetried() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 4, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 1));
+        sender.mBusy = true;
+        assertFalse(queue.drain());
+        sender.mBusy = false;
+        assertTrue(queue.drain());
+        assertEquals("1.0", sender.sent());
+    }
+
+    @Test
+    public void dropsTheOldestMessageNotStarted() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 2, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 1));
+        queue.offer(message(2, 1));
+        queue.offer(message(3, 1));
+        assertEquals(1, queue.getDropped());
+        sendAll(queue);
+        assertEquals("2.0 3.0", sender.sent());
+    }
+
+    @Test
+    public void halfSentMessageGoesOn() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 2, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 3));
+        queue.offer(message(2, 1));
+        queue.drain();
+        queue.offer(message(3, 1));
+        assertEquals(1, queue.getDropped());
+        sendAll(queue);
+        assertEquals("1.0 1.1 1.2 3.0", sender.sent());
+    }
+
+    @Test
+    public void halfSentMessageAloneDropsTheNewOne() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 1, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 3));
+        queue.drain();
+        assertTrue(queue.offer(message(2, 1)));
+        assertEquals(1, queue.getDropped());
+        assertEquals(1, queue.size());
+        sendAll(queue);
+        // The receiver gets the whole first message, not a truncated one
+        assertEquals("1.0 1.1 1.2", sender.sent());
+
+        // Once it's done there's room again
+        assertTrue(queue.offer(message(4, 1)));
+        sendAll(queue);
+        assertEquals("1.0 1.1 1.2 4.0", sender.sent());
+    }
+
+    @Test
+    public void disconnectPolicyRefuses() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 1, BLEOutboundQueue.POLICY_DISCONNECT);
+        assertTrue(queue.offer(message(1, 1)));
+        assertFalse(queue.offer(message(2, 1)));
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void clearStartsOver() {
+        FakeSender sender = new FakeSender();
+        BLEOutboundQueue queue = new BLEOutboundQueue(sender, 2, BLEOutboundQueue.POLICY_DROP_OLDEST);
+        queue.offer(message(1, 3));
+        queue.drain();
+        queue.clear();
+        assertTrue(queue.isIdle());
+        queue.offer(Arrays.asList(new byte[] { 2, 0 }));
+        sendAll(queue);
+        assertEquals("1.0 2.0", sender.sent());
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compression ratio and CPU cost per MB of BLEPayloadCodec, for chat messages and files.
+ * Results are printed. The asserts only catch a codec that stopped paying off.
+ */
+public class BLEPayloadCodecBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] CHAT = {
+            "ok", "thanks, see you later", "where are you?", "I'm on my way, be there in 10 minutes",
+            "haha that's great :)", "can't make it today, sorry. what about tomorrow morning?",
+            "did you see https://www.example.com/some/long/path?id=1234 it's the one I told you about",
+            "sure", "let's meet at the station at 7, don't be late this time ;)",
+    };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static long cpuNanos() {
+        return (THREADS.isCurrentThreadCpuTimeSupported()
+                ? THREADS.getCurrentThreadCpuTime() : System.nanoTime());
+    }
+
+    private static void report(String name, long in, long out, long nanos) {
+        System.out.println(String.format("%-16s %5.1f%% of the size, %7.1f ms CPU per MB",
+                name, 100.0 * out / in, nanos / 1e6 / ((double) in / MB)));
+    }
+
+    private static byte[] chatLog(int length) {
+        StringBuilder log = new StringBuilder();
+        Random random = new Random(1);
+        while (log.length() < length) {
+            log.append(CHAT[random.nextInt(CHAT.length)]).append('\n');
+        }
+        return log.toString().getBytes(UTF8);
+    }
+
+    @Test
+    public void chatMessages() throws IOException {
+        BLEPayloadCodec codec = new BLEPayloadCodec();
+        byte[][] messages = new byte[CHAT.length][];
+        for (int i = 0; i < CHAT.length; i++) {
+            messages[i] = CHAT[i].getBytes(UTF8);
+        }
+        // Warm up, so the JIT isn't measured
+        for (int i = 0; i < 2000; i++) {
+            codec.decode(codec.encode(messages[i % messages.length]));
+        }
+        long in = 0;
+        long out = 0;
+        long encode = 0;
+        long decode = 0;
+        while (in < MB) {
+            for (byte[] message : messages) {
+                long start = cpuNanos();
+                byte[] payload = codec.encode(message);
+                long encoded = cpuNanos();
+                byte[] decoded = codec.decode(payload);
+                decode += cpuNanos() - encoded;
+                encode += encoded - start;
+                assertArrayEquals(message, decoded);
+                in += message.length;
+                out += payload.length;
+            }
+        }
+        report("chat encode", in, out, encode);
+        report("chat decode", in, out, decode);
+        assertTrue("Chat text should compress", out < in * 0.9);
+    }
+
+    @Test
+    public void textFile() throws IOException {
+        byte[] file = chatLog(4 * MB);
+        long out = benchmarkFile("text file", file, BLEPayloadCodec.CODEC_DEFLATE);
+        assertTrue("Text files should compress", out < file.length / 2);
+    }
+
+    @Test
+    public void compressedFile() throws IOException {
+        // Random bytes are as good as a JPEG here
+        byte[] file = new byte[4 * MB];
+        new Random(2).nextBytes(file);
+        assertTrue(!BLEPayloadCodec.isWorthCompressing(file, BLEPayloadCodec.SAMPLE_SIZE));
+        long out = benchmarkFile("random, deflate", file, BLEPayloadCodec.CODEC_DEFLATE);
+        // Deflate stores what it can't compress, the cost is in the CPU
+        assertTrue(out < file.length * 1.01);
+        benchmarkFile("random, none", file, BLEPayloadCodec.CODEC_NONE);
+    }
+
+    /**
+     * @return Size of the encoded file
+     */
+    private static long benchmarkFile(String name, byte[] file, int codec) throws IOException {
+        // Warm up
+        encodeFile(file, codec, MB / 4);
+        long start = cpuNanos();
+        byte[] encoded = encodeFile(file, codec, file.length);
+        long encodeNanos = cpuNanos() - start;
+
+        start = cpuNanos();
+        InputStream in = BLEPayloadCodec.newFileInputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(file.length);
+        byte[] buffer = new byte[8 * 1024];
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+            decoded.write(buffer, 0, length);
+        }
+        long decodeNanos = cpuNanos() - start;
+        assertArrayEquals(file, decoded.toByteArray());
+
+        report(name + " out", file.length, encoded.length, encodeNanos);
+        report(name + " in", file.length, encoded.length, decodeNanos);
+        return encoded.length;
+    }
+
+    private static byte[] encodeFile(byte[] file, int codec, int length) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(length + 1);
+        OutputStream out = BLEPayloadCodec.newFileOutputStream(encoded, codec);
+        for (int offset = 0; offset < length; offset += 8 * 1024) {
+            out.write(file, offset, Math.min(8 * 1024, length - offset));
+        }
+        out.close();
+        return encoded.toByteArray();
+    }
+}
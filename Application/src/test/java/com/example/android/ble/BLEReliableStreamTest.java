@@ -0,0 +1,161 @@
+package com.example.android.ble;
+
+import com.example.android.ble.BLEReliableStream.Receiver;
+import com.example.android.ble.BLEReliableStream.Sender;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BLEReliableStreamTest {
+
+    private static final long RETRANSMIT_TIMEOUT = 50;
+    private static final long FAILURE_TIMEOUT = 5000;
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * A single characteristic: packets arrive in order, right away, and ACKs go straight back
+     */
+    private static class Loopback implements Sender.Link, Receiver.Listener {
+
+        Sender mSender;
+        Receiver mReceiver;
+        /* Wire sequence numbers whose next transmission is lost */
+        final Set<Integer> mDrop = new HashSet<>();
+        boolean mDropAll = false;
+        boolean mDuplicate = false;
+        int mNextIndex = 0;
+        int mDelivered = 0;
+
+        @Override
+        public boolean send(byte[] packet, int length) {
+            byte[] copy = Arrays.copyOf(packet, length);
+            if (mDropAll) {
+                return true;
+            }
+            if (BLEReliableStream.getType(copy) == BLEReliableStream.TYPE_DATA
+                    && mDrop.remove(((copy[1] & 0xFF) << 8) | (copy[2] & 0xFF))) {
+                return true;
+            }
+            mReceiver.onPacket(copy);
+            if (mDuplicate) {
+                mReceiver.onPacket(copy);
+            }
+            return true;
+        }
+
+        @Override
+        public void onData(byte[] data) {
+            // Every block carries its index, they must come in order and exactly once
+            assertEquals(mDelivered++, ByteBuffer.wrap(data).getInt());
+        }
+
+        @Override
+        public void onAck(byte[] ack) {
+            mSender.onAck(ack);
+        }
+    }
+
+    private static Loopback connect(int window, long retransmitTimeout, long failureTimeout) {
+        Loopback link = new Loopback();
+        link.mSender = new Sender(link, window, retransmitTimeout, failureTimeout);
+        link.mReceiver = new Receiver(link, window);
+        return link;
+    }
+
+    private static Loopback connect() {
+        return connect(BLEReliableStream.DEFAULT_WINDOW, RETRANSMIT_TIMEOUT, FAILURE_TIMEOUT);
+    }
+
+    private static void send(Loopback link, int blocks) throws InterruptedException {
+        byte[] block = new byte[8];
+        for (int i = 0; i < blocks; i++) {
+            ByteBuffer.wrap(block).putInt(link.mNextIndex++);
+            assertTrue(link.mSender.send(block, 0, block.length, TIMEOUT));
+        }
+    }
+
+    @Test
+    public void inOrder() throws InterruptedException {
+        Loopback link = connect();
+        send(link, 200);
+        assertTrue(link.mSender.flush(TIMEOUT));
+        assertEquals(200, link.mDelivered);
+        assertEquals(0, link.mSender.getRetransmissions());
+    }
+
+    @Test
+    public void onlyLostPacketsAreResent() throws InterruptedException {
+        Loopback link = connect();
+        link.mDrop.add(3);
+        link.mDrop.add(7);
+        send(link, 20);
+        assertTrue(link.mSender.flush(TIMEOUT));
+        assertEquals(20, link.mDelivered);
+        assertEquals(2, link.mSender.getRetransmissions());
+    }
+
+    @Test
+    public void duplicatesAreDeliveredOnce() throws InterruptedException {
+        Loopback link = connect();
+        link.mDuplicate = true;
+        send(link, 100);
+        assertTrue(link.mSender.flush(TIMEOUT));
+        assertEquals(100, link.mDelivered);
+        assertEquals(0, link.mSender.getRetransmissions());
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() throws InterruptedException {
+        Loopback link = connect();
+        send(link, 0x10000 - 10);
+        // Losses on both sides of the 16 bits boundary
+        link.mDrop.add(0xFFFE);
+        link.mDrop.add(0xFFFF);
+        link.mDrop.add(0);
+        link.mDrop.add(2);
+        send(link, 5000);
+        assertTrue(link.mSender.flush(TIMEOUT));
+        assertEquals(0x10000 - 10 + 5000, link.mDelivered);
+        assertEquals(4, link.mSender.getRetransmissions());
+    }
+
+    @Test
+    public void failsWhenNothingIsAcknowledged() throws InterruptedException {
+        Loopback link = connect(4, 10, 100);
+        link.mDropAll = true;
+        send(link, 4);
+        // The window is full and nothing comes back
+        long start = System.currentTimeMillis();
+        assertFalse(link.mSender.send(new byte[8], 0, 8, TIMEOUT));
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        assertTrue(link.mSender.isFailed());
+        assertTrue(link.mSender.getRetransmissions() > 0);
+        assertFalse(link.mSender.flush(TIMEOUT));
+    }
+
+    @Test
+    public void resetForANewConnection() throws InterruptedException {
+        Loopback link = connect(4, 10, 100);
+        link.mDropAll = true;
+        send(link, 4);
+        assertFalse(link.mSender.flush(TIMEOUT));
+        assertTrue(link.mSender.isFailed());
+
+        link.mSender.reset();
+        link.mReceiver = new Receiver(link, 4);
+        link.mDropAll = false;
+        link.mNextIndex = 0;
+        assertFalse(link.mSender.isFailed());
+        send(link, 20);
+        assertTrue(link.mSender.flush(TIMEOUT));
+        assertEquals(20, link.mDelivered);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BLETrafficSchedulerTest {
+
+    private static class Item implements BLETrafficScheduler.Item {
+        final int mTrafficClass;
+        final int mSize;
+        long mQueuedAt;
+
+        Item(int trafficClass, int size) {
+            mTrafficClass = trafficClass;
+            mSize = size;
+        }
+
+        @Override
+        public int getTrafficClass() {
+            return mTrafficClass;
+        }
+
+        @Override
+        public int getSize() {
+            return mSize;
+        }
+    }
+
+    private static Item bulk() {
+        return new Item(BLETrafficScheduler.CLASS_BULK, 512);
+    }
+
+    @Test
+    public void interactiveOvertakesQueuedBulk() {
+        BLETrafficScheduler<Item> scheduler = new BLETrafficScheduler<>();
+        Item[] bulk = new Item[10];
+        for (int i = 0; i < bulk.length; i++) {
+            scheduler.offer(bulk[i] = bulk());
+        }
+        Item control = new Item(BLETrafficScheduler.CLASS_CONTROL, 2);
+        Item chat = new Item(BLETrafficScheduler.CLASS_INTERACTIVE, 20);
+        scheduler.offer(control);
+        scheduler.offer(chat);
+
+        assertEquals(BLETrafficScheduler.CLASS_INTERACTIVE, scheduler.peekClass());
+        assertSame(chat, scheduler.poll(0));
+        assertSame(control, scheduler.poll(0));
+        for (Item item : bulk) {
+            assertSame(item, scheduler.poll(0));
+        }
+        assertNull(scheduler.poll(0));
+        assertEquals(-1, scheduler.getDelay(0));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void bulkRateIsCapped() {
+        BLETrafficScheduler<Item> scheduler = new BLETrafficScheduler<>();
+        // 10 items of 512 bytes per second, one at a time
+        scheduler.setBulkRate(5120, 512);
+        for (int i = 0; i < 21; i++) {
+            scheduler.offer(bulk());
+        }
+
+        long now = 0;
+        int sent = 0;
+        while (!scheduler.isEmpty()) {
+            long delay = scheduler.getDelay(now);
+            if (delay > 0) {
+                assertNull(scheduler.poll(now));
+                now += delay;
+            }
+            assertEquals(BLETrafficScheduler.CLASS_BULK, scheduler.poll(now).getTrafficClass());
+            sent++;
+        }
+        // The first one goes with the burst, then 100 ms each
+        assertEquals(21, sent);
+        assertEquals(2000, now);
+    }
+
+    @Test
+    public void interactiveIsNotHeldByTheBulkCap() {
+        BLETrafficScheduler<Item> scheduler = new BLETrafficScheduler<>();
+        scheduler.setBulkRate(512, 512);
+        scheduler.offer(bulk());
+        scheduler.offer(bulk());
+        assertEquals(BLETrafficScheduler.CLASS_BULK, scheduler.poll(0).getTrafficClass());
+        assertEquals(1000, scheduler.getDelay(0));
+
+        Item chat = new Item(BLETrafficScheduler.CLASS_INTERACTIVE, 20);
+        scheduler.offer(chat);
+        assertEquals(0, scheduler.getDelay(0));
+        assertSame(chat, scheduler.poll(0));
+        assertNull(scheduler.poll(0));
+    }
+
+    @Test
+    public void burstSmallerThanAnItem() {
+        BLETrafficScheduler.TokenBucket bucket = new BLETrafficScheduler.TokenBucket();
+        bucket.setRate(1000, 10);
+        assertTrue(bucket.tryAcquire(100, 0));
+        // It went into debt, so the next one waits for the whole item at 1000 bytes/s
+        assertEquals(100, bucket.getDelay(100, 0));
+        assertFalse(bucket.tryAcquire(100, 99));
+        assertTrue(bucket.tryAcquire(100, 100));
+    }
+
+    @Test
+    public void noCap() {
+        BLETrafficScheduler<Item> scheduler = new BLETrafficScheduler<>();
+        for (int i = 0; i < 100; i++) {
+            scheduler.offer(bulk());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, scheduler.getDelay(0));
+            assertEquals(BLETrafficScheduler.CLASS_BULK, scheduler.poll(0).getTrafficClass());
+        }
+    }
+
+    /**
+     * A 1 MB transfer over a link that takes one item per connection interval, with a chat
+     * message typed every second. Each one must be on air within two connection intervals.
+     */
+    @Test
+    public void chatLatencyDuringABulkTransfer() {
+        final long interval = 30;
+        final int size = 1024 * 1024;
+        BLETrafficScheduler<Item> scheduler = new BLETrafficScheduler<>();
+        scheduler.setBulkRate(64 * 1024, 2048);
+        for (int queued = 0; queued < size; queued += 512) {
+            scheduler.offer(bulk());
+        }
+
+        long maxLatency = 0;
+        int chats = 0;
+        long nextChat = 7;
+        int bulkBytes = 0;
+        for (long now = 0; bulkBytes < size; now += interval) {
+            // Messages typed during the last connection interval
+            while (nextChat <= now) {
+                Item chat = new Item(BLETrafficScheduler.CLASS_INTERACTIVE, 20);
+                chat.mQueuedAt = nextChat;
+                scheduler.offer(chat);
+                nextChat += 1000;
+            }
+            Item item = scheduler.poll(now);
+            if (item == null) {
+                continue;
+            }
+            if (item.getTrafficClass() == BLETrafficScheduler.CLASS_BULK) {
+                bulkBytes += item.getSize();
+            } else {
+                // On air by the end of this connection interval
+                maxLatency = Math.max(maxLatency, now + interval - item.mQueuedAt);
+                chats++;
+            }
+        }
+        assertTrue(chats > 10);
+        assertTrue("Chat latency " + maxLatency + " ms", maxLatency <= 2 * interval);
+    }
+}
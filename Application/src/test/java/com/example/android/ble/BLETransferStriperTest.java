@@ -0,0 +1,218 @@
+package com.example.android.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BLETransferStriperTest {
+
+    private static final long RETRANSMIT_TIMEOUT = 50;
+    private static final long FAILURE_TIMEOUT = 5000;
+
+    /**
+     * Stripes packets like the Central does, holding them until deliver() so the test decides
+     * the order they arrive in. ACKs go straight back to the Sender.
+     */
+    private static class StripedLink implements BLEReliableStream.Sender.Link,
+            BLEReliableStream.Receiver.Listener {
+        final BLETransferStriper mStriper;
+        final ArrayDeque<byte[]>[] mStripes;
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        BLEReliableStream.Sender mSender;
+        BLEReliableStream.Receiver mReceiver;
+        /* Packets go through right away, ie: while flushing */
+        boolean mImmediate = false;
+        /* Sequence number of a DATA packet lost the first time it's sent, or -1 */
+        int mDrop = -1;
+
+        @SuppressWarnings("unchecked")
+        StripedLink(int stripes) {
+            mStriper = new BLETransferStriper(stripes);
+            mStripes = new ArrayDeque[stripes];
+            for (int i = 0; i < stripes; i++) {
+                mStripes[i] = new ArrayDeque<>();
+            }
+        }
+
+        @Override
+        public boolean send(byte[] packet, int length) {
+            byte[] copy = Arrays.copyOf(packet, length);
+            if (BLEReliableStream.getType(copy) == BLEReliableStream.TYPE_DATA
+                    && (((copy[1] & 0xFF) << 8) | (copy[2] & 0xFF)) == mDrop) {
+                mDrop = -1;
+                return true;
+            }
+            if (mImmediate) {
+                mReceiver.onPacket(copy);
+            } else {
+                mStripes[mStriper.next()].add(copy);
+            }
+            return true;
+        }
+
+        /**
+         * Delivers everything held in a stripe
+         */
+        void deliver(int stripe) {
+            while (!mStripes[stripe].isEmpty()) {
+                mReceiver.onPacket(mStripes[stripe].poll());
+            }
+        }
+
+        @Override
+        public void onData(byte[] data) {
+            mReceived.write(data, 0, data.length);
+        }
+
+        @Override
+        public void onAck(byte[] ack) {
+            mSender.onAck(ack);
+        }
+    }
+
+    private static StripedLink connect(int stripes, int reorderTolerance) {
+        StripedLink link = new StripedLink(stripes);
+        link.mSender = new BLEReliableStream.Sender(link, BLEReliableStream.DEFAULT_WINDOW,
+                RETRANSMIT_TIMEOUT, FAILURE_TIMEOUT);
+        link.mSender.setReorderTolerance(reorderTolerance);
+        link.mReceiver = new BLEReliableStream.Receiver(link, BLEReliableStream.DEFAULT_WINDOW);
+        return link;
+    }
+
+    /**
+     * Sends packets of 10 bytes, numbered
+     */
+    private static byte[] send(StripedLink link, int packets) throws InterruptedException {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < packets; i++) {
+            byte[] data = new byte[10];
+            Arrays.fill(data, (byte) i);
+            assertTrue(link.mSender.send(data, 0, data.length, 1000));
+            sent.write(data, 0, data.length);
+        }
+        return sent.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private static void flush(StripedLink link) throws InterruptedException {
+        link.mImmediate = true;
+        assertTrue(link.mSender.flush(FAILURE_TIMEOUT));
+    }
+
+    @Test
+    public void roundRobin() {
+        BLETransferStriper striper = new BLETransferStriper(3);
+        int[] expected = { 0, 1, 2, 0, 1, 2, 0 };
+        for (int stripe : expected) {
+            assertEquals(stripe, striper.next());
+        }
+    }
+
+    @Test
+    public void singleStripeIsTheOriginalCharacteristic() {
+        BLETransferStriper striper = new BLETransferStriper(1);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, striper.next());
+        }
+    }
+
+    @Test
+    public void newStripeCountStartsOver() {
+        BLETransferStriper striper = new BLETransferStriper(4);
+        striper.next();
+        striper.next();
+        striper.setStripes(2);
+        assertEquals(2, striper.getStripes());
+        assertEquals(0, striper.next());
+        assertEquals(1, striper.next());
+        assertEquals(0, striper.next());
+    }
+
+    @Test
+    public void atLeastOneStripe() {
+        try {
+            new BLETransferStriper(0);
+            fail("No stripes");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void negotiate() {
+        assertEquals(2, BLETransferStriper.negotiate(2, 4));
+        assertEquals(3, BLETransferStriper.negotiate(4, 3));
+        // Older Peripherals only have the original characteristic
+        assertEquals(1, BLETransferStriper.negotiate(4, 1));
+        assertEquals(1, BLETransferStriper.negotiate(4, 0));
+        assertEquals(1, BLETransferStriper.negotiate(0, 4));
+        assertEquals(BLEChatProfile.MAX_TRANSFER_STRIPES, BLETransferStriper.negotiate(
+                BLEChatProfile.MAX_TRANSFER_STRIPES, BLEChatProfile.MAX_TRANSFER_STRIPES));
+    }
+
+    @Test
+    public void reorderTolerance() {
+        assertEquals(0, BLETransferStriper.getReorderTolerance(1, 16));
+        assertEquals(16, BLETransferStriper.getReorderTolerance(2, 16));
+        assertEquals(48, BLETransferStriper.getReorderTolerance(4, 16));
+    }
+
+    @Test
+    public void outOfOrderAcrossStripesIsPutBackInOrder() throws InterruptedException {
+        int stripes = 2;
+        int packets = 16;
+        StripedLink link = connect(stripes,
+                BLETransferStriper.getReorderTolerance(stripes, packets / stripes));
+        byte[] sent = send(link, packets);
+        // The second stripe is serviced first, so every packet of the first one is late
+        link.deliver(1);
+        assertEquals(0, link.mReceived.size());
+        // Sending again is when the Sender resends what it takes as lost
+        byte[] more = send(link, 1);
+        link.deliver(0);
+        link.deliver(1);
+        flush(link);
+        assertArrayEquals(concat(sent, more), link.mReceived.toByteArray());
+        // Late isn't lost
+        assertEquals(0, link.mSender.getRetransmissions());
+    }
+
+    @Test
+    public void withoutToleranceLatePacketsAreResent() throws InterruptedException {
+        StripedLink link = connect(2, 0);
+        byte[] sent = send(link, 16);
+        link.deliver(1);
+        byte[] more = send(link, 1);
+        link.deliver(0);
+        link.deliver(1);
+        flush(link);
+        // Still delivered exactly once
+        assertArrayEquals(concat(sent, more), link.mReceived.toByteArray());
+        assertTrue(link.mSender.getRetransmissions() > 0);
+    }
+
+    @Test
+    public void lostPacketIsResent() throws InterruptedException {
+        StripedLink link = connect(3, BLETransferStriper.getReorderTolerance(3, 2));
+        link.mDrop = 5;
+        byte[] sent = send(link, 30);
+        link.deliver(2);
+        link.deliver(0);
+        link.deliver(1);
+        flush(link);
+        assertArrayEquals(sent, link.mReceived.toByteArray());
+        assertEquals(1, link.mSender.getRetransmissions());
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BLEWritePipelineTest {
+
+    /**
+     * Takes writes like BluetoothGatt does: one at a time, completed later from the callback
+     */
+    private static class FakeGatt implements BLEWritePipeline.Writer {
+        final List<byte[]> mStarted = new ArrayList<>();
+        boolean mBusy = false;
+
+        @Override
+        public boolean write(byte[] data) {
+            if (mBusy) {
+                return false;
+            }
+            mStarted.add(data);
+            return true;
+        }
+    }
+
+    private FakeGatt mGatt;
+    private BLEWritePipeline mPipeline;
+
+    @Before
+    public void setUp() {
+        mGatt = new FakeGatt();
+        mPipeline = new BLEWritePipeline(mGatt, 4);
+    }
+
+    @Test
+    public void writesOneAtATimeAndRefillsFromTheCallback() throws InterruptedException {
+        byte[][] blocks = new byte[4][];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new byte[] { (byte) i };
+            assertTrue(mPipeline.offer(blocks[i], 0));
+        }
+        // Only the first one reached the GATT, the rest wait for it
+        assertEquals(1, mGatt.mStarted.size());
+        assertEquals(0, mPipeline.getCredits());
+        for (int i = 1; i < blocks.length; i++) {
+            mPipeline.onWriteComplete(true);
+            // The next one is written right from the callback
+            assertEquals(i + 1, mGatt.mStarted.size());
+            assertSame(blocks[i], mGatt.mStarted.get(i));
+        }
+        mPipeline.onWriteComplete(true);
+        assertEquals(4, mPipeline.getCredits());
+        assertEquals(4, mPipeline.getBytesWritten());
+        assertTrue(mPipeline.flush(0));
+    }
+
+    @Test
+    public void offerTimesOutWhenCreditsRunOut() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mPipeline.offer(new byte[1], 0));
+        }
+        long start = System.currentTimeMillis();
+        assertFalse(mPipeline.offer(new byte[1], 50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        // A completion gives a credit back
+        mPipeline.onWriteComplete(true);
+        assertTrue(mPipeline.offer(new byte[1], 0));
+    }
+
+    @Test
+    public void producerWaitsForACreditFromAnotherThread() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mPipeline.offer(new byte[1], 0));
+        }
+        Thread callback = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                mPipeline.onWriteComplete(true);
+            }
+        };
+        callback.start();
+        assertTrue(mPipeline.offer(new byte[1], 5000));
+        callback.join();
+    }
+
+    @Test
+    public void failedWriteFailsProducersAndFlush() throws InterruptedException {
+        assertTrue(mPipeline.offer(new byte[1], 0));
+        assertTrue(mPipeline.offer(new byte[1], 0));
+        mPipeline.onWriteComplete(false);
+        // The one queued behind is dropped, nothing else is written
+        assertEquals(1, mGatt.mStarted.size());
+        assertFalse(mPipeline.offer(new byte[1], 0));
+        assertFalse(mPipeline.flush(0));
+
+        mPipeline.reset();
+        assertTrue(mPipeline.offer(new byte[1], 0));
+        assertEquals(2, mGatt.mStarted.size());
+    }
+
+    @Test
+    public void busyStackIsRetried() throws InterruptedException {
+        mGatt.mBusy = true;
+        assertTrue(mPipeline.offer(new byte[1], 0));
+        assertEquals(0, mGatt.mStarted.size());
+        assertEquals(3, mPipeline.getCredits());
+        mGatt.mBusy = false;
+        mPipeline.retry();
+        assertEquals(1, mGatt.mStarted.size());
+    }
+
+    @Test
+    public void flushWaitsForTheLastWrite() throws InterruptedException {
+        assertTrue(mPipeline.offer(new byte[1], 0));
+        assertFalse(mPipeline.flush(20));
+        mPipeline.onWriteComplete(true);
+        assertTrue(mPipeline.flush(0));
+    }
+
+    @Test
+    public void cancelReleasesEveryone() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mPipeline.offer(new byte[1], 0));
+        }
+        mPipeline.cancel();
+        assertFalse(mPipeline.offer(new byte[1], 5000));
+        assertFalse(mPipeline.flush(5000));
+    }
+}